@@ -24,6 +24,7 @@ public class NetKernel extends VMKernel {
 		super.initialize(args);
 
 		postOffice = new PostOffice();
+		handlerPool = new KThreadPool("network handler", 1, 4, 10000);
 	}
 
 	/**
@@ -85,21 +86,29 @@ public class NetKernel extends VMKernel {
 
 	private void pingServer() {
 		while (true) {
-			MailMessage ping = postOffice.receive(1);
+			final MailMessage ping = postOffice.receive(1);
 
-			MailMessage ack;
+			handlerPool.submit(new Runnable() {
+				public void run() {
+					replyToPing(ping);
+				}
+			});
+		}
+	}
 
-			try {
-				ack = new MailMessage(ping.packet.srcLink, ping.srcPort,
-						ping.packet.dstLink, ping.dstPort, ping.contents);
-			}
-			catch (MalformedPacketException e) {
-				// should never happen...
-				continue;
-			}
+	private void replyToPing(MailMessage ping) {
+		MailMessage ack;
 
-			postOffice.send(ack);
+		try {
+			ack = new MailMessage(ping.packet.srcLink, ping.srcPort,
+					ping.packet.dstLink, ping.dstPort, ping.contents);
 		}
+		catch (MalformedPacketException e) {
+			// should never happen...
+			return;
+		}
+
+		postOffice.send(ack);
 	}
 
 	/**
@@ -118,6 +127,9 @@ public class NetKernel extends VMKernel {
 
 	private PostOffice postOffice;
 
+	/** Workers that handle requests received by the kernel's servers. */
+	private KThreadPool handlerPool;
+
 	// dummy variables to make javac smarter
 	private static NetProcess dummy1 = null;
 }
@@ -3,6 +3,8 @@ package nachos.network;
 import nachos.machine.*;
 import nachos.threads.*;
 
+import java.util.Collection;
+
 /**
  * A collection of message queues, one for each local port. A
  * <tt>PostOffice</tt> interacts directly with the network hardware. Because of
@@ -13,11 +15,17 @@ import nachos.threads.*;
  * The post office uses a "postal worker" thread to wait for messages to arrive
  * from the network and to place them in the appropriate queues. This cannot be
  * done in the receive interrupt handler because each queue (implemented with a
- * <tt>SynchList</tt>) is protected by a lock.
+ * <tt>BoundedQueue</tt>) is protected by a lock.
+ * 
+ * <p>
+ * Each mailbox holds at most <tt>PostOffice.mailboxCapacity</tt> messages
+ * (from <tt>nachos.conf</tt>). Mail arriving for a full mailbox is dropped, as
+ * if the network had lost it, so a flood of packets cannot grow kernel memory
+ * without bound or stall delivery to other ports.
  */
 public class PostOffice {
 	/**
-	 * Allocate a new post office, using an array of <tt>SynchList</tt>s.
+	 * Allocate a new post office, using an array of <tt>BoundedQueue</tt>s.
 	 * Register the interrupt handlers with the network hardware and start the
 	 * "postal worker" thread.
 	 */
@@ -26,9 +34,11 @@ public class PostOffice {
 		messageSent = new Semaphore(0);
 		sendLock = new Lock();
 
-		queues = new SynchList[MailMessage.portLimit];
+		int capacity = Config.getInteger("PostOffice.mailboxCapacity",
+				defaultMailboxCapacity);
+		queues = new BoundedQueue[MailMessage.portLimit];
 		for (int i = 0; i < queues.length; i++)
-			queues[i] = new SynchList();
+			queues[i] = new BoundedQueue(capacity);
 
 		Runnable receiveHandler = new Runnable() {
 			public void run() {
@@ -63,7 +73,7 @@ public class PostOffice {
 
 		Lib.debug(dbgNet, "waiting for mail on port " + port);
 
-		MailMessage mail = (MailMessage) queues[port].removeFirst();
+		MailMessage mail = (MailMessage) queues[port].take();
 
 		if (Lib.test(dbgNet))
 			System.out.println("got mail on port " + port + ": " + mail);
@@ -71,6 +81,22 @@ public class PostOffice {
 		return mail;
 	}
 
+	/**
+	 * Retrieve every message waiting on the specified port, up to <i>max</i>
+	 * messages, without blocking.
+	 * 
+	 * @param port the port to collect mail from.
+	 * @param mail the collection the messages are added to, oldest first.
+	 * @param max the maximum number of messages to retrieve.
+	 * 
+	 * @return the number of messages retrieved.
+	 */
+	public int receive(int port, Collection<Object> mail, int max) {
+		Lib.assertTrue(port >= 0 && port < queues.length);
+
+		return queues[port].drainTo(mail, max);
+	}
+
 	/**
 	 * Wait for incoming messages, and then put them in the correct mailbox.
 	 */
@@ -94,7 +120,9 @@ public class PostOffice {
 						+ ": " + mail);
 
 			// atomically add message to the mailbox and wake a waiting thread
-			queues[mail.dstPort].add(mail);
+			if (!queues[mail.dstPort].offer(mail))
+				Lib.debug(dbgNet, "mailbox " + mail.dstPort
+						+ " full, dropping mail");
 		}
 	}
 
@@ -130,7 +158,9 @@ public class PostOffice {
 		messageSent.V();
 	}
 
-	private SynchList[] queues;
+	private BoundedQueue[] queues;
+
+	private static final int defaultMailboxCapacity = 64;
 
 	private Semaphore messageReceived; // V'd when a message can be dequeued
 
@@ -0,0 +1,73 @@
+/*
+ * cow1.c
+ *
+ * Test fork and copy-on-write.  The parent fills an array larger than
+ * physical memory, forks, and both processes then overwrite it with
+ * different values.  Each must see only its own writes.  The child exits
+ * with a status the parent checks with join.
+ *
+ * Like swap5.c, does not use printf.  Exits with status -1000 on success,
+ * or with the number of the check that failed.
+ */
+
+#include "syscall.h"
+
+int bigbufnum = 16 * 1024 / sizeof (int);
+int bigbuf[16 * 1024 / sizeof (int)];
+
+void
+write_buf (int base)
+{
+    int i;
+
+    for (i = 0; i < bigbufnum; i++) {
+	bigbuf[i] = i + base;
+    }
+}
+
+int
+check_buf (int base)
+{
+    int i;
+
+    for (i = 0; i < bigbufnum; i++) {
+	if (bigbuf[i] != i + base) {
+	    return 0;
+	}
+    }
+    return 1;
+}
+
+int
+main (int argc, char *argv[])
+{
+    int pid, status;
+
+    write_buf (0);
+    pid = fork ();
+    if (pid < 0) {
+	exit (1);
+    }
+    if (pid == 0) {
+	// the child starts with the parent's data, then changes its copy
+	if (!check_buf (0)) {
+	    exit (2);
+	}
+	write_buf (300 * 1000);
+	exit (check_buf (300 * 1000) ? 77 : 3);
+    }
+
+    write_buf (100 * 1000);
+    if (join (pid, &status) != 1) {
+	exit (4);
+    }
+    if (status != 77) {
+	exit (status);
+    }
+    // the child's writes did not reach the parent
+    if (!check_buf (100 * 1000)) {
+	exit (5);
+    }
+
+    exit (-1000);
+}
@@ -0,0 +1,62 @@
+/*
+ * futex1.c
+ *
+ * Test futex: a thread waits on a word until another thread changes it and
+ * wakes it up.  Also checks that FUTEX_WAIT returns at once if the word no
+ * longer holds the expected value, that a timed wait expires, and that
+ * FUTEX_WAKE with no waiters wakes nobody.
+ *
+ * Exits with status 0 on success, or with the number of the check that
+ * failed.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+int flag = 0;
+int woken = 0;
+
+void
+waiter (void *arg)
+{
+    // a stale value, or a spurious return, just means checking again
+    while (flag == 0) {
+	futex (&flag, FUTEX_WAIT, 0, 0);
+    }
+    woken = 1;
+    thread_exit (0);
+}
+
+int
+main (int argc, char *argv[])
+{
+    int tid, other = 5;
+
+    if (futex (&other, FUTEX_WAIT, 4, 0) != -1) {
+	printf ("...failed (waited on a changed word)\n");
+	exit (1);
+    }
+    if (futex (&other, FUTEX_WAIT, 5, 100) != -1) {
+	printf ("...failed (timed wait did not time out)\n");
+	exit (2);
+    }
+    if (futex (&other, FUTEX_WAKE, 1, 0) != 0) {
+	printf ("...failed (woke a thread that was not waiting)\n");
+	exit (3);
+    }
+
+    tid = thread_create (waiter, 0);
+    // give the waiter time to block
+    futex (&other, FUTEX_WAIT, 5, 1000);
+    flag = 1;
+    futex (&flag, FUTEX_WAKE, 1, 0);
+
+    if (thread_join (tid, 0) != 0 || !woken) {
+	printf ("...failed (waiter not woken)\n");
+	exit (4);
+    }
+
+    printf ("...passed\n");
+    return 0;
+}
@@ -0,0 +1,76 @@
+/*
+ * mmap1.c
+ *
+ * Test mmap and munmap: a mapped file reads back its contents, stores to
+ * the mapping reach the file once it is unmapped, and misaligned or unknown
+ * addresses are rejected.  Requires the VM kernel.
+ *
+ * Exits with status 0 on success, or with the number of the check that
+ * failed.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define MAPADDR ((char *) 0x80000)
+#define FILESIZE 2500
+
+char buf[FILESIZE];
+
+int
+main (int argc, char *argv[])
+{
+    int fd, i, r;
+
+    for (i = 0; i < FILESIZE; i++) {
+	buf[i] = 'a' + (i % 26);
+    }
+    fd = creat ("mmap1.out");
+    if (fd < 0 || write (fd, buf, FILESIZE) != FILESIZE) {
+	printf ("...failed (creat)\n");
+	exit (1);
+    }
+
+    if (mmap (fd, MAPADDR + 1) != -1) {
+	printf ("...failed (misaligned mmap succeeded)\n");
+	exit (2);
+    }
+    r = mmap (fd, MAPADDR);
+    if (r != FILESIZE) {
+	printf ("...failed (mmap returned %d)\n", r);
+	exit (3);
+    }
+    // the mapping outlives the descriptor
+    close (fd);
+
+    // every page, including the partial last one, reads back the file
+    for (i = 0; i < FILESIZE; i++) {
+	if (MAPADDR[i] != buf[i]) {
+	    printf ("...failed (byte %d reads %d)\n", i, MAPADDR[i]);
+	    exit (4);
+	}
+    }
+    MAPADDR[0] = 'X';
+    MAPADDR[FILESIZE - 1] = 'Y';
+
+    if (munmap (MAPADDR + 1024) != -1) {
+	printf ("...failed (munmap of a non-mapping succeeded)\n");
+	exit (5);
+    }
+    if (munmap (MAPADDR) != 0) {
+	printf ("...failed (munmap)\n");
+	exit (6);
+    }
+
+    fd = open ("mmap1.out");
+    if (read (fd, buf, FILESIZE) != FILESIZE || buf[0] != 'X' || buf[FILESIZE - 1] != 'Y') {
+	printf ("...failed (stores did not reach the file)\n");
+	exit (7);
+    }
+    close (fd);
+    unlink ("mmap1.out");
+
+    printf ("mmap1 passed\n");
+    return 0;
+}
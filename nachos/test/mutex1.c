@@ -0,0 +1,97 @@
+/*
+ * mutex1.c
+ *
+ * Test the mutex and condition variable of sync.h.  Several threads add to
+ * a shared counter under a mutex, reading and writing it separately so that
+ * a preemption in between would lose updates without the lock.  Then a
+ * producer and a consumer pass values through a one-slot buffer, waiting on
+ * condition variables when it is full or empty.
+ *
+ * Exits with status 0 on success, or with the number of the check that
+ * failed.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+#include "sync.h"
+
+#define NTHREADS	4
+#define NINCREMENTS	500
+#define NITEMS		50
+
+mutex_t lock = MUTEX_INITIALIZER;
+cond_t notEmpty = COND_INITIALIZER, notFull = COND_INITIALIZER;
+
+volatile int counter = 0;
+volatile int slot, full = 0;
+
+void
+adder (void *arg)
+{
+    int i, value;
+
+    for (i = 0; i < NINCREMENTS; i++) {
+	mutex_lock (&lock);
+	value = counter;
+	counter = value + 1;
+	mutex_unlock (&lock);
+    }
+    thread_exit (0);
+}
+
+void
+producer (void *arg)
+{
+    int i;
+
+    for (i = 1; i <= NITEMS; i++) {
+	mutex_lock (&lock);
+	while (full) {
+	    cond_wait (&notFull, &lock);
+	}
+	slot = i;
+	full = 1;
+	cond_signal (&notEmpty);
+	mutex_unlock (&lock);
+    }
+    thread_exit (0);
+}
+
+int
+main (int argc, char *argv[])
+{
+    int tids[NTHREADS];
+    int i, tid, sum = 0;
+
+    for (i = 0; i < NTHREADS; i++) {
+	tids[i] = thread_create (adder, 0);
+    }
+    for (i = 0; i < NTHREADS; i++) {
+	thread_join (tids[i], 0);
+    }
+    if (counter != NTHREADS * NINCREMENTS) {
+	printf ("...failed (counter is %d)\n", counter);
+	exit (1);
+    }
+
+    tid = thread_create (producer, 0);
+    for (i = 1; i <= NITEMS; i++) {
+	mutex_lock (&lock);
+	while (!full) {
+	    cond_wait (&notEmpty, &lock);
+	}
+	sum += slot;
+	full = 0;
+	cond_signal (&notFull);
+	mutex_unlock (&lock);
+    }
+    thread_join (tid, 0);
+    if (sum != NITEMS * (NITEMS + 1) / 2) {
+	printf ("...failed (consumed sum is %d)\n", sum);
+	exit (2);
+    }
+
+    printf ("...passed\n");
+    return 0;
+}
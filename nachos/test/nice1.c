@@ -0,0 +1,71 @@
+/*
+ * nice1.c
+ *
+ * Test nice, setpriority, settickets and getrusage.  Under a scheduler with
+ * priorities, lowering the priority with nice and setting it back with
+ * setpriority are both reported by nice(0); under one without, such as the
+ * default round-robin scheduler, every priority call fails.  Out-of-range
+ * priorities are refused either way, and a process that has run user code
+ * for a while has been charged for it.
+ *
+ * Exits with status 0 on success, or with the number of the check that
+ * failed.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+int
+main (int argc, char *argv[])
+{
+    struct rusage usage;
+    int prio, i, r;
+    volatile int sum = 0;
+
+    // under a scheduler without priorities, every priority call fails
+    prio = nice (0);
+    if (prio == -1) {
+	if (nice (1) != -1 || setpriority (1) != -1) {
+	    printf ("...failed (priority call succeeded without priorities)\n");
+	    exit (1);
+	}
+    }
+    else {
+	if (prio > 0 && nice (1) != prio - 1) {
+	    printf ("...failed (nice(1) did not lower the priority)\n");
+	    exit (2);
+	}
+	if (setpriority (prio) != 0 || nice (0) != prio) {
+	    printf ("...failed (setpriority)\n");
+	    exit (3);
+	}
+    }
+    if (setpriority (-1) != -1) {
+	printf ("...failed (setpriority(-1) accepted)\n");
+	exit (4);
+    }
+
+    // only the lottery scheduler takes tickets, but none takes 0
+    r = settickets (0);
+    if (r != -1) {
+	printf ("...failed (settickets(0) returned %d)\n", r);
+	exit (5);
+    }
+
+    for (i = 0; i < 10000; i++) {
+	sum += i;
+    }
+    if (getrusage (RUSAGE_SELF, &usage) != 0 || usage.ru_utime <= 0) {
+	printf ("...failed (getrusage)\n");
+	exit (6);
+    }
+    if (getrusage (7, &usage) != -1) {
+	printf ("...failed (getrusage accepted a bad target)\n");
+	exit (7);
+    }
+
+    printf ("...passed (user %d ticks, system %d ticks)\n",
+	    usage.ru_utime, usage.ru_stime);
+    return 0;
+}
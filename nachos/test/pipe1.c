@@ -0,0 +1,69 @@
+/*
+ * pipe1.c
+ *
+ * Test pipes within one process: data written to the write end comes out
+ * of the read end in order, a read returns only what is buffered, and once
+ * the write end is closed an empty pipe reads as end of file.  Also moves
+ * the read end to another descriptor with dup2.
+ *
+ * Exits with status 0 on success, or with the number of the check that
+ * failed.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+int
+main (int argc, char *argv[])
+{
+    char *msg = "hello, pipe";
+    char buf[64];
+    int fds[2];
+    int len = strlen (msg);
+    int r;
+
+    if (pipe (fds) != 0) {
+	printf ("...failed (pipe)\n");
+	exit (1);
+    }
+
+    // two writes come back as one read of everything buffered
+    if (write (fds[1], msg, 5) != 5 || write (fds[1], msg + 5, len - 5) != len - 5) {
+	printf ("...failed (write)\n");
+	exit (2);
+    }
+    r = read (fds[0], buf, sizeof (buf));
+    if (r != len || strncmp (buf, msg, len) != 0) {
+	printf ("...failed (read returned %d)\n", r);
+	exit (3);
+    }
+
+    // a read end moved with dup2 is the same pipe
+    if (dup2 (fds[0], 5) != 5 || close (fds[0]) != 0) {
+	printf ("...failed (dup2)\n");
+	exit (4);
+    }
+    write (fds[1], msg, len);
+    r = read (5, buf, 3);
+    if (r != 3 || strncmp (buf, msg, 3) != 0) {
+	printf ("...failed (short read returned %d)\n", r);
+	exit (5);
+    }
+
+    // drain what is left, then see end of file once the writer is gone
+    close (fds[1]);
+    r = read (5, buf, sizeof (buf));
+    if (r != len - 3) {
+	printf ("...failed (drain returned %d)\n", r);
+	exit (6);
+    }
+    r = read (5, buf, sizeof (buf));
+    if (r != 0) {
+	printf ("...failed (read at end of file returned %d)\n", r);
+	exit (7);
+    }
+
+    printf ("...passed\n");
+    return 0;
+}
@@ -0,0 +1,100 @@
+/*
+ * ring1.c
+ *
+ * Test the asynchronous I/O ring: submit a write to a pipe, a no-op and a
+ * close of a spare descriptor in one ring_enter, wait for all three
+ * completions, and check each result by its user_data.  Then read the pipe
+ * back through a second batch.
+ *
+ * Exits with status 0 on success, or with the number of the check that
+ * failed.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define ENTRIES	4
+
+struct io_ring ring;
+struct io_sqe sq[ENTRIES];
+struct io_cqe cq[ENTRIES];
+
+int results[8];
+
+void
+submit (int opcode, int fd, void *buffer, int count, int user_data)
+{
+    struct io_sqe *sqe = &sq[ring.sq_tail & (ENTRIES - 1)];
+
+    sqe->opcode = opcode;
+    sqe->fd = fd;
+    sqe->buffer = buffer;
+    sqe->count = count;
+    sqe->offset = -1;
+    sqe->user_data = user_data;
+    ring.sq_tail++;
+}
+
+int
+reap ()
+{
+    int n = 0;
+
+    while (ring.cq_head != ring.cq_tail) {
+	struct io_cqe *cqe = &cq[ring.cq_head & (ENTRIES - 1)];
+	results[cqe->user_data] = cqe->result;
+	ring.cq_head++;
+	n++;
+    }
+    return n;
+}
+
+int
+main (int argc, char *argv[])
+{
+    char *msg = "ring data";
+    char buf[32];
+    int fds[2];
+    int spare, len = strlen (msg);
+
+    if (pipe (fds) != 0 || (spare = dup (1)) < 0) {
+	printf ("...failed (pipe or dup)\n");
+	exit (1);
+    }
+    if (ring_setup (&ring, sq, cq, ENTRIES) != 0) {
+	printf ("...failed (ring_setup)\n");
+	exit (2);
+    }
+
+    submit (IO_WRITE, fds[1], msg, len, 1);
+    submit (IO_NOP, 0, 0, 0, 2);
+    submit (IO_CLOSE, spare, 0, 0, 3);
+    if (ring_enter (3, 3) != 3 || reap () != 3) {
+	printf ("...failed (first batch)\n");
+	exit (3);
+    }
+    if (results[1] != len || results[2] != 0 || results[3] != 0) {
+	printf ("...failed (results %d %d %d)\n", results[1], results[2], results[3]);
+	exit (4);
+    }
+
+    submit (IO_READ, fds[0], buf, sizeof (buf), 4);
+    if (ring_enter (1, 1) != 1 || reap () != 1) {
+	printf ("...failed (second batch)\n");
+	exit (5);
+    }
+    if (results[4] != len || strncmp (buf, msg, len) != 0) {
+	printf ("...failed (read returned %d)\n", results[4]);
+	exit (6);
+    }
+
+    // the spare descriptor was closed by the ring
+    if (close (spare) != -1) {
+	printf ("...failed (IO_CLOSE left the descriptor open)\n");
+	exit (7);
+    }
+
+    printf ("...passed\n");
+    return 0;
+}
@@ -0,0 +1,53 @@
+/*
+ * sbrk1.c
+ *
+ * Test sbrk: grow the heap by more pages than physical memory holds, check
+ * that new heap memory reads as zero, fill and validate it, then give it
+ * back and check that the end of the heap moves back.
+ *
+ * Like swap5.c, does not use printf.  Exits with status -1000 on success,
+ * or with the number of the check that failed.
+ */
+
+#include "syscall.h"
+
+#define PAGESIZE	1024
+#define NPAGES		48
+
+int
+main (int argc, char *argv[])
+{
+    int *heap, *end;
+    int i, n = NPAGES * PAGESIZE / sizeof (int);
+
+    heap = (int *) sbrk (NPAGES * PAGESIZE);
+    if (heap == (int *) -1) {
+	exit (1);
+    }
+    end = (int *) sbrk (0);
+    if (end != heap + n) {
+	exit (2);
+    }
+
+    for (i = 0; i < n; i++) {
+	if (heap[i] != 0) {
+	    exit (3);
+	}
+	heap[i] = i;
+    }
+    for (i = 0; i < n; i++) {
+	if (heap[i] != i) {
+	    exit (4);
+	}
+    }
+
+    if (sbrk (-NPAGES * PAGESIZE) != (void *) end || sbrk (0) != (void *) heap) {
+	exit (5);
+    }
+    // the heap can never reach the stack
+    if (sbrk (0x7fffffff) != (void *) -1) {
+	exit (6);
+    }
+
+    exit (-1000);
+}
@@ -0,0 +1,72 @@
+/*
+ * shm1.c
+ *
+ * Test shared memory.  The parent creates a segment, attaches it and
+ * forks; the child inherits the attachment, writes a pattern into it, and
+ * exits.  The parent must then see the child's writes.  A second process
+ * attaching the segment by key sees them too, and a detached segment can
+ * no longer be detached.
+ *
+ * Like swap5.c, does not use printf.  Exits with status -1000 on success,
+ * or with the number of the check that failed.
+ */
+
+#include "syscall.h"
+
+#define KEY	1234
+#define SIZE	4096
+
+int
+main (int argc, char *argv[])
+{
+    int id, pid, status, i;
+    int *seg, n = SIZE / sizeof (int);
+
+    id = shmget (KEY, SIZE);
+    if (id < 0) {
+	exit (1);
+    }
+    seg = (int *) shmat (id);
+    if (seg == (int *) -1) {
+	exit (2);
+    }
+    for (i = 0; i < n; i++) {
+	if (seg[i] != 0) {
+	    exit (3);
+	}
+    }
+    // attaching twice is an error
+    if (shmat (id) != (void *) -1) {
+	exit (4);
+    }
+
+    pid = fork ();
+    if (pid < 0) {
+	exit (5);
+    }
+    if (pid == 0) {
+	for (i = 0; i < n; i++) {
+	    seg[i] = i * 3;
+	}
+	exit (0);
+    }
+
+    if (join (pid, &status) != 1 || status != 0) {
+	exit (6);
+    }
+    for (i = 0; i < n; i++) {
+	if (seg[i] != i * 3) {
+	    exit (7);
+	}
+    }
+
+    // looking the key up again finds the same segment
+    if (shmget (KEY, SIZE) != id) {
+	exit (8);
+    }
+    if (shmdt (seg) != 0 || shmdt (seg) != -1) {
+	exit (9);
+    }
+
+    exit (-1000);
+}
@@ -67,3 +67,25 @@ name:				; \
 	SYSCALLSTUB(mmap, syscallMmap)
 	SYSCALLSTUB(connect, syscallConnect)
 	SYSCALLSTUB(accept, syscallAccept)
+	SYSCALLSTUB(readv, syscallReadv)
+	SYSCALLSTUB(writev, syscallWritev)
+	SYSCALLSTUB(munmap, syscallMunmap)
+	SYSCALLSTUB(dup, syscallDup)
+	SYSCALLSTUB(dup2, syscallDup2)
+	SYSCALLSTUB(waitpid, syscallWaitpid)
+	SYSCALLSTUB(fork, syscallFork)
+	SYSCALLSTUB(pipe, syscallPipe)
+	SYSCALLSTUB(ring_setup, syscallRingSetup)
+	SYSCALLSTUB(ring_enter, syscallRingEnter)
+	SYSCALLSTUB(sbrk, syscallSbrk)
+	SYSCALLSTUB(thread_create, syscallThreadCreate)
+	SYSCALLSTUB(thread_join, syscallThreadJoin)
+	SYSCALLSTUB(thread_exit, syscallThreadExit)
+	SYSCALLSTUB(futex, syscallFutex)
+	SYSCALLSTUB(shmget, syscallShmget)
+	SYSCALLSTUB(shmat, syscallShmat)
+	SYSCALLSTUB(shmdt, syscallShmdt)
+	SYSCALLSTUB(nice, syscallNice)
+	SYSCALLSTUB(setpriority, syscallSetPriority)
+	SYSCALLSTUB(settickets, syscallSetTickets)
+	SYSCALLSTUB(getrusage, syscallGetrusage)
@@ -0,0 +1,71 @@
+#include "sync.h"
+
+/*
+ * The MIPS has no atomic instructions, so every read-modify-write of a lock
+ * word goes through the kernel with FUTEX_CMPXCHG. A thread only sleeps in
+ * the kernel, with FUTEX_WAIT, when the mutex is held by another thread.
+ */
+
+int atomic_cmpxchg(int *addr, int expected, int newval) {
+  return futex(addr, FUTEX_CMPXCHG, expected, newval);
+}
+
+void mutex_init(mutex_t *m) {
+  m->state = 0;
+}
+
+void mutex_lock(mutex_t *m) {
+  int c = atomic_cmpxchg(&m->state, 0, 1);
+
+  while (c != 0) {
+    /* mark the mutex contended, so that the holder wakes us, then sleep */
+    if (c == 2 || atomic_cmpxchg(&m->state, 1, 2) != 0)
+      futex(&m->state, FUTEX_WAIT, 2, 0);
+    /* we may not be the only waiter, so keep it marked contended */
+    c = atomic_cmpxchg(&m->state, 0, 2);
+  }
+}
+
+/* returns 1 if the mutex was taken, 0 if another thread holds it */
+int mutex_trylock(mutex_t *m) {
+  return atomic_cmpxchg(&m->state, 0, 1) == 0;
+}
+
+void mutex_unlock(mutex_t *m) {
+  if (atomic_cmpxchg(&m->state, 1, 0) != 1) {
+    /* contended: only the holder changes the state from 2 */
+    m->state = 0;
+    futex(&m->state, FUTEX_WAKE, 1, 0);
+  }
+}
+
+void cond_init(cond_t *c) {
+  c->seq = 0;
+}
+
+void cond_wait(cond_t *c, mutex_t *m) {
+  int seq = c->seq;
+
+  mutex_unlock(m);
+  /* returns at once if a signal came after the mutex was released */
+  futex(&c->seq, FUTEX_WAIT, seq, 0);
+  mutex_lock(m);
+}
+
+static void cond_bump(cond_t *c) {
+  int seq;
+
+  do {
+    seq = c->seq;
+  } while (atomic_cmpxchg(&c->seq, seq, seq + 1) != seq);
+}
+
+void cond_signal(cond_t *c) {
+  cond_bump(c);
+  futex(&c->seq, FUTEX_WAKE, 1, 0);
+}
+
+void cond_broadcast(cond_t *c) {
+  cond_bump(c);
+  futex(&c->seq, FUTEX_WAKE, 0x7fffffff, 0);
+}
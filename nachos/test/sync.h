@@ -0,0 +1,42 @@
+/*-------------------------------------------------------------
+ * sync.h
+ *
+ * Header file for mutexes and condition variables shared by the
+ * threads of a process, built on the futex syscall.
+ *-------------------------------------------------------------*/
+
+#ifndef SYNC_H
+#define SYNC_H
+
+#include "syscall.h"
+
+/* A mutex: 0 if unlocked, 1 if locked, 2 if locked and a thread may be
+ * waiting for it. */
+typedef struct {
+    int state;
+} mutex_t;
+
+/* A condition variable: a counter bumped by every signal, so a waiter can
+ * tell whether it missed one. */
+typedef struct {
+    int seq;
+} cond_t;
+
+#define MUTEX_INITIALIZER	{ 0 }
+#define COND_INITIALIZER	{ 0 }
+
+/* If *addr holds expected, store newval there, atomically; returns the
+ * value *addr held. */
+int atomic_cmpxchg(int *addr, int expected, int newval);
+
+void mutex_init(mutex_t *m);
+void mutex_lock(mutex_t *m);
+int  mutex_trylock(mutex_t *m);
+void mutex_unlock(mutex_t *m);
+
+void cond_init(cond_t *c);
+void cond_wait(cond_t *c, mutex_t *m);
+void cond_signal(cond_t *c);
+void cond_broadcast(cond_t *c);
+
+#endif // SYNC_H
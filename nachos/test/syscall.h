@@ -25,6 +25,28 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallReadv		13
+#define syscallWritev		14
+#define syscallMunmap		15
+#define syscallDup		16
+#define syscallDup2		17
+#define syscallWaitpid		18
+#define syscallFork		19
+#define syscallPipe		20
+#define syscallRingSetup	21
+#define syscallRingEnter	22
+#define syscallSbrk		23
+#define syscallThreadCreate	24
+#define syscallThreadJoin	25
+#define syscallThreadExit	26
+#define syscallFutex		27
+#define syscallShmget		28
+#define syscallShmat		29
+#define syscallShmdt		30
+#define syscallNice		31
+#define syscallSetPriority	32
+#define syscallSetTickets	33
+#define syscallGetrusage	34
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -85,6 +107,9 @@ void exit(int status);
  * arguments to pass to the child process. argv[0] points to the first
  * argument, and argv[argc-1] points to the last argument.
  *
+ * The child's file descriptors 0 and 1 refer to the same open files as the
+ * caller's; it has no other open files.
+ *
  * exec() returns the child process's process ID, which can be passed to
  * join(). On error, returns -1.
  */
@@ -109,6 +134,159 @@ int exec(char *file, int argc, char *argv[]);
  */
 int join(int processID, int *status);
 
+/**
+ * Create a child process that is a copy of the current process: same memory
+ * contents and open file descriptors (sharing file positions), continuing
+ * from the return of fork(). Memory is copied lazily, a page at a time, when
+ * either process first writes to it. Regions mapped with mmap() are not
+ * inherited; shared memory segments stay attached, and stay shared. Only
+ * available when virtual memory is enabled.
+ *
+ * Returns the child's process ID in the parent, 0 in the child, or -1 if an
+ * error occurred.
+ */
+int fork();
+
+/**
+ * Start a new thread in the current process, running func(arg). The thread
+ * shares the process's memory and open file descriptors, and runs on a stack
+ * of its own. Returning from func is the same as calling thread_exit() with
+ * the value func returns.
+ *
+ * When any thread calls exit(), the whole process exits: the other threads
+ * stop the next time they enter the kernel. A thread waiting in a syscall, on
+ * a pipe, a child, another thread, a futex or the I/O ring, is woken and
+ * stops at once. The process also exits once its last
+ * thread has called thread_exit().
+ *
+ * Returns the new thread's ID, which is positive, or -1 if an error occurred.
+ * The thread that runs main() has ID 0.
+ */
+int thread_create(void (*func)(void *), void *arg);
+
+/**
+ * Wait for thread tid of the current process to finish, and store the status
+ * it passed to thread_exit() at *status, unless status is 0. A thread can
+ * only be joined once, and not by itself.
+ *
+ * Returns 0 on success, or -1 if an error occurred.
+ */
+int thread_join(int tid, int *status);
+
+/**
+ * End the calling thread, making status available to thread_join(). If it is
+ * the last thread of the process, the process exits with status. This
+ * function never returns.
+ */
+void thread_exit(int status);
+
+/* Operations for futex(). */
+#define FUTEX_WAIT		0
+#define FUTEX_WAKE		1
+#define FUTEX_CMPXCHG		2
+
+/**
+ * Block or wake threads waiting on the word at addr, which must be aligned,
+ * or update the word atomically. Locks and condition variables keep their
+ * state in such a word, and only wait in the kernel when a thread has to
+ * block.
+ *
+ * The MIPS processor has no atomic read-modify-write instructions (no LL/SC),
+ * and a thread can be preempted between any load and store, so a lock cannot
+ * be built from ordinary loads and stores to the word. Use FUTEX_CMPXCHG to
+ * change it, as the mutex_t and cond_t of sync.h do. Plain loads, and plain
+ * stores by a thread that alone may change the word at that point, such as
+ * the holder releasing a contended lock, are still safe.
+ *
+ * FUTEX_WAIT: if *addr still holds val, wait until another thread wakes addr
+ * with FUTEX_WAKE, or until timeout ticks have passed; a timeout of 0 waits
+ * until woken. The check and the wait are atomic with respect to FUTEX_WAKE.
+ * Returns 0 once woken, or -1 if *addr did not hold val, the timeout expired,
+ * or an error occurred.
+ *
+ * FUTEX_WAKE: wake up to val of the threads waiting on addr, longest waiting
+ * first; timeout is ignored. Returns the number of threads woken, or -1 if
+ * an error occurred.
+ *
+ * FUTEX_CMPXCHG: if *addr holds val, store timeout (the new value) there, with
+ * no other thread running in between. Returns the value *addr held, or -1 if
+ * addr is not writable, so words updated this way should never hold -1.
+ *
+ * Waiters are matched by address within the calling process, so futex() only
+ * synchronizes the threads of one process. exit() wakes every thread of the
+ * process that is waiting.
+ */
+int futex(int *addr, int op, int val, int timeout);
+
+/**
+ * Lower the scheduling priority of every thread of the current process by
+ * increment; a negative increment raises it. The result is clamped between 0
+ * and the highest priority allowed to user processes, which is the default
+ * priority (1) unless Process.maxPriority raises it. Threads created later
+ * and child processes start at the same priority.
+ *
+ * Returns the new priority, so nice(0) returns the current one, or -1 if the
+ * kernel's scheduler does not use priorities, as with the round-robin
+ * scheduler that every project configures by default.
+ */
+int nice(int increment);
+
+/**
+ * Set the scheduling priority of every thread of the current process, as
+ * nice() does.
+ *
+ * Returns 0 on success, or -1 if the scheduler does not use priorities (see
+ * nice()), or priority is below 0 or above the highest priority allowed to
+ * user processes.
+ */
+int setpriority(int priority);
+
+/**
+ * Give every thread of the current process the specified number of lottery
+ * tickets. Only available with the lottery scheduler, which keeps a thread's
+ * tickets as its priority; see nice().
+ *
+ * Returns 0 on success, or -1 if the scheduler is not a lottery scheduler, or
+ * tickets is below 1 or above the most allowed to user processes
+ * (Process.maxTickets, 7 by default).
+ */
+int settickets(int tickets);
+
+/* Targets for getrusage(). */
+#define RUSAGE_SELF		0
+#define RUSAGE_CHILDREN		-1
+
+/* CPU time used, in clock ticks. */
+struct rusage {
+    int ru_utime;	/* ticks spent running user code */
+    int ru_stime;	/* ticks spent in the kernel for syscalls and faults */
+};
+
+/**
+ * Store the CPU time used by every thread of the current process
+ * (RUSAGE_SELF), or by the children it has joined and their own joined
+ * children (RUSAGE_CHILDREN), in *usage. Time spent waiting, for a child, a
+ * lock or the disk, is not counted.
+ *
+ * Returns 0 on success, or -1 if who is not valid or usage is not writable.
+ */
+int getrusage(int who, struct rusage *usage);
+
+/* Option for waitpid(): return immediately if no child has exited. */
+#define WNOHANG			1
+
+/**
+ * Like join(), but processID may be -1 to wait for whichever child exits
+ * first, and if options includes WNOHANG, return 0 instead of waiting when
+ * the child (or no child) has exited yet. status may be 0 if the exit status
+ * is not wanted.
+ *
+ * Returns the process ID of the child that was joined, 0 if WNOHANG was
+ * given and there was nothing to join, or -1 if processID does not refer to
+ * a child of the current process (or, for -1, if it has no children).
+ */
+int waitpid(int processID, int *status, int options);
+
 /* FILE MANAGEMENT SYSCALLS: creat, open, read, write, close, unlink
  *
  * A file descriptor is a small, non-negative integer that refers to a file on
@@ -136,6 +314,19 @@ int creat(char *name);
  * Note that open() can only be used to open files on disk; open() will never
  * return a file descriptor referring to a stream.
  *
+ * Names starting with "proc/" are read-only pseudo-files of live kernel
+ * statistics, one statistic per line, unless Kernel.procfs is false:
+ *
+ *   proc/stat		ticks, CPU ticks charged to processes, frames
+ *   proc/sched		the scheduler and the length of its ready queue
+ *   proc/vmstat		page faults and swap usage (virtual memory only)
+ *   proc/processes	the pid and program of every process
+ *   proc/<pid>/status	a process's threads, priority, pages, open files
+ *			and CPU ticks; proc/self/status for the caller
+ *
+ * A pseudo-file's contents are generated when it is first read, and do not
+ * change until it is opened again.
+ *
  * Returns the new file descriptor, or -1 if an error occurred.
  */
 int open(char *name);
@@ -181,6 +372,34 @@ int read(int fileDescriptor, void *buffer, int count);
  */
 int write(int fileDescriptor, void *buffer, int count);
 
+/* One buffer of a readv() or writev() request. */
+struct iovec {
+    void *iov_base;
+    int iov_len;
+};
+
+/**
+ * Read from the file or stream referred to by fileDescriptor into the iovcnt
+ * buffers described by iov, filling each buffer completely before moving on
+ * to the next. At most 16 buffers may be passed.
+ *
+ * Behaves like a single read() into one buffer as large as all of them: on
+ * success, the total number of bytes read is returned, which may be smaller
+ * than requested. On error, -1 is returned.
+ */
+int readv(int fileDescriptor, struct iovec *iov, int iovcnt);
+
+/**
+ * Write the iovcnt buffers described by iov, in order, to the file or stream
+ * referred to by fileDescriptor. At most 16 buffers may be passed.
+ *
+ * Behaves like a single write() of the buffers' concatenation: on success,
+ * the total number of bytes written is returned. If an error stops the write
+ * after some bytes have been written, that number is returned instead, as
+ * with readv(); otherwise -1 is returned.
+ */
+int writev(int fileDescriptor, struct iovec *iov, int iovcnt);
+
 /**
  * Close a file descriptor, so that it no longer refers to any file or stream
  * and may be reused.
@@ -200,6 +419,116 @@ int write(int fileDescriptor, void *buffer, int count);
  */
 int close(int fileDescriptor);
 
+/**
+ * Return a new file descriptor, the lowest one not currently open, that refers
+ * to the same open file as fileDescriptor. The two descriptors share the file
+ * position: reading or writing through one advances it for both.
+ *
+ * Returns the new file descriptor, or -1 if fileDescriptor is invalid or the
+ * process has too many open files.
+ */
+int dup(int fileDescriptor);
+
+/**
+ * Like dup(), but use newFileDescriptor as the new descriptor, closing it
+ * first if it is open. If the two descriptors are equal, does nothing.
+ *
+ * Returns newFileDescriptor, or -1 if an error occurred.
+ */
+int dup2(int fileDescriptor, int newFileDescriptor);
+
+/**
+ * Create a pipe, a one-way stream buffered in kernel memory, and store a file
+ * descriptor for its read end in fds[0] and one for its write end in fds[1].
+ *
+ * Reading from an empty pipe waits until data is written, then returns what
+ * is available. Once every descriptor for the write end is closed, reading
+ * from an empty pipe returns 0. Writing to a full pipe waits for a reader to
+ * make room; if every descriptor for the read end is closed, write() returns
+ * -1.
+ *
+ * Processes started with exec() inherit file descriptors 0 and 1, so a parent
+ * can connect a child's input or output to a pipe using dup2() before calling
+ * exec().
+ *
+ * Returns 0 on success, or -1 if an error occurred.
+ */
+int pipe(int fds[2]);
+
+/* ASYNCHRONOUS I/O: ring_setup(), ring_enter() */
+
+/* Request opcodes for struct io_sqe. */
+#define IO_NOP		0	/* does nothing; result is 0 */
+#define IO_READ		1	/* read(fd, buffer, count) */
+#define IO_WRITE	2	/* write(fd, buffer, count) */
+#define IO_OPEN		3	/* open(buffer) */
+#define IO_CLOSE	4	/* close(fd) */
+
+/* A request. If offset is -1, a read or write uses and advances the file
+ * position, as read() and write() do; otherwise it transfers at offset and
+ * leaves the file position alone.
+ */
+struct io_sqe {
+    int opcode;
+    int fd;
+    void *buffer;
+    int count;
+    int offset;
+    int user_data;	/* copied to the request's completion */
+};
+
+/* A completed request. result is what the equivalent syscall would have
+ * returned.
+ */
+struct io_cqe {
+    int user_data;
+    int result;
+};
+
+/* The indices of a ring. Indices count entries from the start and are never
+ * wrapped; entry i of a queue is at index i & (entries - 1). The kernel
+ * advances sq_head and cq_tail, and the process advances sq_tail and cq_head.
+ */
+struct io_ring {
+    int sq_head;
+    int sq_tail;
+    int cq_head;
+    int cq_tail;
+};
+
+/**
+ * Set up the process's asynchronous I/O ring: the indices in ring, and
+ * submission and completion queues of entries entries each, which must be a
+ * power of two no larger than 64. The indices are set to 0. A process can set
+ * up only one ring.
+ *
+ * To issue requests, fill in entries sq[sq_tail & (entries - 1)], advance
+ * sq_tail, and call ring_enter(). Kernel threads carry out the requests
+ * concurrently, in no particular order, and post a completion for each one at
+ * cq[cq_tail & (entries - 1)] before advancing cq_tail. Completions can be
+ * reaped at any time, without a syscall, by reading them while cq_head !=
+ * cq_tail and advancing cq_head.
+ *
+ * Requests still in progress when the process exits are finished first; a
+ * request waiting on a pipe gives up and completes with -1.
+ *
+ * Returns 0 on success, or -1 if an error occurred.
+ */
+int ring_setup(struct io_ring *ring, struct io_sqe *sq, struct io_cqe *cq,
+	       int entries);
+
+/**
+ * Submit up to toSubmit new requests from the submission queue, then wait
+ * until at least minComplete completions are waiting to be reaped, or until no
+ * requests are in progress. A request is only submitted if its completion is
+ * sure to find a free slot, so fewer requests than are queued may be
+ * submitted while completions are left unreaped; the rest can be submitted by
+ * a later call.
+ *
+ * Returns the number of requests submitted, or -1 if an error occurred.
+ */
+int ring_enter(int toSubmit, int minComplete);
+
 /**
  * Delete a file from the file system. If no processes have the file open, the
  * file is deleted immediately and the space it was using is made available for
@@ -215,19 +544,72 @@ int close(int fileDescriptor);
 int unlink(char *name);
 
 /**
- * Map the file referenced by fileDescriptor into memory at address. The file
- * may be as large as 0x7FFFFFFF bytes.
- * 
- * To maintain consistency, further calls to read() and write() on this file
- * descriptor will fail (returning -1) until the file descriptor is closed.
+ * Map the file referenced by fileDescriptor into memory at address, which
+ * must be page aligned and must not overlap the program, its heap, its
+ * stack, or another mapping. Pages are read from the file the first time they are used.
  *
- * When the file descriptor is closed, all remaining dirty pages of the map
- * will be flushed to disk and the map will be removed.
+ * The mapping is shared with the file: stores to the mapped memory are
+ * written back to the file when a page is evicted, when the mapping is
+ * removed with munmap(), and when the process exits. The mapping stays valid
+ * after fileDescriptor is closed.
  *
  * Returns the length of the file on success, or -1 if an error occurred.
  */
 int mmap(int fileDescriptor, char *address);
 
+/**
+ * Remove the mapping created by mmap() at address, writing its dirty pages
+ * back to the file. Accesses to the unmapped range afterwards are errors.
+ *
+ * Returns 0 on success, or -1 if no mapping starts at address.
+ */
+int munmap(char *address);
+
+/**
+ * Move the end of the heap, which starts right after the program's argument
+ * page, by increment bytes; a negative increment gives memory back. New heap
+ * memory reads as zero, and is only given physical pages as it is first
+ * used. The heap may not grow into a mapping or to within a guard page of
+ * the stack, which starts at the top of the address space and grows down on
+ * its own as it is used. Only available when virtual memory is enabled.
+ *
+ * Returns the previous end of the heap, or (void *) -1 if an error occurred.
+ */
+void *sbrk(int increment);
+
+/**
+ * Return the ID of the shared memory segment identified by key, creating a
+ * segment of size bytes if there is none. A key of 0 always creates a new
+ * segment, which only processes given its ID can use. A new segment reads as
+ * zero.
+ *
+ * Returns the segment's ID, or -1 if size is not positive or is larger than
+ * the existing segment.
+ */
+int shmget(int key, int size);
+
+/**
+ * Map the shared memory segment with the specified ID into the address space
+ * of the current process, at an address the kernel chooses. Every process
+ * attached to a segment sees the others' stores to it at once. A process may
+ * only attach a segment once; a child made by fork() inherits its parent's
+ * attachments, at the same addresses.
+ *
+ * Returns the address of the segment, or (void *) -1 if there is no such
+ * segment, it is already attached, or there is no room for it.
+ */
+void *shmat(int id);
+
+/**
+ * Detach the shared memory segment mapped at address, which must be the
+ * address returned by shmat(). exit() detaches every segment. A segment is
+ * destroyed, and its contents lost, when the last process attached to it
+ * detaches.
+ *
+ * Returns 0 on success, or -1 if no segment is attached at address.
+ */
+int shmdt(void *address);
+
 /**
  * Attempt to initiate a new connection to the specified port on the specified
  * remote host, and return a new file descriptor referring to the connection.
@@ -0,0 +1,70 @@
+/*
+ * thread1.c
+ *
+ * Test thread_create and thread_join: several threads add their share to
+ * a global array, each on its own stack, and return a status that the main
+ * thread collects with thread_join.  A thread cannot be joined twice.
+ *
+ * Exits with status 0 on success, or with the number of the check that
+ * failed.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define NTHREADS	4
+#define NPERTHREAD	100
+
+int sums[NTHREADS];
+
+void
+worker (void *arg)
+{
+    int id = (int) arg;
+    int i, local[NPERTHREAD];
+
+    // use the thread's own stack, then publish the result
+    for (i = 0; i < NPERTHREAD; i++) {
+	local[i] = id * NPERTHREAD + i;
+    }
+    for (i = 0; i < NPERTHREAD; i++) {
+	sums[id] += local[i];
+    }
+    thread_exit (100 + id);
+}
+
+int
+main (int argc, char *argv[])
+{
+    int tids[NTHREADS];
+    int i, status, expected;
+
+    for (i = 0; i < NTHREADS; i++) {
+	tids[i] = thread_create (worker, (void *) i);
+	if (tids[i] <= 0) {
+	    printf ("...failed (thread_create returned %d)\n", tids[i]);
+	    exit (1);
+	}
+    }
+
+    for (i = 0; i < NTHREADS; i++) {
+	if (thread_join (tids[i], &status) != 0 || status != 100 + i) {
+	    printf ("...failed (join of thread %d)\n", tids[i]);
+	    exit (2);
+	}
+	expected = NPERTHREAD * (i * NPERTHREAD) + NPERTHREAD * (NPERTHREAD - 1) / 2;
+	if (sums[i] != expected) {
+	    printf ("...failed (thread %d summed %d)\n", i, sums[i]);
+	    exit (3);
+	}
+    }
+
+    if (thread_join (tids[0], &status) != -1) {
+	printf ("...failed (joined a thread twice)\n");
+	exit (4);
+    }
+
+    printf ("...passed\n");
+    return 0;
+}
@@ -0,0 +1,54 @@
+/*
+ * thread2.c
+ *
+ * Test exit from a multithreaded process.  One thread blocks reading an
+ * empty pipe, one spins in user code, and the main thread blocks in
+ * thread_join waiting for the spinner.  A last thread then calls exit,
+ * which must stop all of the others, wherever they are.
+ *
+ * The process should exit with status 42.  If the exit does not stop the
+ * other threads, Nachos never halts.
+ */
+
+#include "syscall.h"
+
+int fds[2];
+
+void
+reader (void *arg)
+{
+    char c;
+
+    // nobody ever writes to the pipe
+    read (fds[0], &c, 1);
+    exit (1);
+}
+
+void
+spinner (void *arg)
+{
+    while (1)
+	;
+}
+
+void
+exiter (void *arg)
+{
+    exit (42);
+}
+
+int
+main (int argc, char *argv[])
+{
+    int spin;
+
+    if (pipe (fds) != 0) {
+	exit (2);
+    }
+    thread_create (reader, 0);
+    spin = thread_create (spinner, 0);
+    thread_create (exiter, 0);
+
+    thread_join (spin, 0);
+    exit (3);
+}
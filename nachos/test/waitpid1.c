@@ -0,0 +1,70 @@
+/*
+ * waitpid1.c
+ *
+ * Test waitpid: waiting for any child reaps each exited child once, WNOHANG
+ * polls without blocking, and a pid is reused once its process is reaped.
+ * Runs exit1.coff, which exits with status 123.
+ *
+ * Exits with status 0 on success, or with the number of the check that
+ * failed.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define NCHILDREN 3
+
+int
+main (int argc, char *argv[])
+{
+    char *prog = "exit1.coff";
+    int pids[NCHILDREN];
+    int i, j, pid, last, status, r;
+
+    for (i = 0; i < NCHILDREN; i++) {
+	pids[i] = exec (prog, 0, 0);
+	if (pids[i] < 0) {
+	    printf ("...failed (exec)\n");
+	    exit (1);
+	}
+    }
+
+    // each child is reaped exactly once, in whatever order they exit
+    for (i = 0; i < NCHILDREN; i++) {
+	status = 0;
+	pid = waitpid (-1, &status, 0);
+	for (j = 0; j < NCHILDREN; j++) {
+	    if (pids[j] == pid) {
+		break;
+	    }
+	}
+	if (j == NCHILDREN || status != 123) {
+	    printf ("...failed (waitpid returned %d, status %d)\n", pid, status);
+	    exit (2);
+	}
+	pids[j] = -2;
+	last = pid;
+    }
+    if (waitpid (-1, 0, 0) != -1 || waitpid (-1, 0, WNOHANG) != -1) {
+	printf ("...failed (waitpid with no children)\n");
+	exit (3);
+    }
+
+    // the last pid reaped is the first reused
+    pid = exec (prog, 0, 0);
+    if (pid != last) {
+	printf ("...failed (exec after reaping)\n");
+	exit (4);
+    }
+    while ((r = waitpid (pid, &status, WNOHANG)) == 0) {
+	// spin until the timer lets the child run
+    }
+    if (r != pid || status != 123) {
+	printf ("...failed (WNOHANG poll returned %d)\n", r);
+	exit (5);
+    }
+
+    printf ("waitpid1 passed\n");
+    return 0;
+}
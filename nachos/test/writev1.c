@@ -0,0 +1,67 @@
+/*
+ * writev1.c
+ *
+ * Test writev and readv: buffers are gathered into the file in order and
+ * scattered back out of it in order, and a writev whose second buffer is
+ * invalid still reports the bytes taken from the first.
+ *
+ * Exits with status 0 on success, or with the number of the check that
+ * failed.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+int
+main (int argc, char *argv[])
+{
+    char *head = "gather ", *tail = "scatter";
+    char buf1[7], buf2[7];
+    struct iovec iov[2];
+    int fd, r;
+
+    fd = creat ("writev1.out");
+    if (fd < 0) {
+	printf ("...failed (creat)\n");
+	exit (1);
+    }
+
+    iov[0].iov_base = head;
+    iov[0].iov_len = 7;
+    iov[1].iov_base = tail;
+    iov[1].iov_len = 7;
+    r = writev (fd, iov, 2);
+    if (r != 14) {
+	printf ("...failed (writev returned %d)\n", r);
+	exit (2);
+    }
+
+    // an invalid second buffer ends the write after the first
+    iov[1].iov_base = (void *) 0x7fff0000;
+    r = writev (fd, iov, 2);
+    if (r != 7) {
+	printf ("...failed (partial writev returned %d)\n", r);
+	exit (3);
+    }
+    close (fd);
+
+    fd = open ("writev1.out");
+    iov[0].iov_base = buf1;
+    iov[1].iov_base = buf2;
+    r = readv (fd, iov, 2);
+    if (r != 14 || strncmp (buf1, head, 7) != 0 || strncmp (buf2, tail, 7) != 0) {
+	printf ("...failed (readv returned %d)\n", r);
+	exit (4);
+    }
+    r = readv (fd, iov, 2);
+    if (r != 7 || strncmp (buf1, head, 7) != 0) {
+	printf ("...failed (second readv returned %d)\n", r);
+	exit (5);
+    }
+    close (fd);
+    unlink ("writev1.out");
+
+    printf ("writev1 passed\n");
+    return 0;
+}
@@ -36,7 +36,10 @@ public class Alarm {
 		
 		long time = Machine.timer().getTime();
 		while(!timeMap.isEmpty() && timeMap.firstKey() <= time) {
-			timeMap.pollFirstEntry().getValue().ready();
+			for (KThread thread : timeMap.pollFirstEntry().getValue()) {
+				wakeTimes.remove(thread);
+				thread.ready();
+			}
 		}
 		
 		Machine.interrupt().restore(intStatus);
@@ -65,12 +68,59 @@ public class Alarm {
 		*/
 		boolean intStatus = Machine.interrupt().disable();
 		
-		long wakeTime = Machine.timer().getTime() + x;
-		timeMap.put(wakeTime, KThread.currentThread());
+		schedule(KThread.currentThread(), Machine.timer().getTime() + x);
 		KThread.sleep();
 		
 		Machine.interrupt().restore(intStatus);
 	}
+
+	/**
+	 * Arrange for <i>thread</i> to be made ready by the first timer interrupt
+	 * at or after <i>wakeTime</i>. Does not block; the caller is responsible
+	 * for putting the thread to sleep. Interrupts must be disabled.
+	 * 
+	 * @param thread the thread to wake.
+	 * @param wakeTime the earliest absolute time at which to wake it.
+	 */
+	void schedule(KThread thread, long wakeTime) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		Lib.assertTrue(!wakeTimes.containsKey(thread));
+
+		LinkedList<KThread> threads = timeMap.get(wakeTime);
+		if (threads == null) {
+			threads = new LinkedList<KThread>();
+			timeMap.put(wakeTime, threads);
+		}
+		threads.add(thread);
+		wakeTimes.put(thread, wakeTime);
+	}
+
+	/**
+	 * Remove <i>thread</i> from the set of threads waiting for the timer,
+	 * without waking it. Interrupts must be disabled.
+	 * 
+	 * @param thread the thread to remove.
+	 * @return <tt>true</tt> if the thread was still waiting, or <tt>false</tt>
+	 * if it has already been woken by the timer (or was never waiting).
+	 */
+	boolean cancel(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Long wakeTime = wakeTimes.remove(thread);
+		if (wakeTime == null)
+			return false;
+
+		LinkedList<KThread> threads = timeMap.get(wakeTime);
+		threads.remove(thread);
+		if (threads.isEmpty())
+			timeMap.remove(wakeTime);
+
+		return true;
+	}
 	
-	private static TreeMap<Long, KThread> timeMap = new TreeMap<Long, KThread>();
+	/** Sleeping threads, grouped by the time at which they should wake. */
+	private TreeMap<Long, LinkedList<KThread>> timeMap = new TreeMap<Long, LinkedList<KThread>>();
+
+	/** The wake time of every thread in <tt>timeMap</tt>. */
+	private HashMap<KThread, Long> wakeTimes = new HashMap<KThread, Long>();
 }
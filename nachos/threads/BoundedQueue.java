@@ -0,0 +1,271 @@
+package nachos.threads;
+
+import java.util.Collection;
+import java.util.LinkedList;
+import nachos.machine.*;
+
+/**
+ * A synchronized FIFO queue with a fixed capacity, stored in a ring buffer.
+ * Unlike <tt>SynchList</tt>, adding an element never allocates memory, and
+ * producers are held back (or turned away) when the queue is full.
+ *
+ * <p>
+ * Each operation comes in a blocking form (<tt>put()</tt>/<tt>take()</tt>), a
+ * non-blocking form (<tt>offer()</tt>/<tt>poll()</tt>), and a timed form
+ * that gives up after a number of clock ticks.
+ */
+public class BoundedQueue {
+	/**
+	 * Allocate a new bounded queue.
+	 *
+	 * @param capacity the maximum number of elements the queue can hold. Must
+	 * be positive.
+	 */
+	public BoundedQueue(int capacity) {
+		Lib.assertTrue(capacity > 0);
+
+		elements = new Object[capacity];
+		lock = new Lock();
+		notEmpty = new Condition2(lock);
+		notFull = new Condition2(lock);
+	}
+
+	/**
+	 * Add the specified object to the end of the queue, waiting for room if
+	 * the queue is full.
+	 *
+	 * @param o the object to add. Must not be <tt>null</tt>.
+	 */
+	public void put(Object o) {
+		Lib.assertTrue(o != null);
+
+		lock.acquire();
+		while (count == elements.length)
+			notFull.sleep();
+		enqueue(o);
+		lock.release();
+	}
+
+	/**
+	 * Add the specified object to the end of the queue if there is room.
+	 *
+	 * @param o the object to add. Must not be <tt>null</tt>.
+	 * @return <tt>true</tt> if the object was added, or <tt>false</tt> if the
+	 * queue was full.
+	 */
+	public boolean offer(Object o) {
+		Lib.assertTrue(o != null);
+
+		lock.acquire();
+		boolean added = (count < elements.length);
+		if (added)
+			enqueue(o);
+		lock.release();
+
+		return added;
+	}
+
+	/**
+	 * Add the specified object to the end of the queue, waiting at most
+	 * <i>timeout</i> ticks for room.
+	 *
+	 * @param o the object to add. Must not be <tt>null</tt>.
+	 * @param timeout the maximum number of clock ticks to wait.
+	 * @return <tt>true</tt> if the object was added, or <tt>false</tt> if the
+	 * queue was still full when the timeout expired.
+	 */
+	public boolean offer(Object o, long timeout) {
+		Lib.assertTrue(o != null);
+
+		long deadline = Machine.timer().getTime() + timeout;
+
+		lock.acquire();
+		while (count == elements.length) {
+			long remaining = deadline - Machine.timer().getTime();
+			if (remaining <= 0) {
+				lock.release();
+				return false;
+			}
+			notFull.sleepFor(remaining);
+		}
+		enqueue(o);
+		lock.release();
+
+		return true;
+	}
+
+	/**
+	 * Remove an object from the front of the queue, blocking until the queue is
+	 * non-empty if necessary.
+	 *
+	 * @return the element removed from the front of the queue.
+	 */
+	public Object take() {
+		lock.acquire();
+		while (count == 0)
+			notEmpty.sleep();
+		Object o = dequeue();
+		lock.release();
+
+		return o;
+	}
+
+	/**
+	 * Remove an object from the front of the queue if one is available.
+	 *
+	 * @return the element removed from the front of the queue, or
+	 * <tt>null</tt> if the queue was empty.
+	 */
+	public Object poll() {
+		lock.acquire();
+		Object o = (count > 0) ? dequeue() : null;
+		lock.release();
+
+		return o;
+	}
+
+	/**
+	 * Remove an object from the front of the queue, waiting at most
+	 * <i>timeout</i> ticks for one to arrive.
+	 *
+	 * @param timeout the maximum number of clock ticks to wait.
+	 * @return the element removed from the front of the queue, or
+	 * <tt>null</tt> if the queue was still empty when the timeout expired.
+	 */
+	public Object poll(long timeout) {
+		long deadline = Machine.timer().getTime() + timeout;
+
+		lock.acquire();
+		while (count == 0) {
+			long remaining = deadline - Machine.timer().getTime();
+			if (remaining <= 0) {
+				lock.release();
+				return null;
+			}
+			notEmpty.sleepFor(remaining);
+		}
+		Object o = dequeue();
+		lock.release();
+
+		return o;
+	}
+
+	/**
+	 * Remove up to <i>max</i> objects from the front of the queue and add them,
+	 * in order, to <i>c</i>. Does not block; returns 0 if the queue is empty.
+	 *
+	 * @param c the collection to add the removed elements to.
+	 * @param max the maximum number of elements to remove.
+	 * @return the number of elements removed.
+	 */
+	public int drainTo(Collection<Object> c, int max) {
+		lock.acquire();
+
+		int amount = Math.min(max, count);
+		for (int i = 0; i < amount; i++) {
+			c.add(elements[head]);
+			elements[head] = null;
+			head = (head + 1) % elements.length;
+		}
+		count -= amount;
+
+		if (amount > 0)
+			notFull.wakeAll();
+
+		lock.release();
+
+		return amount;
+	}
+
+	/**
+	 * Return the number of elements currently in the queue. The value may be
+	 * stale by the time the caller uses it.
+	 *
+	 * @return the number of elements in the queue.
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Return the maximum number of elements the queue can hold.
+	 *
+	 * @return the capacity of the queue.
+	 */
+	public int capacity() {
+		return elements.length;
+	}
+
+	private void enqueue(Object o) {
+		elements[(head + count) % elements.length] = o;
+		count++;
+		notEmpty.wake();
+	}
+
+	private Object dequeue() {
+		Object o = elements[head];
+		elements[head] = null;
+		head = (head + 1) % elements.length;
+		count--;
+		notFull.wake();
+
+		return o;
+	}
+
+	private static class PingTest implements Runnable {
+		PingTest(BoundedQueue ping, BoundedQueue pong) {
+			this.ping = ping;
+			this.pong = pong;
+		}
+
+		public void run() {
+			for (int i = 0; i < 10; i++)
+				pong.put(ping.take());
+		}
+
+		private BoundedQueue ping;
+
+		private BoundedQueue pong;
+	}
+
+	/**
+	 * Test that this module is working.
+	 */
+	public static void selfTest() {
+		BoundedQueue ping = new BoundedQueue(2);
+		BoundedQueue pong = new BoundedQueue(2);
+
+		new KThread(new PingTest(ping, pong)).setName("ping").fork();
+
+		for (int i = 0; i < 10; i++) {
+			Integer o = new Integer(i);
+			ping.put(o);
+			Lib.assertTrue(pong.take() == o);
+		}
+
+		// backpressure, timeouts and batch drain
+		Lib.assertTrue(ping.offer("a") && ping.offer("b"));
+		Lib.assertTrue(!ping.offer("c"));
+		Lib.assertTrue(!ping.offer("c", 1000));
+
+		LinkedList<Object> drained = new LinkedList<Object>();
+		Lib.assertTrue(ping.drainTo(drained, 5) == 2);
+		Lib.assertTrue(drained.getFirst().equals("a"));
+		Lib.assertTrue(ping.poll() == null);
+		Lib.assertTrue(ping.poll(1000) == null);
+	}
+
+	private Object[] elements;
+
+	/** Index of the element at the front of the queue. */
+	private int head = 0;
+
+	/** Number of elements in the queue. */
+	private int count = 0;
+
+	private Lock lock;
+
+	private Condition2 notEmpty;
+
+	private Condition2 notFull;
+}
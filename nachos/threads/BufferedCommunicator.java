@@ -0,0 +1,201 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A channel of words, like a <tt>Communicator</tt>, backed by a bounded ring
+ * buffer. Speakers only block when the buffer is full, and listeners only
+ * block when it is empty, so a producer and a consumer no longer rendezvous
+ * on every word.
+ *
+ * <p>
+ * It is not a <tt>Communicator</tt>: <tt>speak()</tt> returns before any
+ * listener has the word, and <tt>listen(int[])</tt> may return fewer words
+ * than requested, so it cannot stand in where a rendezvous is expected.
+ *
+ * <p>
+ * Words are received in the order they were spoken. Each instance has its own
+ * lock and condition variables.
+ */
+public class BufferedCommunicator {
+	/**
+	 * Allocate a new buffered communicator with the default capacity.
+	 */
+	public BufferedCommunicator() {
+		this(defaultCapacity);
+	}
+
+	/**
+	 * Allocate a new buffered communicator.
+	 *
+	 * @param capacity the maximum number of words buffered between speakers
+	 * and listeners. Must be positive.
+	 */
+	public BufferedCommunicator(int capacity) {
+		Lib.assertTrue(capacity > 0);
+
+		buffer = new int[capacity];
+	}
+
+	/**
+	 * Put <i>word</i> in the buffer, waiting for room if the buffer is full.
+	 * Returns as soon as the word is buffered.
+	 *
+	 * @param word the integer to transfer.
+	 */
+	public void speak(int word) {
+		lock.acquire();
+
+		while (count == buffer.length)
+			notFull.sleep();
+
+		buffer[(head + count) % buffer.length] = word;
+		count++;
+
+		notEmpty.wake();
+
+		lock.release();
+	}
+
+	/**
+	 * Remove the oldest word from the buffer, waiting for one to be spoken if
+	 * the buffer is empty.
+	 *
+	 * @return the integer transferred.
+	 */
+	public int listen() {
+		lock.acquire();
+
+		while (count == 0)
+			notEmpty.sleep();
+
+		int word = buffer[head];
+		head = (head + 1) % buffer.length;
+		count--;
+
+		notFull.wake();
+
+		lock.release();
+
+		return word;
+	}
+
+	/**
+	 * Put every word in <i>words</i> in the buffer, in order. Copies as many
+	 * words as fit each time the lock is held, and waits for room only when
+	 * the buffer is full.
+	 *
+	 * @param words the integers to transfer.
+	 */
+	public void speak(int[] words) {
+		int i = 0;
+
+		lock.acquire();
+
+		while (i < words.length) {
+			while (count == buffer.length)
+				notFull.sleep();
+
+			int amount = Math.min(words.length - i, buffer.length - count);
+			for (int j = 0; j < amount; j++)
+				buffer[(head + count + j) % buffer.length] = words[i + j];
+			count += amount;
+			i += amount;
+
+			notEmpty.wakeAll();
+		}
+
+		lock.release();
+	}
+
+	/**
+	 * Remove up to <tt>words.length</tt> buffered words. Waits only until at
+	 * least one word is available, then takes as many as are buffered.
+	 *
+	 * @param words the array where the received words will be stored.
+	 * @return the number of words received, which is at least one unless
+	 * <tt>words</tt> is empty.
+	 */
+	public int listen(int[] words) {
+		if (words.length == 0)
+			return 0;
+
+		lock.acquire();
+
+		while (count == 0)
+			notEmpty.sleep();
+
+		int amount = Math.min(words.length, count);
+		for (int j = 0; j < amount; j++)
+			words[j] = buffer[(head + j) % buffer.length];
+		head = (head + amount) % buffer.length;
+		count -= amount;
+
+		notFull.wakeAll();
+
+		lock.release();
+
+		return amount;
+	}
+
+	/**
+	 * Return the maximum number of words this communicator buffers.
+	 *
+	 * @return the capacity of the buffer.
+	 */
+	public int getCapacity() {
+		return buffer.length;
+	}
+
+	private static class PingTest implements Runnable {
+		PingTest(BufferedCommunicator channel) {
+			this.channel = channel;
+		}
+
+		public void run() {
+			for (int i = 0; i < 10; i++)
+				channel.speak(i);
+
+			channel.speak(new int[] { 10, 11, 12, 13, 14, 15, 16, 17, 18, 19 });
+		}
+
+		private BufferedCommunicator channel;
+	}
+
+	/**
+	 * Test that this module is working.
+	 */
+	public static void selfTest() {
+		BufferedCommunicator channel = new BufferedCommunicator(4);
+
+		new KThread(new PingTest(channel)).setName("speaker").fork();
+
+		for (int i = 0; i < 10; i++)
+			Lib.assertTrue(channel.listen() == i);
+
+		int[] words = new int[3];
+		int next = 10;
+		while (next < 20) {
+			int amount = channel.listen(words);
+			for (int j = 0; j < amount; j++)
+				Lib.assertTrue(words[j] == next++);
+		}
+	}
+
+	/** The capacity used by the no-argument constructor. */
+	public static final int defaultCapacity = 16;
+
+	private int[] buffer;
+
+	/** Index of the oldest buffered word. */
+	private int head = 0;
+
+	/** Number of buffered words. */
+	private int count = 0;
+
+	private Lock lock = new Lock();
+
+	private Condition2 notEmpty = new Condition2(lock);
+
+	private Condition2 notFull = new Condition2(lock);
+}
@@ -38,7 +38,6 @@ public class Communicator {
 		}
 		someoneIsSpeaking = true;
 		this.word = word;
-		System.out.println(KThread.currentThread().getName()+"speaks the word: "+word);
 		
 		//wake up a listener if they are waiting for someone to speak
 		condHasSpeaker.wake();
@@ -70,7 +69,6 @@ public class Communicator {
 		}
 
 		int heardWord = this.word;
-		System.out.println("word is listened: "+word);
 		someoneIsSpeaking = false;//must put here, in case of multiple listeners
 		
 		//acknowledge to the speaker that you've heard them
@@ -80,11 +78,35 @@ public class Communicator {
 		
 		return heardWord;
 	}
-	
-	private static Lock conditionLock = new Lock();
-	private static Condition2 condNoSpeaker = new Condition2(conditionLock);
-	private static Condition2 condHasSpeaker = new Condition2(conditionLock);
-	private static Condition2 condAck = new Condition2(conditionLock);
-	private static boolean someoneIsSpeaking = false;
+
+	/**
+	 * Transfer every word in <i>words</i>, in order. Does not return until all
+	 * of them have been received by listeners.
+	 * 
+	 * @param words the integers to transfer.
+	 */
+	public void speak(int[] words) {
+		for (int i = 0; i < words.length; i++)
+			speak(words[i]);
+	}
+
+	/**
+	 * Receive <tt>words.length</tt> words, in the order they were spoken.
+	 * 
+	 * @param words the array where the received words will be stored.
+	 * @return the number of words received.
+	 */
+	public int listen(int[] words) {
+		for (int i = 0; i < words.length; i++)
+			words[i] = listen();
+
+		return words.length;
+	}
+
+	private Lock conditionLock = new Lock();
+	private Condition2 condNoSpeaker = new Condition2(conditionLock);
+	private Condition2 condHasSpeaker = new Condition2(conditionLock);
+	private Condition2 condAck = new Condition2(conditionLock);
+	private boolean someoneIsSpeaking = false;
 	private int word;
 }
@@ -32,21 +32,54 @@ public class Condition2 {
 	public void sleep() {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 		
-		
 		boolean intStatus = Machine.interrupt().disable();
 		
-		waitQueue.waitForAccess(KThread.currentThread());//waitForAccess will check if interrupt is disabled
+		append(new Waiter(KThread.currentThread(), false));
 		
-		conditionLock.release();//(if without interrupt disable)lock release should after adding to waitQueue because otherwise could switch to another thread
-		//and mix up the order in waitQueue
+		conditionLock.release();//(if without interrupt disable)lock release should after queueing because otherwise could switch to another thread
+		//and mix up the order of the waiters
 		
 		KThread.sleep();
 		
 		Machine.interrupt().restore(intStatus);
 		
 		conditionLock.acquire();
-		
-		
+	}
+
+	/**
+	 * Atomically release the associated lock and go to sleep on this condition
+	 * variable until another thread wakes it using <tt>wake()</tt>, or until
+	 * at least <i>timeout</i> ticks have passed. The current thread must hold
+	 * the associated lock. The thread will automatically reacquire the lock
+	 * before <tt>sleepFor()</tt> returns. Callers should recheck both their
+	 * condition and the time on return.
+	 * 
+	 * @param timeout the maximum number of clock ticks to sleep.
+	 */
+	public void sleepFor(long timeout) {
+		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+		if (timeout <= 0)
+			return;
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		Waiter waiter = new Waiter(KThread.currentThread(), true);
+		append(waiter);
+		ThreadedKernel.alarm.schedule(waiter.thread, Machine.timer().getTime()
+				+ timeout);
+
+		conditionLock.release();
+
+		KThread.sleep();
+
+		// if we are still queued, the alarm woke us; take ourselves out
+		if (waiter.queued)
+			unlink(waiter);
+
+		Machine.interrupt().restore(intStatus);
+
+		conditionLock.acquire();
 	}
 
 	/**
@@ -58,9 +91,9 @@ public class Condition2 {
 		
 		boolean intStatus = Machine.interrupt().disable();
 		
-		KThread thread = waitQueue.nextThread();
-		if (thread != null) {
-			thread.ready();
+		while (first != null) {
+			if (wakeWaiter(first))
+				break;
 		}
 		
 		Machine.interrupt().restore(intStatus);
@@ -75,14 +108,75 @@ public class Condition2 {
 		
 		boolean intStatus = Machine.interrupt().disable();
 		
-		KThread thread;
-		while((thread = waitQueue.nextThread()) != null) {
-			thread.ready();
-			
+		while (first != null) {
+			wakeWaiter(first);
 		}
 		
 		Machine.interrupt().restore(intStatus);
 	}
+
+	/**
+	 * Unlink a waiter and make its thread ready, unless it is a timed sleeper
+	 * that the alarm has already woken and that has not yet run to unlink
+	 * itself.
+	 * 
+	 * @return <tt>true</tt> if the thread was woken by this call.
+	 */
+	private boolean wakeWaiter(Waiter waiter) {
+		unlink(waiter);
+
+		if (waiter.timed && !ThreadedKernel.alarm.cancel(waiter.thread))
+			return false;
+
+		waiter.thread.ready();
+		return true;
+	}
+
+	private void append(Waiter waiter) {
+		waiter.prev = last;
+		if (last != null)
+			last.next = waiter;
+		else
+			first = waiter;
+		last = waiter;
+		waiter.queued = true;
+	}
+
+	private void unlink(Waiter waiter) {
+		if (waiter.prev != null)
+			waiter.prev.next = waiter.next;
+		else
+			first = waiter.next;
+		if (waiter.next != null)
+			waiter.next.prev = waiter.prev;
+		else
+			last = waiter.prev;
+		waiter.prev = waiter.next = null;
+		waiter.queued = false;
+	}
+
+	/**
+	 * A thread sleeping on this condition variable, in a doubly-linked list
+	 * in the order the threads went to sleep, so that a timed sleeper woken
+	 * by the alarm can remove itself in constant time.
+	 */
+	private static class Waiter {
+		Waiter(KThread thread, boolean timed) {
+			this.thread = thread;
+			this.timed = timed;
+		}
+
+		KThread thread;
+
+		/** <tt>true</tt> if the thread is in <tt>sleepFor()</tt>. */
+		boolean timed;
+
+		/** <tt>true</tt> while the waiter is in the list. */
+		boolean queued = false;
+
+		Waiter prev = null, next = null;
+	}
+
 	private static class PingTest implements Runnable {
 		PingTest() {
 			
@@ -112,9 +206,42 @@ public class Condition2 {
 			cc.listen();
 		}
 		
+		timeoutTest();
+	}
+
+	/**
+	 * Test that timed sleepers which time out leave nothing behind, and that a
+	 * later <tt>wake()</tt> still reaches an untimed sleeper.
+	 */
+	private static void timeoutTest() {
+		final Lock lock = new Lock();
+		final Condition2 condition = new Condition2(lock);
+
+		lock.acquire();
+		for (int i = 0; i < 50; i++)
+			condition.sleepFor(10);
+		Lib.assertTrue(condition.first == null);
+
+		final boolean[] woken = new boolean[1];
+		KThread sleeper = new KThread(new Runnable() {
+			public void run() {
+				lock.acquire();
+				condition.sleep();
+				woken[0] = true;
+				lock.release();
+			}
+		}).setName("untimed sleeper");
+		sleeper.fork();
+		// let the sleeper queue behind a timed sleeper that times out
+		condition.sleepFor(100);
+		condition.wake();
+		lock.release();
+
+		sleeper.join();
+		Lib.assertTrue(woken[0] && condition.first == null);
 	}
 	private Lock conditionLock;
-	private ThreadQueue waitQueue = ThreadedKernel.scheduler
-			.newThreadQueue(false);
+	/** The sleeping threads, oldest first. */
+	private Waiter first = null, last = null;
 	private static Communicator cc = new Communicator();
 }
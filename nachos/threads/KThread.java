@@ -2,9 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.HashMap;
-import java.util.Map;
-
 /**
  * A KThread is a thread that can be used to execute Nachos kernel code. Nachos
  * allows multiple threads to run concurrently.
@@ -205,13 +202,9 @@ public class KThread {
 		toBeDestroyed = currentThread;
 
 		currentThread.status = statusFinished;
-		
-		if(joinMap.containsKey(currentThread)) {
-			joinMap.get(currentThread).ready();
-			joinMap.remove(currentThread);
-		}
-			
-		
+
+		currentThread.wakeJoiners();
+
 		sleep();
 	}
 
@@ -278,32 +271,158 @@ public class KThread {
 		Lib.assertTrue(status != statusReady);
 
 		status = statusReady;
-		if (this != idleThread)
+		if (this != idleThread) {
 			readyQueue.waitForAccess(this);
+			numReady++;
+		}
 
 		Machine.autoGrader().readyThread(this);
 	}
 
 	/**
 	 * Waits for this thread to finish. If this thread is already finished,
-	 * return immediately. This method must only be called once; the second call
-	 * is not guaranteed to return. This thread must not be the current thread.
+	 * return immediately. Any number of threads may join the same thread; all
+	 * of them are woken when it finishes. This thread must not be the current
+	 * thread.
 	 */
 	public void join() {
 		Lib.debug(dbgThread, "Joining to thread: " + toString());
 
 		Lib.assertTrue(this != currentThread);
-		
-		
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		if (status != statusFinished) {
+			if (joinQueue == null) {
+				joinQueue = ThreadedKernel.scheduler.newThreadQueue(true);
+				joinQueue.acquire(this);
+			}
+			joinQueue.waitForAccess(currentThread);
+			sleep();
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Waits for every one of the specified threads to finish. Threads that have
+	 * already finished are skipped immediately.
+	 * 
+	 * @param threads the threads to wait for. None may be the current thread.
+	 */
+	public static void joinAll(KThread[] threads) {
+		for (int i = 0; i < threads.length; i++)
+			threads[i].join();
+	}
+
+	/**
+	 * Waits for at least one of the specified threads to finish, and return
+	 * it. If one of them has already finished, returns immediately without
+	 * blocking.
+	 * 
+	 * @param threads the threads to wait for. None may be the current thread.
+	 * @return a thread from <tt>threads</tt> that has finished.
+	 */
+	public static KThread joinAny(KThread[] threads) {
+		Lib.assertTrue(threads.length > 0);
+
 		boolean intStatus = Machine.interrupt().disable();
-		joinMap.put(this, currentThread);
-		
+
+		for (int i = 0; i < threads.length; i++) {
+			Lib.assertTrue(threads[i] != currentThread);
+			if (threads[i].status == statusFinished) {
+				Machine.interrupt().restore(intStatus);
+				return threads[i];
+			}
+		}
+
+		JoinAnyWaiter waiter = new JoinAnyWaiter(currentThread);
+		JoinAnyNode[] nodes = new JoinAnyNode[threads.length];
+		for (int i = 0; i < threads.length; i++)
+			nodes[i] = new JoinAnyNode(waiter, threads[i]);
+
 		sleep();
-		
-			
+
+		// the finished thread already dropped its list; unhook from the rest
+		for (int i = 0; i < threads.length; i++) {
+			if (threads[i] != waiter.finished)
+				nodes[i].unlink();
+		}
+
 		Machine.interrupt().restore(intStatus);
-		
-		
+
+		return waiter.finished;
+	}
+
+	/**
+	 * Wake every thread blocked in <tt>join()</tt> or <tt>joinAny()</tt> on
+	 * this thread. Called by <tt>finish()</tt> with interrupts disabled.
+	 */
+	private void wakeJoiners() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		if (joinQueue != null) {
+			KThread thread;
+			while ((thread = joinQueue.nextThread()) != null)
+				thread.ready();
+			joinQueue = null;
+		}
+
+		for (JoinAnyNode node = anyWaiters; node != null; node = node.next) {
+			JoinAnyWaiter waiter = node.waiter;
+			if (waiter.finished == null) {
+				waiter.finished = this;
+				waiter.thread.ready();
+			}
+		}
+		anyWaiters = null;
+	}
+
+	/**
+	 * A thread blocked in <tt>joinAny()</tt>, registered with every thread it
+	 * is waiting on. The first of those to finish records itself and wakes the
+	 * waiter.
+	 */
+	private static class JoinAnyWaiter {
+		JoinAnyWaiter(KThread thread) {
+			this.thread = thread;
+		}
+
+		KThread thread;
+
+		KThread finished = null;
+	}
+
+	/**
+	 * The link between a <tt>JoinAnyWaiter</tt> and one of the threads it is
+	 * waiting on, in that thread's doubly-linked list of waiters, so that the
+	 * waiter can unhook itself from each thread in constant time.
+	 */
+	private static class JoinAnyNode {
+		JoinAnyNode(JoinAnyWaiter waiter, KThread target) {
+			this.waiter = waiter;
+			this.target = target;
+
+			next = target.anyWaiters;
+			if (next != null)
+				next.prev = this;
+			target.anyWaiters = this;
+		}
+
+		void unlink() {
+			if (prev != null)
+				prev.next = next;
+			else
+				target.anyWaiters = next;
+			if (next != null)
+				next.prev = prev;
+		}
+
+		JoinAnyWaiter waiter;
+
+		KThread target;
+
+		JoinAnyNode prev = null, next = null;
 	}
 
 	/**
@@ -331,6 +450,16 @@ public class KThread {
 		idleThread.fork();
 	}
 
+	/**
+	 * Return the number of threads waiting in the ready queue, not counting
+	 * the current thread or the idle thread.
+	 * 
+	 * @return the length of the ready queue.
+	 */
+	public static int getNumReady() {
+		return numReady;
+	}
+
 	/**
 	 * Determine the next thread to run, then dispatch the CPU to the thread
 	 * using <tt>run()</tt>.
@@ -339,6 +468,8 @@ public class KThread {
 		KThread nextThread = readyQueue.nextThread();
 		if (nextThread == null)
 			nextThread = idleThread;
+		else
+			numReady--;
 
 		nextThread.run();
 	}
@@ -439,6 +570,57 @@ public class KThread {
 		thread2.fork();
 		thread2.join();
 		new PingTest(0).run();
+
+		joinTest();
+	}
+
+	/**
+	 * Test joining one thread from several threads, joining a finished thread,
+	 * and <tt>joinAll()</tt>/<tt>joinAny()</tt>.
+	 */
+	private static void joinTest() {
+		final KThread target = new KThread(new Runnable() {
+			public void run() {
+				for (int i = 0; i < 3; i++)
+					KThread.yield();
+			}
+		}).setName("join target");
+
+		KThread[] joiners = new KThread[3];
+		for (int i = 0; i < joiners.length; i++) {
+			joiners[i] = new KThread(new Runnable() {
+				public void run() {
+					target.join();
+					Lib.assertTrue(target.status == statusFinished);
+				}
+			}).setName("joiner " + i);
+			joiners[i].fork();
+		}
+		target.fork();
+
+		Lib.assertTrue(joinAny(joiners) != null);
+		joinAll(joiners);
+
+		// joining a finished thread must return immediately
+		target.join();
+		Lib.assertTrue(joinAny(new KThread[] { target }) == target);
+
+		// the quickest worker wakes joinAny(), which unhooks from the others
+		KThread[] workers = new KThread[3];
+		for (int i = 0; i < workers.length; i++) {
+			final int yields = i * 2;
+			workers[i] = new KThread(new Runnable() {
+				public void run() {
+					for (int j = 0; j < yields; j++)
+						KThread.yield();
+				}
+			}).setName("worker " + i);
+			workers[i].fork();
+		}
+		Lib.assertTrue(joinAny(workers) == workers[0]);
+		Lib.assertTrue(workers[1].anyWaiters == null
+				&& workers[2].anyWaiters == null);
+		joinAll(workers);
 	}
 
 	private static final char dbgThread = 't';
@@ -450,7 +632,14 @@ public class KThread {
 	 */
 	public Object schedulingState = null;
 	
-	private static Map<KThread, KThread> joinMap = new HashMap<KThread, KThread>();
+	/**
+	 * Threads blocked in <tt>join()</tt> on this thread. Created on the first
+	 * join, and donates priority to this thread.
+	 */
+	private ThreadQueue joinQueue = null;
+
+	/** Threads blocked in <tt>joinAny()</tt> on a set including this thread. */
+	private JoinAnyNode anyWaiters = null;
 
 	private static final int statusNew = 0;
 
@@ -486,6 +675,9 @@ public class KThread {
 
 	private static ThreadQueue readyQueue = null;
 
+	/** The number of threads in <tt>readyQueue</tt>. */
+	private static int numReady = 0;
+
 	private static KThread currentThread = null;
 
 	private static KThread toBeDestroyed = null;
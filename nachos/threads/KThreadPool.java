@@ -0,0 +1,229 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+
+/**
+ * A pool of worker <tt>KThread</tt>s that run short kernel tasks. Forking a
+ * <tt>KThread</tt> creates a <tt>TCB</tt> and a backing Java thread; a pool
+ * pays that cost once per worker instead of once per task.
+ *
+ * <p>
+ * The pool keeps at least <i>minThreads</i> workers once they have been
+ * started, and grows up to <i>maxThreads</i> when tasks arrive while every
+ * worker is busy. Workers above the minimum exit after sitting idle for
+ * <i>idleTimeout</i> ticks. Tasks beyond what the workers can run immediately
+ * wait in a FIFO queue.
+ */
+public class KThreadPool {
+	/**
+	 * Allocate a new thread pool. No workers are started until the first task
+	 * is submitted.
+	 *
+	 * @param name the name given to worker threads, for debugging.
+	 * @param minThreads the number of workers kept even when idle.
+	 * @param maxThreads the maximum number of workers.
+	 * @param idleTimeout the number of ticks a worker above the minimum waits
+	 * for work before exiting.
+	 */
+	public KThreadPool(String name, int minThreads, int maxThreads,
+			long idleTimeout) {
+		Lib.assertTrue(minThreads >= 0 && maxThreads > 0
+				&& minThreads <= maxThreads && idleTimeout > 0);
+
+		this.name = name;
+		this.minThreads = minThreads;
+		this.maxThreads = maxThreads;
+		this.idleTimeout = idleTimeout;
+
+		lock = new Lock();
+		workAvailable = new Condition2(lock);
+	}
+
+	/**
+	 * Queue a task to be run by a worker thread. Starts a new worker if none
+	 * is idle and the pool is below its maximum size.
+	 *
+	 * @param task the task to run.
+	 * @return a <tt>Future</tt> that can be used to wait for the task.
+	 */
+	public Future submit(Runnable task) {
+		Lib.assertTrue(task != null);
+
+		Future future = new Future(task);
+
+		lock.acquire();
+		Lib.assertTrue(!shutdown);
+
+		tasks.add(future);
+		// an idle worker that was already woken has not yet taken its task
+		if (idleWorkers >= tasks.size())
+			workAvailable.wake();
+		else if (numWorkers < maxThreads)
+			startWorker();
+
+		lock.release();
+
+		return future;
+	}
+
+	/**
+	 * Stop accepting tasks. Workers finish every task already queued, then
+	 * exit.
+	 */
+	public void shutdown() {
+		lock.acquire();
+		shutdown = true;
+		workAvailable.wakeAll();
+		lock.release();
+	}
+
+	/**
+	 * Return the number of worker threads currently alive.
+	 *
+	 * @return the number of workers.
+	 */
+	public int getPoolSize() {
+		return numWorkers;
+	}
+
+	private void startWorker() {
+		Lib.assertTrue(lock.isHeldByCurrentThread());
+
+		numWorkers++;
+		new KThread(new Runnable() {
+			public void run() {
+				runWorker();
+			}
+		}).setName(name + " worker").fork();
+	}
+
+	private void runWorker() {
+		lock.acquire();
+
+		while (true) {
+			boolean timedOut = false;
+
+			while (tasks.isEmpty() && !shutdown && !timedOut) {
+				idleWorkers++;
+				if (numWorkers > minThreads) {
+					long start = Machine.timer().getTime();
+					workAvailable.sleepFor(idleTimeout);
+					timedOut = (Machine.timer().getTime() - start >= idleTimeout);
+				}
+				else {
+					workAvailable.sleep();
+				}
+				idleWorkers--;
+			}
+
+			if (tasks.isEmpty()) {
+				// timed out; exit unless other workers already shrank the pool
+				if (shutdown || numWorkers > minThreads)
+					break;
+				continue;
+			}
+
+			Future future = tasks.removeFirst();
+
+			lock.release();
+			future.run();
+			lock.acquire();
+		}
+
+		numWorkers--;
+		lock.release();
+	}
+
+	/**
+	 * The pending result of a task submitted to a <tt>KThreadPool</tt>.
+	 */
+	public static class Future {
+		private Future(Runnable task) {
+			this.task = task;
+		}
+
+		/**
+		 * Wait until the task has run. Returns immediately if it already has.
+		 */
+		public void get() {
+			doneLock.acquire();
+			while (!done)
+				doneCondition.sleep();
+			doneLock.release();
+		}
+
+		/**
+		 * Test whether the task has finished running.
+		 *
+		 * @return <tt>true</tt> if the task has run.
+		 */
+		public boolean isDone() {
+			return done;
+		}
+
+		private void run() {
+			task.run();
+			task = null;
+
+			doneLock.acquire();
+			done = true;
+			doneCondition.wakeAll();
+			doneLock.release();
+		}
+
+		private Runnable task;
+
+		private boolean done = false;
+
+		private Lock doneLock = new Lock();
+
+		private Condition2 doneCondition = new Condition2(doneLock);
+	}
+
+	/**
+	 * Test if this module is working.
+	 */
+	public static void selfTest() {
+		KThreadPool pool = new KThreadPool("selfTest", 1, 3, 1000);
+		final int[] counter = new int[1];
+
+		Future[] futures = new Future[10];
+		for (int i = 0; i < futures.length; i++) {
+			futures[i] = pool.submit(new Runnable() {
+				public void run() {
+					counter[0]++;
+					KThread.yield();
+				}
+			});
+		}
+		Lib.assertTrue(pool.getPoolSize() <= 3);
+
+		for (int i = 0; i < futures.length; i++) {
+			futures[i].get();
+			Lib.assertTrue(futures[i].isDone());
+		}
+		Lib.assertTrue(counter[0] == futures.length);
+
+		pool.shutdown();
+	}
+
+	private String name;
+
+	private int minThreads, maxThreads;
+
+	private long idleTimeout;
+
+	private int numWorkers = 0;
+
+	private int idleWorkers = 0;
+
+	private boolean shutdown = false;
+
+	private LinkedList<Future> tasks = new LinkedList<Future>();
+
+	private Lock lock;
+
+	private Condition2 workAvailable;
+}
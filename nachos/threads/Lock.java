@@ -23,6 +23,8 @@ public class Lock {
 	 * Allocate a new lock. The lock will initially be <i>free</i>.
 	 */
 	public Lock() {
+		if (LockProfiler.enabled())
+			stats = LockProfiler.register("Lock");
 	}
 
 	/**
@@ -34,8 +36,11 @@ public class Lock {
 
 		boolean intStatus = Machine.interrupt().disable();
 		KThread thread = KThread.currentThread();
+		long requestTime = (stats != null) ? Machine.timer().getTime() : 0;
 
 		if (lockHolder != null) {
+			if (stats != null)
+				stats.contended();
 			waitQueue.waitForAccess(thread);
 			KThread.sleep();
 		}
@@ -46,6 +51,9 @@ public class Lock {
 
 		Lib.assertTrue(lockHolder == thread);
 
+		if (stats != null)
+			acquireTime = stats.acquired(requestTime);
+
 		Machine.interrupt().restore(intStatus);
 	}
 
@@ -57,6 +65,9 @@ public class Lock {
 
 		boolean intStatus = Machine.interrupt().disable();
 
+		if (stats != null)
+			stats.released(acquireTime);
+
 		if ((lockHolder = waitQueue.nextThread()) != null)
 			lockHolder.ready();
 
@@ -74,6 +85,12 @@ public class Lock {
 
 	private KThread lockHolder = null;
 
+	/** Contention statistics, or <tt>null</tt> if profiling is disabled. */
+	private LockProfiler.LockStats stats = null;
+
+	/** The time at which the current holder acquired this lock. */
+	private long acquireTime;
+
 	private ThreadQueue waitQueue = ThreadedKernel.scheduler
 			.newThreadQueue(true);
 }
@@ -0,0 +1,227 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Records contention statistics for every <tt>Lock</tt> and
+ * <tt>ReadWriteLock</tt> in the kernel: acquisitions, how many of them had to
+ * wait, total wait and hold time in clock ticks, and the threads that most
+ * often found the lock busy.
+ *
+ * <p>
+ * Statistics are kept per allocation site rather than per lock, so every lock
+ * created by the same line of code shares one record. Locks that are created
+ * and dropped at a high rate, such as those inside a <tt>Future</tt>, then
+ * cost nothing once their site has been seen. The stack is walked once, when a
+ * lock is created; acquiring a lock never walks it.
+ *
+ * <p>
+ * Profiling is off unless <tt>Lock.profile = true</tt> is set in
+ * <tt>nachos.conf</tt>. When it is off, locks never call into this class
+ * beyond checking <tt>enabled()</tt>. The report is printed by
+ * <tt>ThreadedKernel.terminate()</tt>.
+ */
+public class LockProfiler {
+	/**
+	 * Prevent instantiation.
+	 */
+	private LockProfiler() {
+	}
+
+	/**
+	 * Test whether lock profiling is enabled.
+	 *
+	 * @return <tt>true</tt> if locks should record statistics.
+	 */
+	public static boolean enabled() {
+		return enabled;
+	}
+
+	/**
+	 * Return the statistics record for a newly created lock. The lock shares
+	 * the record of every other lock of the same kind allocated by the same
+	 * code.
+	 *
+	 * @param kind a short description of the kind of lock.
+	 * @return the record the lock should update.
+	 */
+	static LockStats register(String kind) {
+		String name = kind + " allocated at " + callSite();
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		LockStats stats = allStats.get(name);
+		if (stats == null) {
+			stats = new LockStats(name);
+			allStats.put(name, stats);
+		}
+		stats.locks++;
+
+		Machine.interrupt().restore(intStatus);
+
+		return stats;
+	}
+
+	/**
+	 * Print the profile of every allocation site whose locks were acquired at
+	 * least once, most contended first.
+	 */
+	public static void print() {
+		if (!enabled)
+			return;
+
+		ArrayList<LockStats> sorted = new ArrayList<LockStats>(
+				allStats.values());
+		Collections.sort(sorted, new Comparator<LockStats>() {
+			public int compare(LockStats a, LockStats b) {
+				if (a.waitTicks != b.waitTicks)
+					return (a.waitTicks > b.waitTicks) ? -1 : 1;
+				return b.contended - a.contended;
+			}
+		});
+
+		System.out.println("Lock profile:");
+		for (LockStats stats : sorted) {
+			if (stats.acquisitions == 0)
+				continue;
+
+			System.out.println("  " + stats.name);
+			System.out.println("    acquisitions " + stats.acquisitions
+					+ ", contended " + stats.contended + ", wait ticks "
+					+ stats.waitTicks + ", hold ticks " + stats.holdTicks);
+
+			ArrayList<Map.Entry<String, Integer>> waiters = new ArrayList<Map.Entry<String, Integer>>(
+					stats.contendingThreads.entrySet());
+			Collections.sort(waiters,
+					new Comparator<Map.Entry<String, Integer>>() {
+						public int compare(Map.Entry<String, Integer> a,
+								Map.Entry<String, Integer> b) {
+							return b.getValue() - a.getValue();
+						}
+					});
+			for (int i = 0; i < waiters.size() && i < maxThreadsReported; i++)
+				System.out.println("    " + waiters.get(i).getValue()
+						+ " waits by " + waiters.get(i).getKey());
+		}
+	}
+
+	/**
+	 * Test if this module is working: locks allocated at the same site share
+	 * a record, and read holds are counted.
+	 */
+	public static void selfTest() {
+		boolean wasEnabled = enabled;
+		HashMap<String, LockStats> saved = allStats;
+
+		enabled = true;
+		allStats = new HashMap<String, LockStats>();
+
+		for (int i = 0; i < 2; i++) {
+			ReadWriteLock lock = new ReadWriteLock();
+			lock.acquireRead();
+			ThreadedKernel.alarm.waitUntil(100);
+			lock.releaseRead();
+		}
+
+		Lib.assertTrue(allStats.size() == 1);
+		LockStats stats = allStats.values().iterator().next();
+		Lib.assertTrue(stats.locks == 2 && stats.acquisitions == 2);
+		Lib.assertTrue(stats.holdTicks >= 200);
+
+		enabled = wasEnabled;
+		allStats = saved;
+	}
+
+	/**
+	 * Return the first stack frame outside the synchronization classes, which
+	 * is where the lock was created.
+	 */
+	private static String callSite() {
+		StackTraceElement[] trace = new Throwable().getStackTrace();
+
+		for (int i = 0; i < trace.length; i++) {
+			String className = trace[i].getClassName();
+			if (!className.startsWith(LockProfiler.class.getName())
+					&& !className.equals(Lock.class.getName())
+					&& !className.equals(ReadWriteLock.class.getName())
+					&& !className.equals(Condition.class.getName())
+					&& !className.equals(Condition2.class.getName()))
+				return trace[i].toString();
+		}
+
+		return "(unknown)";
+	}
+
+	/**
+	 * The statistics kept for the locks allocated at one site. Every method
+	 * must be called with interrupts disabled.
+	 */
+	static class LockStats {
+		private LockStats(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Record that a thread obtained the lock.
+		 *
+		 * @param requestTime the time at which the thread asked for the lock.
+		 * @return the time at which the lock was obtained, to be passed to
+		 * <tt>released()</tt>.
+		 */
+		long acquired(long requestTime) {
+			long time = Machine.timer().getTime();
+
+			acquisitions++;
+			waitTicks += time - requestTime;
+
+			return time;
+		}
+
+		/**
+		 * Record that the current thread found the lock busy and is about to
+		 * sleep.
+		 */
+		void contended() {
+			contended++;
+
+			String thread = KThread.currentThread().getName();
+			Integer count = contendingThreads.get(thread);
+			contendingThreads.put(thread, (count == null) ? 1 : count + 1);
+		}
+
+		/**
+		 * Record that a holder released the lock.
+		 *
+		 * @param acquireTime the value returned by <tt>acquired()</tt>.
+		 */
+		void released(long acquireTime) {
+			holdTicks += Machine.timer().getTime() - acquireTime;
+		}
+
+		private String name;
+
+		private int locks = 0;
+
+		private int acquisitions = 0;
+
+		private int contended = 0;
+
+		private long waitTicks = 0;
+
+		private long holdTicks = 0;
+
+		private HashMap<String, Integer> contendingThreads = new HashMap<String, Integer>();
+	}
+
+	private static final int maxThreadsReported = 5;
+
+	private static boolean enabled = Config.getBoolean("Lock.profile", false);
+
+	private static HashMap<String, LockStats> allStats = new HashMap<String, LockStats>();
+}
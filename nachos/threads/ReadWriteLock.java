@@ -0,0 +1,340 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedHashMap;
+
+/**
+ * A <tt>ReadWriteLock</tt> lets any number of readers hold it at once, or a
+ * single writer. Read-only lookups on a shared structure can then proceed in
+ * parallel, while updates remain exclusive.
+ *
+ * <p>
+ * Writers are preferred: once a writer is waiting, new readers wait behind it,
+ * so a steady stream of readers cannot starve writers. When a writer releases
+ * the lock it is handed to the next waiting writer if there is one, and
+ * otherwise to every waiting reader at once. A consequence is that a thread
+ * must not acquire a read lock it already holds; if a writer arrives in
+ * between, the second acquire will deadlock.
+ *
+ * <p>
+ * As with <tt>Lock</tt>, only a thread holding the lock may release it.
+ *
+ * <p>
+ * With priority transfer enabled, waiting writers donate to the writer that
+ * holds the lock, or, while readers hold it, to the reader that has held it
+ * longest. A thread queue has a single holder, so the other readers receive
+ * no donation; when the donee releases, the donation moves on to the next
+ * remaining reader.
+ */
+public class ReadWriteLock {
+	/**
+	 * Allocate a new read-write lock that does not donate priority. The lock
+	 * will initially be free.
+	 */
+	public ReadWriteLock() {
+		this(false);
+	}
+
+	/**
+	 * Allocate a new read-write lock. The lock will initially be free.
+	 *
+	 * @param transferPriority <tt>true</tt> if waiting writers should donate
+	 * priority to the writer holding the lock, through the scheduler's thread
+	 * queue.
+	 */
+	public ReadWriteLock(boolean transferPriority) {
+		this.transferPriority = transferPriority;
+
+		writeQueue = ThreadedKernel.scheduler.newThreadQueue(transferPriority);
+		readQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+
+		if (LockProfiler.enabled())
+			stats = LockProfiler.register("ReadWriteLock");
+	}
+
+	/**
+	 * Acquire this lock for reading. Waits while a writer holds the lock or is
+	 * waiting for it.
+	 */
+	public void acquireRead() {
+		Lib.assertTrue(writer != KThread.currentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+		KThread thread = KThread.currentThread();
+		long requestTime = (stats != null) ? Machine.timer().getTime() : 0;
+
+		if (writer != null || waitingWriters > 0) {
+			if (stats != null)
+				stats.contended();
+			readQueue.waitForAccess(thread);
+			// the releasing writer makes us a reader before waking us
+			KThread.sleep();
+		}
+		else {
+			addReader(thread);
+		}
+
+		Lib.assertTrue(readHolders.containsKey(thread));
+
+		if (stats != null)
+			readHolders.put(thread, stats.acquired(requestTime));
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Release a read hold on this lock. If this was the last reader, hand the
+	 * lock to a waiting writer.
+	 */
+	public void releaseRead() {
+		boolean intStatus = Machine.interrupt().disable();
+		KThread thread = KThread.currentThread();
+
+		Long acquireTime = readHolders.remove(thread);
+		Lib.assertTrue(acquireTime != null);
+
+		if (stats != null)
+			stats.released(acquireTime);
+
+		if (readHolders.isEmpty()) {
+			donee = null;
+			writer = writeQueue.nextThread();
+			if (writer != null) {
+				waitingWriters--;
+				writer.ready();
+			}
+		}
+		else if (donee == thread) {
+			donee = readHolders.keySet().iterator().next();
+			moveDonation(donee);
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Acquire this lock for writing. Waits until no reader or writer holds
+	 * the lock. The current thread must not already hold this lock.
+	 */
+	public void acquireWrite() {
+		Lib.assertTrue(!isWriteHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+		KThread thread = KThread.currentThread();
+		long requestTime = (stats != null) ? Machine.timer().getTime() : 0;
+
+		if (writer != null || !readHolders.isEmpty()) {
+			if (stats != null)
+				stats.contended();
+			waitingWriters++;
+			writeQueue.waitForAccess(thread);
+			// the releasing holder makes us the writer before waking us
+			KThread.sleep();
+		}
+		else {
+			writeQueue.acquire(thread);
+			writer = thread;
+		}
+
+		Lib.assertTrue(writer == thread);
+
+		if (stats != null)
+			writeAcquireTime = stats.acquired(requestTime);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Release this lock from writing. Hand it to the next waiting writer if
+	 * there is one, and otherwise to all waiting readers.
+	 */
+	public void releaseWrite() {
+		Lib.assertTrue(isWriteHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		if (stats != null)
+			stats.released(writeAcquireTime);
+
+		if ((writer = writeQueue.nextThread()) != null) {
+			waitingWriters--;
+			writer.ready();
+		}
+		else {
+			KThread thread;
+			while ((thread = readQueue.nextThread()) != null) {
+				addReader(thread);
+				thread.ready();
+			}
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Count <tt>thread</tt> as holding this lock for reading. The first reader
+	 * becomes the holder of the write queue, so that writers waiting behind
+	 * the readers donate to it.
+	 */
+	private void addReader(KThread thread) {
+		Lib.assertTrue(!readHolders.containsKey(thread));
+
+		readHolders.put(thread, 0L);
+
+		if (donee == null) {
+			donee = thread;
+			writeQueue.acquire(thread);
+		}
+	}
+
+	/**
+	 * Make <tt>reader</tt> the holder of the write queue. A thread queue only
+	 * accepts a new holder through <tt>acquire()</tt> while nobody is waiting,
+	 * so if writers are waiting they are moved, in order, to a fresh queue
+	 * held by <tt>reader</tt>.
+	 */
+	private void moveDonation(KThread reader) {
+		ThreadQueue oldQueue = writeQueue;
+
+		writeQueue = ThreadedKernel.scheduler
+				.newThreadQueue(transferPriority);
+		writeQueue.acquire(reader);
+
+		KThread thread;
+		while ((thread = oldQueue.nextThread()) != null)
+			writeQueue.waitForAccess(thread);
+	}
+
+	/**
+	 * Test if the current thread holds this lock for writing.
+	 *
+	 * @return true if the current thread is the writer.
+	 */
+	public boolean isWriteHeldByCurrentThread() {
+		return (writer == KThread.currentThread());
+	}
+
+	private static class ReaderTest implements Runnable {
+		ReaderTest(ReadWriteLock lock, int[] shared) {
+			this.lock = lock;
+			this.shared = shared;
+		}
+
+		public void run() {
+			for (int i = 0; i < 5; i++) {
+				lock.acquireRead();
+				int value = shared[0];
+				KThread.yield();
+				// no writer may change the value while we hold a read lock
+				Lib.assertTrue(shared[0] == value);
+				lock.releaseRead();
+				KThread.yield();
+			}
+		}
+
+		private ReadWriteLock lock;
+
+		private int[] shared;
+	}
+
+	/**
+	 * Test if this module is working.
+	 */
+	public static void selfTest() {
+		ReadWriteLock lock = new ReadWriteLock();
+		int[] shared = new int[1];
+
+		KThread[] readers = new KThread[3];
+		for (int i = 0; i < readers.length; i++) {
+			readers[i] = new KThread(new ReaderTest(lock, shared))
+					.setName("reader " + i);
+			readers[i].fork();
+		}
+
+		for (int i = 0; i < 5; i++) {
+			lock.acquireWrite();
+			shared[0]++;
+			KThread.yield();
+			lock.releaseWrite();
+			KThread.yield();
+		}
+
+		KThread.joinAll(readers);
+		Lib.assertTrue(shared[0] == 5);
+
+		donationTest();
+	}
+
+	/**
+	 * Release the reader that waiting writers donate to while another reader
+	 * still holds the lock, and check that the donation moves on.
+	 */
+	private static void donationTest() {
+		final ReadWriteLock lock = new ReadWriteLock(true);
+		final boolean[] done = new boolean[2];
+
+		lock.acquireRead();
+		Lib.assertTrue(lock.donee == KThread.currentThread());
+
+		KThread reader = new KThread(new Runnable() {
+			public void run() {
+				lock.acquireRead();
+				while (!done[0])
+					KThread.yield();
+				lock.releaseRead();
+			}
+		}).setName("second reader");
+		reader.fork();
+		while (lock.readHolders.size() < 2)
+			KThread.yield();
+
+		KThread writer = new KThread(new Runnable() {
+			public void run() {
+				lock.acquireWrite();
+				done[1] = true;
+				lock.releaseWrite();
+			}
+		}).setName("blocked writer");
+		writer.fork();
+		while (lock.waitingWriters == 0)
+			KThread.yield();
+
+		lock.releaseRead();
+		Lib.assertTrue(lock.donee == reader);
+		Lib.assertTrue(lock.waitingWriters == 1 && !done[1]);
+
+		done[0] = true;
+		writer.join();
+		reader.join();
+		Lib.assertTrue(done[1] && lock.donee == null
+				&& lock.readHolders.isEmpty());
+	}
+
+	/** The thread holding this lock for writing, if any. */
+	private KThread writer = null;
+
+	/**
+	 * The threads holding this lock for reading, oldest first, each mapped to
+	 * the time it acquired the lock (zero if profiling is disabled).
+	 */
+	private LinkedHashMap<KThread, Long> readHolders = new LinkedHashMap<KThread, Long>();
+
+	/** The reader that waiting writers donate to, if any. */
+	private KThread donee = null;
+
+	/** The number of threads sleeping in <tt>writeQueue</tt>. */
+	private int waitingWriters = 0;
+
+	private boolean transferPriority;
+
+	private ThreadQueue writeQueue;
+
+	private ThreadQueue readQueue;
+
+	/** Contention statistics, or <tt>null</tt> if profiling is disabled. */
+	private LockProfiler.LockStats stats = null;
+
+	/** The time at which the current writer acquired this lock. */
+	private long writeAcquireTime;
+}
@@ -48,8 +48,13 @@ public class ThreadedKernel extends Kernel {
 	public void selfTest() {
 		KThread.selfTest();
 		Condition2.selfTest();
+		BufferedCommunicator.selfTest();
 		Semaphore.selfTest();
 		SynchList.selfTest();
+		BoundedQueue.selfTest();
+		ReadWriteLock.selfTest();
+		LockProfiler.selfTest();
+		KThreadPool.selfTest();
 		if (Machine.bank() != null) {
 			ElevatorBank.selfTest();
 		}
@@ -63,9 +68,12 @@ public class ThreadedKernel extends Kernel {
 	}
 
 	/**
-	 * Terminate this kernel. Never returns.
+	 * Terminate this kernel. Prints the lock profile, if enabled. Never
+	 * returns.
 	 */
 	public void terminate() {
+		LockProfiler.print();
+
 		Machine.halt();
 	}
 
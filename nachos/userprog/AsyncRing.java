@@ -0,0 +1,217 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A pair of submission and completion queues shared between a user process
+ * and the kernel, through which the process issues I/O requests without
+ * waiting for each one to finish.
+ *
+ * <p>
+ * Both queues live in the process's memory, in the layout described by
+ * <tt>struct io_ring</tt> in <tt>syscall.h</tt>. The process fills in
+ * submission entries and advances the submission tail; <tt>enter()</tt>
+ * hands every new entry to a pool of kernel worker threads, which carry out
+ * the requests concurrently, so that their disk delays overlap. Each finished
+ * request is posted to the completion queue and the completion tail is
+ * advanced, where the process can find it without entering the kernel.
+ *
+ * <p>
+ * The kernel keeps its own copy of the submission head and completion tail,
+ * and only reads the indices owned by the process. It never has more
+ * requests outstanding than there are free completion slots, so a completion
+ * always has somewhere to go.
+ */
+public class AsyncRing {
+	/**
+	 * Allocate a new ring for a process.
+	 *
+	 * @param process the process that owns the ring.
+	 * @param ringVaddr the address of the ring's <tt>struct io_ring</tt>.
+	 * @param sqVaddr the address of the submission queue entries.
+	 * @param cqVaddr the address of the completion queue entries.
+	 * @param entries the number of entries in each queue, a power of two.
+	 */
+	public AsyncRing(UserProcess process, int ringVaddr, int sqVaddr,
+			int cqVaddr, int entries) {
+		Lib.assertTrue(entries > 0 && (entries & (entries - 1)) == 0);
+
+		this.process = process;
+		this.ringVaddr = ringVaddr;
+		this.sqVaddr = sqVaddr;
+		this.cqVaddr = cqVaddr;
+		this.entries = entries;
+
+		lock = new Lock();
+		completed = new Condition2(lock);
+	}
+
+	/**
+	 * Initialize the ring's indices in user memory.
+	 *
+	 * @return <tt>true</tt> if the ring's header is writable.
+	 */
+	public boolean initialize() {
+		for (int i = 0; i < 4; i++) {
+			if (!writeInt(ringVaddr + i * 4, 0))
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Submit up to <i>toSubmit</i> new entries from the submission queue,
+	 * then wait until at least <i>minComplete</i> completions are waiting to
+	 * be reaped, or until no requests are outstanding.
+	 *
+	 * @param toSubmit the maximum number of entries to submit.
+	 * @param minComplete the number of completions to wait for.
+	 * @return the number of entries submitted, or -1 if the ring is corrupt or
+	 * the process is exiting.
+	 */
+	public int enter(int toSubmit, int minComplete) {
+		int[] indices = new int[4];
+
+		lock.acquire();
+		if (!readIndices(indices)) {
+			lock.release();
+			return -1;
+		}
+		int pending = indices[sqTail] - sqHead;
+		int unreaped = cqTail - indices[cqHead];
+		if (pending < 0 || pending > entries || unreaped < 0
+				|| unreaped > entries) {
+			lock.release();
+			Lib.debug(dbgProcess, "AsyncRing: corrupt ring indices");
+			return -1;
+		}
+
+		// never start more requests than there are free completion slots
+		int submitted = 0;
+		while (submitted < toSubmit && submitted < pending
+				&& outstanding + unreaped < entries) {
+			int[] sqe = new int[sqeWords];
+			int slot = sqHead & (entries - 1);
+			if (!readInts(sqVaddr + slot * sqeWords * 4, sqe))
+				break;
+			sqHead++;
+			submitted++;
+			outstanding++;
+			submit(sqe);
+		}
+		writeInt(ringVaddr + sqHeadOffset, sqHead);
+
+		while (outstanding > 0 && cqTail - indices[cqHead] < minComplete
+				&& !process.isExiting()) {
+			completed.sleep();
+			if (!readIndices(indices))
+				break;
+		}
+		boolean exiting = process.isExiting();
+		lock.release();
+
+		return exiting ? -1 : submitted;
+	}
+
+	/**
+	 * Wake any thread waiting in <tt>enter()</tt>, so that it sees its
+	 * process exiting and returns.
+	 */
+	public void interrupt() {
+		lock.acquire();
+		completed.wakeAll();
+		lock.release();
+	}
+
+	/**
+	 * Wait for every outstanding request to finish. Called when the process
+	 * exits, before its descriptors and memory are released.
+	 */
+	public void shutdown() {
+		lock.acquire();
+		while (outstanding > 0)
+			completed.sleep();
+		lock.release();
+	}
+
+	private void submit(final int[] sqe) {
+		UserKernel.ioWorkers.submit(new Runnable() {
+			public void run() {
+				int result = process.handleAsyncRequest(sqe[sqeOpcode],
+						sqe[sqeFd], sqe[sqeBuffer], sqe[sqeCount],
+						sqe[sqeOffset]);
+				complete(sqe[sqeUserData], result);
+			}
+		});
+	}
+
+	private void complete(int userData, int result) {
+		lock.acquire();
+		int slot = cqTail & (entries - 1);
+		int cqe = cqVaddr + slot * cqeWords * 4;
+		// the entry must be in place before the tail makes it visible
+		writeInt(cqe, userData);
+		writeInt(cqe + 4, result);
+		cqTail++;
+		writeInt(ringVaddr + cqTailOffset, cqTail);
+		outstanding--;
+		completed.wakeAll();
+		lock.release();
+	}
+
+	private boolean readIndices(int[] indices) {
+		return readInts(ringVaddr, indices);
+	}
+
+	private boolean readInts(int vaddr, int[] values) {
+		byte[] data = new byte[values.length * 4];
+		if (process.readVirtualMemory(vaddr, data) != data.length)
+			return false;
+
+		for (int i = 0; i < values.length; i++)
+			values[i] = Lib.bytesToInt(data, i * 4);
+		return true;
+	}
+
+	private boolean writeInt(int vaddr, int value) {
+		return process.writeVirtualMemory(vaddr, Lib.bytesFromInt(value)) == 4;
+	}
+
+	/** Request opcodes, as in <tt>syscall.h</tt>. */
+	static final int opNop = 0, opRead = 1, opWrite = 2, opOpen = 3,
+			opClose = 4;
+
+	/** Word offsets of the fields of <tt>struct io_ring</tt>. */
+	private static final int sqTail = 1, cqHead = 2;
+
+	private static final int sqHeadOffset = 0, cqTailOffset = 12;
+
+	/** Word offsets of the fields of <tt>struct io_sqe</tt>. */
+	private static final int sqeOpcode = 0, sqeFd = 1, sqeBuffer = 2,
+			sqeCount = 3, sqeOffset = 4, sqeUserData = 5;
+
+	private static final int sqeWords = 6, cqeWords = 2;
+
+	private UserProcess process;
+
+	private int ringVaddr, sqVaddr, cqVaddr;
+
+	private int entries;
+
+	/** The next submission entry the kernel will consume. */
+	private int sqHead = 0;
+
+	/** The next completion entry the kernel will fill. */
+	private int cqTail = 0;
+
+	/** The number of requests submitted but not yet completed. */
+	private int outstanding = 0;
+
+	private Lock lock;
+
+	private Condition2 completed;
+
+	private static final char dbgProcess = 'a';
+}
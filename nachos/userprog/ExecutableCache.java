@@ -0,0 +1,217 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.io.EOFException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A cache of parsed executables, keyed by file name. An executable that is
+ * run again while it is cached is neither read nor parsed again: the cache
+ * keeps the image of the file in memory, parsed once by <tt>Coff</tt>, and its
+ * sections are loaded from that image.
+ *
+ * <p>
+ * A lookup that hits the cache does not touch the file system. Instead, the
+ * kernel calls <tt>invalidate()</tt> whenever a process creates, writes,
+ * unlinks or writes back a mapping of a file, which covers every way a user
+ * program can change an executable. Changes made to the host directory behind
+ * the kernel's back are not noticed while the executable stays cached.
+ *
+ * <p>
+ * The cache holds at most <tt>Kernel.executableCacheSize</tt> bytes of
+ * images, and evicts the least recently run executable to make room. The
+ * <tt>Coff</tt> objects it returns are never modified and are shared by every
+ * process running the executable, so an evicted executable remains usable by
+ * the processes that are already running it.
+ */
+public class ExecutableCache {
+	/**
+	 * Allocate a new, empty executable cache.
+	 */
+	public ExecutableCache() {
+		capacity = Config.getInteger("Kernel.executableCacheSize", 256 * 1024);
+		lock = new Lock();
+	}
+
+	/**
+	 * Load the executable with the specified name, from the cache if it is
+	 * there, and otherwise from the file system.
+	 *
+	 * @param name the name of the file containing the executable.
+	 * @return the executable, or <tt>null</tt> if the file cannot be opened or
+	 * is not a valid executable.
+	 */
+	public Coff open(String name) {
+		lock.acquire();
+		Entry entry = entries.get(name);
+		int generation = invalidations;
+		lock.release();
+
+		if (entry != null) {
+			Lib.debug(dbgProcess, "ExecutableCache: hit " + name);
+			return entry.coff;
+		}
+
+		Lib.debug(dbgProcess, "ExecutableCache: miss " + name);
+		entry = load(name);
+		if (entry == null)
+			return null;
+
+		lock.acquire();
+		// a file changed while we read it may have been read half old
+		if (entry.size <= capacity && invalidations == generation) {
+			Entry old = entries.put(name, entry);
+			if (old != null)
+				size -= old.size;
+			size += entry.size;
+
+			// evict the least recently run executables until the new one fits
+			Iterator<Entry> i = entries.values().iterator();
+			while (size > capacity) {
+				Entry victim = i.next();
+				i.remove();
+				size -= victim.size;
+			}
+		}
+		lock.release();
+
+		return entry.coff;
+	}
+
+	/**
+	 * Drop an executable from the cache because its file has changed.
+	 *
+	 * @param name the name of the file.
+	 */
+	public void invalidate(String name) {
+		lock.acquire();
+		invalidations++;
+		Entry entry = entries.remove(name);
+		if (entry != null)
+			size -= entry.size;
+		lock.release();
+	}
+
+	/**
+	 * Read an executable into memory and parse it.
+	 */
+	private Entry load(String name) {
+		OpenFile file = ThreadedKernel.fileSystem.open(name, false);
+		if (file == null) {
+			Lib.debug(dbgProcess, "ExecutableCache: cannot open " + name);
+			return null;
+		}
+
+		byte[] image = new byte[file.length()];
+		int length = file.read(0, image, 0, image.length);
+		file.close();
+
+		try {
+			if (length != image.length)
+				throw new EOFException();
+			Coff parsed = new Coff(new ImageFile(image));
+			return new Entry(new CachedCoff(parsed), image.length);
+		}
+		catch (EOFException e) {
+			Lib.debug(dbgProcess, "ExecutableCache: coff load failed");
+			return null;
+		}
+	}
+
+	/**
+	 * Test if this module is working.
+	 */
+	public static void selfTest() {
+		ExecutableCache cache = new ExecutableCache();
+
+		Coff coff = cache.open("halt.coff");
+		Lib.assertTrue(coff != null && cache.open("halt.coff") == coff);
+
+		// closing a shared executable leaves it usable
+		coff.close();
+		Lib.assertTrue(cache.open("halt.coff") == coff);
+		CoffSection section = coff.getSection(0);
+		section.loadPage(0, 0);
+
+		cache.invalidate("halt.coff");
+		Coff reloaded = cache.open("halt.coff");
+		Lib.assertTrue(reloaded != null && reloaded != coff);
+		Lib.assertTrue(reloaded.getEntryPoint() == coff.getEntryPoint());
+
+		Lib.assertTrue(cache.open("no such file.coff") == null);
+	}
+
+	/**
+	 * An executable held in memory. Closing it does nothing, so that one
+	 * process's <tt>Coff.close()</tt> cannot pull the sections out from under
+	 * the other processes running it.
+	 */
+	private static class CachedCoff extends Coff {
+		CachedCoff(Coff parsed) {
+			entryPoint = parsed.getEntryPoint();
+			sections = new CoffSection[parsed.getNumSections()];
+			for (int s = 0; s < sections.length; s++)
+				sections[s] = parsed.getSection(s);
+		}
+
+		public int getEntryPoint() {
+			return entryPoint;
+		}
+
+		public void close() {
+		}
+	}
+
+	/**
+	 * The image of an executable, from which its sections are loaded.
+	 */
+	private static class ImageFile extends ArrayFile {
+		ImageFile(byte[] image) {
+			super(image);
+		}
+
+		/**
+		 * Copy from the image. <tt>Lib.strictReadFile()</tt> insists that a
+		 * read takes time, so charge the same tick as any other kernel
+		 * operation that enables interrupts.
+		 */
+		public int read(int position, byte[] buf, int offset, int length) {
+			boolean intStatus = Machine.interrupt().disable();
+			int amount = super.read(position, buf, offset, length);
+			Machine.interrupt().restore(intStatus);
+
+			return amount;
+		}
+	}
+
+	private static class Entry {
+		Entry(Coff coff, int size) {
+			this.coff = coff;
+			this.size = size;
+		}
+
+		Coff coff;
+
+		/** The number of bytes of image held. */
+		int size;
+	}
+
+	/** Cached executables, least recently run first. */
+	private LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(
+			16, 0.75f, true);
+
+	/** The total size of the cached executables. */
+	private int size = 0;
+
+	/** The number of calls to <tt>invalidate()</tt> so far. */
+	private int invalidations = 0;
+
+	private int capacity;
+
+	private Lock lock;
+
+	private static final char dbgProcess = 'a';
+}
@@ -0,0 +1,200 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+/**
+ * A process's file descriptor table. Maps small non-negative integers to
+ * entries of the system-wide <tt>OpenFileTable</tt>.
+ *
+ * <p>
+ * The table starts small and doubles as descriptors are allocated, up to a
+ * fixed per-process limit. Allocated descriptors are tracked in a bitmap, so
+ * finding the lowest free descriptor examines 32 descriptors per step and
+ * starts from the lowest word that may contain a free one.
+ */
+public class FileDescriptorTable {
+	/**
+	 * Allocate a new, empty descriptor table.
+	 *
+	 * @param limit the maximum number of descriptors, which bounds every
+	 * descriptor number.
+	 */
+	public FileDescriptorTable(int limit) {
+		Lib.assertTrue(limit > 0);
+
+		this.limit = limit;
+		entries = new OpenFileTable.Entry[Math.min(initialSize, limit)];
+		used = new int[(entries.length + 31) / 32];
+	}
+
+	/**
+	 * Install an entry at the lowest free descriptor.
+	 *
+	 * @param entry the entry to install.
+	 * @return the descriptor, or -1 if the process has reached its limit.
+	 */
+	public int add(OpenFileTable.Entry entry) {
+		int fd = findFree();
+		if (fd == -1)
+			return -1;
+
+		set(fd, entry);
+		return fd;
+	}
+
+	/**
+	 * Install an entry at a specific descriptor, which must be free.
+	 *
+	 * @param fd the descriptor.
+	 * @param entry the entry to install.
+	 * @return <tt>true</tt> if <i>fd</i> is within the process's limit.
+	 */
+	public boolean install(int fd, OpenFileTable.Entry entry) {
+		if (fd < 0 || fd >= limit)
+			return false;
+
+		Lib.assertTrue(get(fd) == null);
+		set(fd, entry);
+		return true;
+	}
+
+	/**
+	 * Return the entry a descriptor refers to.
+	 *
+	 * @param fd the descriptor.
+	 * @return the entry, or <tt>null</tt> if <i>fd</i> is not open.
+	 */
+	public OpenFileTable.Entry get(int fd) {
+		if (fd < 0 || fd >= entries.length)
+			return null;
+
+		return entries[fd];
+	}
+
+	/**
+	 * Return the open file a descriptor refers to.
+	 *
+	 * @param fd the descriptor.
+	 * @return the open file, or <tt>null</tt> if <i>fd</i> is not open.
+	 */
+	public OpenFile getFile(int fd) {
+		OpenFileTable.Entry entry = get(fd);
+
+		return (entry == null) ? null : entry.getFile();
+	}
+
+	/**
+	 * Free a descriptor. The caller is responsible for releasing the entry.
+	 *
+	 * @param fd the descriptor.
+	 * @return the entry <i>fd</i> referred to, or <tt>null</tt> if it was not
+	 * open.
+	 */
+	public OpenFileTable.Entry remove(int fd) {
+		OpenFileTable.Entry entry = get(fd);
+		if (entry == null)
+			return null;
+
+		entries[fd] = null;
+		used[fd / 32] &= ~(1 << (fd % 32));
+		if (fd / 32 < firstFreeWord)
+			firstFreeWord = fd / 32;
+
+		return entry;
+	}
+
+	/**
+	 * Return the number of descriptor slots currently allocated. Every open
+	 * descriptor is smaller than this.
+	 *
+	 * @return the size of the table.
+	 */
+	public int size() {
+		return entries.length;
+	}
+
+	private int findFree() {
+		for (int word = firstFreeWord; word < used.length; word++) {
+			if (used[word] != ~0) {
+				firstFreeWord = word;
+				int fd = word * 32 + Integer.numberOfTrailingZeros(~used[word]);
+				if (fd < entries.length)
+					return fd;
+			}
+		}
+
+		// every slot is in use; grow if the limit allows
+		firstFreeWord = used.length;
+		if (entries.length == limit)
+			return -1;
+
+		int fd = entries.length;
+		grow(fd + 1);
+		return fd;
+	}
+
+	private void set(int fd, OpenFileTable.Entry entry) {
+		if (fd >= entries.length)
+			grow(fd + 1);
+
+		entries[fd] = entry;
+		used[fd / 32] |= 1 << (fd % 32);
+	}
+
+	private void grow(int minSize) {
+		int oldSize = entries.length;
+		int size = oldSize;
+		while (size < minSize)
+			size *= 2;
+		size = Math.min(size, limit);
+
+		OpenFileTable.Entry[] newEntries = new OpenFileTable.Entry[size];
+		System.arraycopy(entries, 0, newEntries, 0, entries.length);
+		entries = newEntries;
+
+		int[] newUsed = new int[(size + 31) / 32];
+		System.arraycopy(used, 0, newUsed, 0, used.length);
+		used = newUsed;
+
+		// the new slots are free
+		firstFreeWord = Math.min(firstFreeWord, oldSize / 32);
+	}
+
+	/**
+	 * Test if this module is working.
+	 */
+	public static void selfTest() {
+		FileDescriptorTable table = new FileDescriptorTable(40);
+		OpenFileTable.Entry entry = new OpenFileTable().add(null, null);
+
+		// descriptors come out lowest first, growing the table past 16 and 32
+		for (int fd = 0; fd < 40; fd++)
+			Lib.assertTrue(table.add(entry) == fd);
+		Lib.assertTrue(table.size() == 40);
+		Lib.assertTrue(table.add(entry) == -1);
+
+		// freed descriptors are reused lowest first, across bitmap words
+		Lib.assertTrue(table.remove(33) == entry && table.remove(5) == entry);
+		Lib.assertTrue(table.remove(5) == null && table.get(33) == null);
+		Lib.assertTrue(table.add(entry) == 5);
+		Lib.assertTrue(table.add(entry) == 33);
+
+		// install() respects the limit and grows a small table
+		Lib.assertTrue(!table.install(40, entry) && !table.install(-1, entry));
+		table = new FileDescriptorTable(100);
+		Lib.assertTrue(table.install(70, entry) && table.get(70) == entry);
+		Lib.assertTrue(table.add(entry) == 0);
+	}
+
+	private static final int initialSize = 16;
+
+	private int limit;
+
+	private OpenFileTable.Entry[] entries;
+
+	/** One bit per descriptor, set if the descriptor is open. */
+	private int[] used;
+
+	/** No word before this one has a free descriptor. */
+	private int firstFreeWord = 0;
+}
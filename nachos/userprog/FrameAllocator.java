@@ -0,0 +1,365 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Allocates physical page frames. Free frames are kept on a stack of
+ * primitive ints, so allocating or freeing a frame is O(1) and creates no
+ * garbage. For every frame in use, the allocator also records which process
+ * owns it and at which virtual page, serving as the kernel's inverted page
+ * table.
+ *
+ * <p>
+ * A frame may be shared by several processes, for example after a
+ * copy-on-write <tt>fork()</tt>. The allocator then counts the processes
+ * referring to the frame, and the frame only returns to the free pool when
+ * the last of them releases it. For each shared frame it keeps a reverse
+ * mapping, listing every process that maps the frame and the virtual page at
+ * which it does so; a shared memory segment may be mapped at a different page
+ * in each process. A frame may also hold a reference that is not a mapping,
+ * such as the one a shared memory segment keeps on each of its pages; such a
+ * frame may have no owner at all.
+ *
+ * <p>
+ * Bulk operations take the allocator's lock once for the whole request. A bulk
+ * allocation is all-or-nothing: either every requested frame is reserved, or
+ * none is.
+ */
+public class FrameAllocator {
+	/**
+	 * Allocate a new frame allocator managing physical frames <tt>0</tt>
+	 * through <tt>numFrames - 1</tt>, all initially free.
+	 *
+	 * @param numFrames the number of physical frames.
+	 */
+	public FrameAllocator(int numFrames) {
+		freeStack = new int[numFrames];
+		owners = new UserProcess[numFrames];
+		vpns = new int[numFrames];
+		refCounts = new int[numFrames];
+
+		// push in reverse so that low frames are handed out first
+		for (int i = 0; i < numFrames; i++)
+			freeStack[i] = numFrames - 1 - i;
+		numFree = numFrames;
+
+		lock = new Lock();
+	}
+
+	/**
+	 * Allocate a single frame.
+	 *
+	 * @return the physical page number of the frame, or -1 if no frame is
+	 * free.
+	 */
+	public int allocate() {
+		lock.acquire();
+		int ppn = (numFree > 0) ? pop() : -1;
+		lock.release();
+
+		return ppn;
+	}
+
+	/**
+	 * Allocate <tt>frames.length</tt> frames and store their physical page
+	 * numbers in <i>frames</i>. Either all of the frames are allocated, or
+	 * none are and <i>frames</i> is left unchanged.
+	 *
+	 * @param frames the array to fill with physical page numbers.
+	 * @return <tt>true</tt> if the frames were allocated.
+	 */
+	public boolean allocate(int[] frames) {
+		lock.acquire();
+
+		if (frames.length > numFree) {
+			lock.release();
+			return false;
+		}
+
+		for (int i = 0; i < frames.length; i++)
+			frames[i] = pop();
+
+		lock.release();
+
+		return true;
+	}
+
+	/**
+	 * Return a single frame to the free pool and clear its owner.
+	 *
+	 * @param ppn the physical page number of the frame.
+	 */
+	public void free(int ppn) {
+		lock.acquire();
+		Lib.assertTrue(refCounts[ppn] == 1, "freeing shared or free frame " + ppn);
+		push(ppn);
+		lock.release();
+	}
+
+	/**
+	 * Return the first <i>count</i> frames in <i>frames</i> to the free pool
+	 * and clear their owners.
+	 *
+	 * @param frames the physical page numbers of the frames.
+	 * @param count the number of entries of <i>frames</i> to free.
+	 */
+	public void free(int[] frames, int count) {
+		Lib.assertTrue(count >= 0 && count <= frames.length);
+
+		lock.acquire();
+		for (int i = 0; i < count; i++) {
+			Lib.assertTrue(refCounts[frames[i]] == 1,
+					"freeing shared or free frame " + frames[i]);
+			push(frames[i]);
+		}
+		lock.release();
+	}
+
+	/**
+	 * Record that an allocated frame holds virtual page <i>vpn</i> of
+	 * <i>process</i>, and of no other process.
+	 *
+	 * @param ppn the physical page number of the frame.
+	 * @param process the process the frame is mapped into.
+	 * @param vpn the virtual page the frame is mapped at.
+	 */
+	public void setOwner(int ppn, UserProcess process, int vpn) {
+		lock.acquire();
+		Lib.assertTrue(refCounts[ppn] > 0);
+
+		owners[ppn] = process;
+		vpns[ppn] = vpn;
+		refCounts[ppn] = 1;
+		sharers.remove(ppn);
+		lock.release();
+	}
+
+	/**
+	 * Record that <i>process</i> also maps a frame, at the same virtual page
+	 * as its current owner, and add a reference to the frame.
+	 *
+	 * @param ppn the physical page number of the frame.
+	 * @param process the process now sharing the frame.
+	 */
+	public void share(int ppn, UserProcess process) {
+		Lib.assertTrue(owners[ppn] != null);
+
+		share(ppn, process, vpns[ppn]);
+	}
+
+	/**
+	 * Record that <i>process</i> maps a frame at virtual page <i>vpn</i>, and
+	 * add a reference to the frame. If the frame has no owner, <i>process</i>
+	 * becomes its owner.
+	 *
+	 * @param ppn the physical page number of the frame.
+	 * @param process the process now mapping the frame.
+	 * @param vpn the virtual page at which <i>process</i> maps the frame.
+	 */
+	public void share(int ppn, UserProcess process, int vpn) {
+		lock.acquire();
+		Lib.assertTrue(refCounts[ppn] > 0);
+
+		if (owners[ppn] == null) {
+			owners[ppn] = process;
+			vpns[ppn] = vpn;
+		}
+		else {
+			LinkedList<Mapping> list = sharers.get(ppn);
+			if (list == null) {
+				list = new LinkedList<Mapping>();
+				list.add(new Mapping(owners[ppn], vpns[ppn]));
+				sharers.put(ppn, list);
+			}
+			list.add(new Mapping(process, vpn));
+		}
+		refCounts[ppn]++;
+		lock.release();
+	}
+
+	/**
+	 * Drop <i>process</i>'s reference to a frame. The frame is returned to the
+	 * free pool when nothing refers to it any more.
+	 *
+	 * @param ppn the physical page number of the frame.
+	 * @param process the process that no longer maps the frame, or
+	 * <tt>null</tt> to drop a reference that is not a mapping.
+	 * @return the number of references left to the frame.
+	 */
+	public int release(int ppn, UserProcess process) {
+		lock.acquire();
+		Lib.assertTrue(refCounts[ppn] > 0);
+
+		LinkedList<Mapping> list = sharers.get(ppn);
+		if (process == null) {
+			Lib.assertTrue(refCounts[ppn] > ((list != null) ? list.size()
+					: (owners[ppn] != null) ? 1 : 0));
+		}
+		else if (list != null) {
+			Iterator<Mapping> i = list.iterator();
+			while (i.next().process != process)
+				;
+			i.remove();
+			owners[ppn] = list.getFirst().process;
+			vpns[ppn] = list.getFirst().vpn;
+			if (list.size() == 1)
+				sharers.remove(ppn);
+		}
+		else {
+			Lib.assertTrue(owners[ppn] == process);
+			owners[ppn] = null;
+		}
+
+		int refCount = --refCounts[ppn];
+		if (refCount == 0)
+			push(ppn);
+		lock.release();
+
+		return refCount;
+	}
+
+	/**
+	 * Return every process that maps a frame.
+	 *
+	 * @param ppn the physical page number of the frame.
+	 * @return the processes sharing the frame, owner first; empty if the
+	 * frame has no owner.
+	 */
+	public UserProcess[] getOwners(int ppn) {
+		Mapping[] mappings = getMappings(ppn);
+		UserProcess[] result = new UserProcess[mappings.length];
+		for (int i = 0; i < mappings.length; i++)
+			result[i] = mappings[i].process;
+
+		return result;
+	}
+
+	/**
+	 * Return the reverse mapping of a frame: every process that maps it, and
+	 * where.
+	 *
+	 * @param ppn the physical page number of the frame.
+	 * @return the mappings of the frame, owner first; empty if the frame has
+	 * no owner.
+	 */
+	public Mapping[] getMappings(int ppn) {
+		lock.acquire();
+		LinkedList<Mapping> list = sharers.get(ppn);
+		Mapping[] result;
+		if (list != null)
+			result = list.toArray(new Mapping[list.size()]);
+		else if (owners[ppn] != null)
+			result = new Mapping[] { new Mapping(owners[ppn], vpns[ppn]) };
+		else
+			result = new Mapping[0];
+		lock.release();
+
+		return result;
+	}
+
+	/**
+	 * Return the number of processes referring to a frame.
+	 *
+	 * @param ppn the physical page number of the frame.
+	 * @return the reference count, or 0 if the frame is free.
+	 */
+	public int getReferenceCount(int ppn) {
+		return refCounts[ppn];
+	}
+
+	/**
+	 * Return the process that owns a frame.
+	 *
+	 * @param ppn the physical page number of the frame.
+	 * @return the owning process, or <tt>null</tt> if the frame is free or
+	 * has no owner recorded yet.
+	 */
+	public UserProcess getOwner(int ppn) {
+		return owners[ppn];
+	}
+
+	/**
+	 * Return the virtual page at which a frame is mapped by its owner.
+	 *
+	 * @param ppn the physical page number of the frame.
+	 * @return the virtual page number recorded by <tt>setOwner()</tt>.
+	 */
+	public int getVPN(int ppn) {
+		return vpns[ppn];
+	}
+
+	/**
+	 * Return the number of free frames. The value may be stale by the time
+	 * the caller uses it.
+	 *
+	 * @return the number of free frames.
+	 */
+	public int getNumFree() {
+		return numFree;
+	}
+
+	/**
+	 * Return the total number of frames managed by this allocator.
+	 *
+	 * @return the number of physical frames.
+	 */
+	public int getNumFrames() {
+		return freeStack.length;
+	}
+
+	private int pop() {
+		int ppn = freeStack[--numFree];
+		refCounts[ppn] = 1;
+		return ppn;
+	}
+
+	private void push(int ppn) {
+		refCounts[ppn] = 0;
+		owners[ppn] = null;
+		sharers.remove(ppn);
+		freeStack[numFree++] = ppn;
+	}
+
+	/** Free frames; the top of the stack is <tt>freeStack[numFree - 1]</tt>. */
+	private int[] freeStack;
+
+	private int numFree;
+
+	/**
+	 * The number of processes referring to each frame; 0 if the frame is
+	 * free. An allocated frame starts with one reference.
+	 */
+	private int[] refCounts;
+
+	/**
+	 * A process's mapping of a frame.
+	 */
+	public static class Mapping {
+		Mapping(UserProcess process, int vpn) {
+			this.process = process;
+			this.vpn = vpn;
+		}
+
+		/** The process mapping the frame. */
+		public final UserProcess process;
+
+		/** The virtual page at which the process maps the frame. */
+		public final int vpn;
+	}
+
+	/** Every mapping of each frame mapped more than once, owner first. */
+	private HashMap<Integer, LinkedList<Mapping>> sharers = new HashMap<Integer, LinkedList<Mapping>>();
+
+	/** The process each frame is mapped into, or <tt>null</tt>. */
+	private UserProcess[] owners;
+
+	/** The virtual page each frame is mapped at by its owner. */
+	private int[] vpns;
+
+	private Lock lock;
+}
@@ -0,0 +1,212 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * The kernel side of <tt>futex()</tt>: queues of threads waiting on words of
+ * user memory, keyed by the address space and virtual address of the word.
+ * User programs keep their locks and condition variables in ordinary memory
+ * and only enter the kernel to wait when a lock is contended, or to wake the
+ * threads waiting on one.
+ *
+ * <p>
+ * The simulated MIPS has no atomic read-modify-write instructions, and a
+ * user thread can be preempted between any load and store, so the table also
+ * provides <tt>compareAndSwap()</tt>, which updates a word with no thread
+ * switch in between.
+ *
+ * <p>
+ * The queues are spread over a fixed number of hash buckets, each with its
+ * own lock, so that waits and wakes on unrelated words seldom contend. A
+ * waiter checks the word and joins its queue while holding the bucket lock,
+ * and a waker takes the same lock, so a wake that follows a store to the word
+ * cannot slip in between the check and the wait.
+ */
+public class FutexTable {
+	/**
+	 * Allocate a new futex table, with no waiters.
+	 */
+	public FutexTable() {
+		buckets = new Bucket[numBuckets];
+		for (int i = 0; i < numBuckets; i++)
+			buckets[i] = new Bucket();
+	}
+
+	/**
+	 * If the word at <i>vaddr</i> in <i>process</i>'s memory holds
+	 * <i>value</i>, wait until another thread wakes it with <tt>wake()</tt>,
+	 * or until <i>timeout</i> ticks have passed.
+	 *
+	 * @param process the process whose memory holds the word.
+	 * @param vaddr the address of the word, which must be aligned.
+	 * @param value the value the word must hold for the thread to wait.
+	 * @param timeout the most ticks to wait, or 0 to wait until woken.
+	 * @return 0 if the thread was woken, or -1 if the word did not hold
+	 * <i>value</i>, the timeout expired, or <i>vaddr</i> is not a readable
+	 * aligned address.
+	 */
+	public int wait(UserProcess process, int vaddr, int value, int timeout) {
+		if ((vaddr & 3) != 0 || timeout < 0)
+			return -1;
+
+		Bucket bucket = bucketFor(process, vaddr);
+		bucket.lock.acquire();
+
+		byte[] word = new byte[4];
+		if (process.readVirtualMemory(vaddr, word) != 4
+				|| Lib.bytesToInt(word, 0) != value || process.isExiting()) {
+			bucket.lock.release();
+			return -1;
+		}
+
+		Waiter waiter = new Waiter(process, vaddr, bucket.lock);
+		bucket.waiters.add(waiter);
+
+		long deadline = Machine.timer().getTime() + timeout;
+		while (!waiter.woken) {
+			if (timeout == 0) {
+				waiter.wakeup.sleep();
+				continue;
+			}
+
+			long remaining = deadline - Machine.timer().getTime();
+			if (remaining <= 0)
+				break;
+			waiter.wakeup.sleepFor(remaining);
+		}
+
+		boolean woken = waiter.woken;
+		if (!woken)
+			bucket.waiters.remove(waiter);
+		bucket.lock.release();
+
+		return woken ? 0 : -1;
+	}
+
+	/**
+	 * If the word at <i>vaddr</i> in <i>process</i>'s memory holds
+	 * <i>expected</i>, replace it with <i>newValue</i>. No other thread can
+	 * run between the load and the store.
+	 *
+	 * @param process the process whose memory holds the word.
+	 * @param vaddr the address of the word, which must be aligned.
+	 * @param expected the value the word must hold to be replaced.
+	 * @param newValue the value to store.
+	 * @return the value the word held, or -1 if <i>vaddr</i> is not a
+	 * writable aligned address.
+	 */
+	public int compareAndSwap(UserProcess process, int vaddr, int expected,
+			int newValue) {
+		if ((vaddr & 3) != 0)
+			return -1;
+
+		Bucket bucket = bucketFor(process, vaddr);
+		bucket.lock.acquire();
+
+		// pinning may fault the page in; after that nothing here can sleep
+		int paddr = process.pinVirtualPage(vaddr, true);
+		if (paddr == -1) {
+			bucket.lock.release();
+			return -1;
+		}
+
+		byte[] memory = Machine.processor().getMemory();
+		int value = Lib.bytesToInt(memory, paddr);
+		if (value == expected)
+			Lib.bytesFromInt(memory, paddr, newValue);
+
+		process.unpinVirtualPage(paddr);
+		bucket.lock.release();
+
+		return value;
+	}
+
+	/**
+	 * Wake up to <i>count</i> of the threads waiting on the word at
+	 * <i>vaddr</i> in <i>process</i>'s memory, longest waiting first.
+	 *
+	 * @param process the process whose memory holds the word.
+	 * @param vaddr the address of the word.
+	 * @param count the most threads to wake.
+	 * @return the number of threads woken.
+	 */
+	public int wake(UserProcess process, int vaddr, int count) {
+		Bucket bucket = bucketFor(process, vaddr);
+		int woken = 0;
+
+		bucket.lock.acquire();
+		Iterator<Waiter> i = bucket.waiters.iterator();
+		while (woken < count && i.hasNext()) {
+			Waiter waiter = i.next();
+			if (waiter.process == process && waiter.vaddr == vaddr) {
+				i.remove();
+				waiter.woken = true;
+				waiter.wakeup.wake();
+				woken++;
+			}
+		}
+		bucket.lock.release();
+
+		return woken;
+	}
+
+	/**
+	 * Wake every thread of <i>process</i> that is waiting on any word, so
+	 * that they notice the process is exiting.
+	 *
+	 * @param process the exiting process.
+	 */
+	public void wakeAll(UserProcess process) {
+		for (Bucket bucket : buckets) {
+			bucket.lock.acquire();
+			Iterator<Waiter> i = bucket.waiters.iterator();
+			while (i.hasNext()) {
+				Waiter waiter = i.next();
+				if (waiter.process == process) {
+					i.remove();
+					waiter.woken = true;
+					waiter.wakeup.wake();
+				}
+			}
+			bucket.lock.release();
+		}
+	}
+
+	private Bucket bucketFor(UserProcess process, int vaddr) {
+		int hash = process.hashCode() * 31 + (vaddr >>> 2);
+		return buckets[(hash ^ (hash >>> 16)) & (numBuckets - 1)];
+	}
+
+	private static class Bucket {
+		Lock lock = new Lock();
+
+		/** The waiters on every word that hashes here, oldest first. */
+		LinkedList<Waiter> waiters = new LinkedList<Waiter>();
+	}
+
+	private static class Waiter {
+		Waiter(UserProcess process, int vaddr, Lock lock) {
+			this.process = process;
+			this.vaddr = vaddr;
+			wakeup = new Condition2(lock);
+		}
+
+		UserProcess process;
+
+		int vaddr;
+
+		/** Set, with the bucket lock held, when the waiter is woken. */
+		boolean woken = false;
+
+		Condition2 wakeup;
+	}
+
+	/** The number of buckets, a power of two. */
+	private static final int numBuckets = 64;
+
+	private Bucket[] buckets;
+}
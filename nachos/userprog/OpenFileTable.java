@@ -0,0 +1,203 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * The system-wide table of open files. Every file descriptor refers to an
+ * <tt>Entry</tt> in this table, and descriptors created by <tt>dup()</tt>
+ * share their entry, and with it the underlying <tt>OpenFile</tt> and its
+ * file position. An entry's <tt>OpenFile</tt> is closed when the last
+ * descriptor referring to it is closed.
+ *
+ * <p>
+ * The table also counts how many entries have each disk file open. A file
+ * that is unlinked while open is only marked for removal; it is removed from
+ * the file system when its count drops to zero, and cannot be opened again in
+ * the meantime.
+ */
+public class OpenFileTable {
+	/**
+	 * Allocate a new, empty open file table.
+	 */
+	public OpenFileTable() {
+		lock = new Lock();
+	}
+
+	/**
+	 * Add an open file to the table, with a reference count of one.
+	 *
+	 * @param file the open file.
+	 * @param name the name of the file in <tt>ThreadedKernel.fileSystem</tt>,
+	 * or <tt>null</tt> if the file is a stream.
+	 * @return the new entry.
+	 */
+	public Entry add(OpenFile file, String name) {
+		Entry entry = new Entry(file, name);
+
+		if (name != null) {
+			lock.acquire();
+			Integer count = nameCounts.get(name);
+			nameCounts.put(name, (count == null) ? 1 : count + 1);
+			lock.release();
+		}
+
+		return entry;
+	}
+
+	/**
+	 * Add a reference to an entry, for a new descriptor that shares it.
+	 *
+	 * @param entry the entry.
+	 */
+	public void retain(Entry entry) {
+		lock.acquire();
+		Lib.assertTrue(entry.refCount > 0);
+		entry.refCount++;
+		lock.release();
+	}
+
+	/**
+	 * Drop a reference to an entry. When the last reference is dropped, the
+	 * file is closed, and removed if it was unlinked while open.
+	 *
+	 * @param entry the entry.
+	 */
+	public void release(Entry entry) {
+		String removeName = null;
+
+		lock.acquire();
+		Lib.assertTrue(entry.refCount > 0);
+		if (--entry.refCount == 0 && entry.name != null) {
+			int count = nameCounts.get(entry.name) - 1;
+			if (count > 0) {
+				nameCounts.put(entry.name, count);
+			}
+			else {
+				nameCounts.remove(entry.name);
+				if (unlinked.remove(entry.name))
+					removeName = entry.name;
+			}
+		}
+		int refCount = entry.refCount;
+		lock.release();
+
+		if (refCount == 0) {
+			entry.file.close();
+			if (removeName != null
+					&& !ThreadedKernel.fileSystem.remove(removeName))
+				Lib.debug(dbgProcess, "OpenFileTable: fail to remove "
+						+ removeName);
+		}
+	}
+
+	/**
+	 * Remove a file from the file system, or, if it is open, mark it to be
+	 * removed when it is last closed.
+	 *
+	 * @param name the name of the file.
+	 * @return <tt>true</tt> if the file was removed or marked for removal.
+	 */
+	public boolean unlink(String name) {
+		lock.acquire();
+		if (nameCounts.containsKey(name)) {
+			unlinked.add(name);
+			lock.release();
+			return true;
+		}
+		lock.release();
+
+		return ThreadedKernel.fileSystem.remove(name);
+	}
+
+	/**
+	 * Test whether a file has been unlinked but is still open, in which case
+	 * it may not be opened again.
+	 *
+	 * @param name the name of the file.
+	 * @return <tt>true</tt> if the file is waiting to be removed.
+	 */
+	public boolean isUnlinked(String name) {
+		lock.acquire();
+		boolean result = unlinked.contains(name);
+		lock.release();
+
+		return result;
+	}
+
+	/**
+	 * Test if this module is working: an entry is closed by its last release,
+	 * and a file unlinked while open is removed only then.
+	 */
+	public static void selfTest() {
+		OpenFileTable table = new OpenFileTable();
+		String name = "openfiletable.test";
+
+		OpenFile file = ThreadedKernel.fileSystem.open(name, true);
+		Lib.assertTrue(file != null);
+		Entry first = table.add(file, name);
+		Entry second = table.add(ThreadedKernel.fileSystem.open(name, false),
+				name);
+		table.retain(first);
+
+		Lib.assertTrue(table.unlink(name) && table.isUnlinked(name));
+		table.release(first);
+		table.release(second);
+		// first still has the reference taken for a dup()
+		Lib.assertTrue(table.isUnlinked(name));
+		OpenFile probe = ThreadedKernel.fileSystem.open(name, false);
+		Lib.assertTrue(probe != null);
+		probe.close();
+
+		table.release(first);
+		Lib.assertTrue(!table.isUnlinked(name));
+		Lib.assertTrue(ThreadedKernel.fileSystem.open(name, false) == null);
+	}
+
+	/**
+	 * An open file shared by one or more file descriptors.
+	 */
+	public static class Entry {
+		private Entry(OpenFile file, String name) {
+			this.file = file;
+			this.name = name;
+		}
+
+		/**
+		 * Return the open file.
+		 *
+		 * @return the open file.
+		 */
+		public OpenFile getFile() {
+			return file;
+		}
+
+		/**
+		 * Return the name the file was opened by.
+		 *
+		 * @return the file's name, or <tt>null</tt> if it is a stream.
+		 */
+		public String getName() {
+			return name;
+		}
+
+		private OpenFile file;
+
+		private String name;
+
+		private int refCount = 1;
+	}
+
+	/** The number of entries that have each disk file open. */
+	private HashMap<String, Integer> nameCounts = new HashMap<String, Integer>();
+
+	/** Open files that have been unlinked and await their last close. */
+	private HashSet<String> unlinked = new HashSet<String>();
+
+	private Lock lock;
+
+	private static final char dbgProcess = 'a';
+}
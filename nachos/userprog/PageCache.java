@@ -0,0 +1,156 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.HashMap;
+
+/**
+ * A cache of resident read-only executable pages, keyed by executable image,
+ * section number and page within the section. Processes running the same
+ * program share one frame for each text page instead of each loading a
+ * private copy.
+ *
+ * <p>
+ * An executable image is the <tt>Coff</tt> object returned by
+ * <tt>ExecutableCache.open()</tt>, compared by identity, not by file name.
+ * When the file is rewritten the executable cache parses a new image, so new
+ * processes never pick up text pages of the old program, while processes
+ * still running the old one keep sharing its pages among themselves.
+ *
+ * <p>
+ * Sharing is tracked with the reference counts kept by the
+ * <tt>FrameAllocator</tt>. A cached frame stays in the cache until the last
+ * process mapping it releases it, or until the VM clock algorithm evicts it.
+ * Because every process running an executable places its sections at the same
+ * virtual pages, a shared frame is always mapped at the same virtual page, as
+ * <tt>FrameAllocator.share()</tt> requires.
+ *
+ * <p>
+ * Every frame release that may drop the last reference to a cached frame
+ * must go through <tt>release()</tt>, so that the cache never hands out a
+ * free frame.
+ */
+public class PageCache {
+	/**
+	 * Allocate a new, empty page cache.
+	 *
+	 * @param frameAllocator the allocator whose frames are cached.
+	 */
+	public PageCache(FrameAllocator frameAllocator) {
+		this.frameAllocator = frameAllocator;
+		keys = new PageKey[frameAllocator.getNumFrames()];
+		lock = new Lock();
+	}
+
+	/**
+	 * Look up a page, and if it is resident, add <i>process</i> as a sharer of
+	 * its frame.
+	 *
+	 * @param executable the executable image.
+	 * @param section the section number within the executable.
+	 * @param page the page number within the section.
+	 * @param process the process that will map the page.
+	 * @return the physical page number of the frame, or -1 if the page is not
+	 * cached.
+	 */
+	public int share(Coff executable, int section, int page,
+			UserProcess process) {
+		lock.acquire();
+		Integer ppn = frames.get(new PageKey(executable, section, page));
+		if (ppn != null)
+			frameAllocator.share(ppn, process);
+		lock.release();
+
+		return (ppn == null) ? -1 : ppn;
+	}
+
+	/**
+	 * Add a frame that has just been loaded with a read-only page to the
+	 * cache. Does nothing if the page is already cached in another frame.
+	 *
+	 * @param executable the executable image.
+	 * @param section the section number within the executable.
+	 * @param page the page number within the section.
+	 * @param ppn the frame holding the page.
+	 */
+	public void add(Coff executable, int section, int page, int ppn) {
+		PageKey key = new PageKey(executable, section, page);
+
+		lock.acquire();
+		if (!frames.containsKey(key) && keys[ppn] == null) {
+			frames.put(key, ppn);
+			keys[ppn] = key;
+		}
+		lock.release();
+	}
+
+	/**
+	 * Drop <i>process</i>'s reference to a frame, which need not be cached. If
+	 * that was the last reference, the frame is freed and leaves the cache.
+	 *
+	 * @param ppn the physical page number of the frame.
+	 * @param process the process that no longer maps the frame.
+	 */
+	public void release(int ppn, UserProcess process) {
+		lock.acquire();
+		if (frameAllocator.release(ppn, process) == 0)
+			forgetLocked(ppn);
+		lock.release();
+	}
+
+	/**
+	 * Remove a frame from the cache because it is about to be reused, for
+	 * example when the clock algorithm evicts it.
+	 *
+	 * @param ppn the physical page number of the frame.
+	 */
+	public void forget(int ppn) {
+		lock.acquire();
+		forgetLocked(ppn);
+		lock.release();
+	}
+
+	private void forgetLocked(int ppn) {
+		if (keys[ppn] != null) {
+			frames.remove(keys[ppn]);
+			keys[ppn] = null;
+		}
+	}
+
+	private static class PageKey {
+		PageKey(Coff executable, int section, int page) {
+			this.executable = executable;
+			this.section = section;
+			this.page = page;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof PageKey))
+				return false;
+
+			PageKey key = (PageKey) o;
+			return section == key.section && page == key.page
+					&& executable == key.executable;
+		}
+
+		public int hashCode() {
+			return (System.identityHashCode(executable) * 31 + section) * 31
+					+ page;
+		}
+
+		private Coff executable;
+
+		private int section, page;
+	}
+
+	private FrameAllocator frameAllocator;
+
+	/** The frame holding each cached page. */
+	private HashMap<PageKey, Integer> frames = new HashMap<PageKey, Integer>();
+
+	/** The page cached in each frame, or <tt>null</tt>. */
+	private PageKey[] keys;
+
+	private Lock lock;
+}
@@ -0,0 +1,332 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A one-way byte stream between processes, buffered in a fixed-size ring in
+ * kernel memory. A pipe has a read end and a write end, each an
+ * <tt>OpenFile</tt> that can be installed in a file descriptor table.
+ *
+ * <p>
+ * Reading from an empty pipe waits until a writer adds data, and returns
+ * whatever is buffered, up to the amount requested. Once the write end is
+ * closed, reading from an empty pipe returns 0 (end of file). Writing waits
+ * until all the data fits in the ring; if the read end is closed, the write
+ * stops early and returns the number of bytes written.
+ *
+ * <p>
+ * Data is copied between the ring and the caller's buffer with at most two
+ * array copies per transfer, one on each side of the point where the ring
+ * wraps.
+ *
+ * <p>
+ * A caller that copies straight into pinned user frames must not sleep with
+ * a frame pinned. It waits with <tt>waitForData()</tt> or
+ * <tt>waitForSpace()</tt> first, then pins and transfers with
+ * <tt>readAvailable()</tt> or <tt>writeAvailable()</tt>, which never wait.
+ * These waits also give up once the waiting process starts exiting, when
+ * the process calls <tt>interrupt()</tt> on each pipe end it holds.
+ */
+public class Pipe {
+	/**
+	 * Allocate a new pipe.
+	 *
+	 * @param capacity the number of bytes the pipe can buffer. Must be
+	 * positive.
+	 */
+	public Pipe(int capacity) {
+		Lib.assertTrue(capacity > 0);
+
+		buffer = new byte[capacity];
+		lock = new Lock();
+		notEmpty = new Condition2(lock);
+		notFull = new Condition2(lock);
+	}
+
+	/**
+	 * Return the read end of this pipe. Closing it tells writers that nobody
+	 * will read what they write.
+	 *
+	 * @return the read end.
+	 */
+	public ReadEnd getReadEnd() {
+		return readEnd;
+	}
+
+	/**
+	 * Return the write end of this pipe. Closing it delivers end of file to
+	 * readers once they have drained the pipe.
+	 *
+	 * @return the write end.
+	 */
+	public WriteEnd getWriteEnd() {
+		return writeEnd;
+	}
+
+	/**
+	 * Wake everything waiting on the pipe that <i>file</i> is an end of, so
+	 * that waiters whose process is exiting can give up. Does nothing if
+	 * <i>file</i> is not a pipe end.
+	 *
+	 * @param file an open file held by an exiting process.
+	 */
+	public static void interrupt(OpenFile file) {
+		Pipe pipe;
+		if (file instanceof ReadEnd)
+			pipe = ((ReadEnd) file).getPipe();
+		else if (file instanceof WriteEnd)
+			pipe = ((WriteEnd) file).getPipe();
+		else
+			return;
+
+		pipe.lock.acquire();
+		pipe.notEmpty.wakeAll();
+		pipe.notFull.wakeAll();
+		pipe.lock.release();
+	}
+
+	/**
+	 * Test if this module is working: data written in large blocks through a
+	 * small ring arrives in order, the reader sees end of file after the
+	 * write end is closed, and a writer stops once the read end is closed.
+	 */
+	public static void selfTest() {
+		final Pipe pipe = new Pipe(7);
+		final byte[] data = new byte[100];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) i;
+
+		KThread writer = new KThread(new Runnable() {
+			public void run() {
+				OpenFile out = pipe.getWriteEnd();
+				Lib.assertTrue(out.write(data, 0, 60) == 60);
+				Lib.assertTrue(out.write(data, 60, 40) == 40);
+				out.close();
+			}
+		}).setName("pipe writer");
+		writer.fork();
+
+		byte[] received = new byte[data.length + 1];
+		int total = 0, amount;
+		while ((amount = pipe.getReadEnd().read(received, total,
+				Math.min(9, received.length - total))) > 0)
+			total += amount;
+		writer.join();
+
+		Lib.assertTrue(total == data.length);
+		for (int i = 0; i < data.length; i++)
+			Lib.assertTrue(received[i] == data[i]);
+
+		// with nobody reading, a write returns what fit in the ring
+		final Pipe closed = new Pipe(7);
+		writer = new KThread(new Runnable() {
+			public void run() {
+				Lib.assertTrue(closed.getWriteEnd().write(data, 0, 20) == 7);
+			}
+		}).setName("orphaned pipe writer");
+		writer.fork();
+		KThread.yield();
+		closed.getReadEnd().close();
+		writer.join();
+	}
+
+	/**
+	 * Move up to <i>length</i> bytes out of the ring. Must be called with the
+	 * lock held.
+	 */
+	private int dequeue(byte[] buf, int offset, int length) {
+		int amount = Math.min(length, count);
+
+		int first = Math.min(amount, buffer.length - head);
+		System.arraycopy(buffer, head, buf, offset, first);
+		System.arraycopy(buffer, 0, buf, offset + first, amount - first);
+
+		head = (head + amount) % buffer.length;
+		count -= amount;
+		if (amount > 0)
+			notFull.wakeAll();
+
+		return amount;
+	}
+
+	/**
+	 * Move up to <i>length</i> bytes into the ring. Must be called with the
+	 * lock held.
+	 */
+	private int enqueue(byte[] buf, int offset, int length) {
+		int amount = Math.min(length, buffer.length - count);
+		int tail = (head + count) % buffer.length;
+
+		int first = Math.min(amount, buffer.length - tail);
+		System.arraycopy(buf, offset, buffer, tail, first);
+		System.arraycopy(buf, offset + first, buffer, 0, amount - first);
+
+		count += amount;
+		if (amount > 0)
+			notEmpty.wakeAll();
+
+		return amount;
+	}
+
+	/**
+	 * The read end of a pipe.
+	 */
+	public class ReadEnd extends OpenFile {
+		private ReadEnd() {
+			super(null, "Pipe");
+		}
+
+		/**
+		 * Read from the pipe, waiting for data if it is empty.
+		 *
+		 * @return the number of bytes read, which is 0 only at end of file.
+		 */
+		public int read(byte[] buf, int offset, int length) {
+			lock.acquire();
+			while (count == 0 && writerOpen && length > 0)
+				notEmpty.sleep();
+			int amount = dequeue(buf, offset, length);
+			lock.release();
+
+			return amount;
+		}
+
+		private Pipe getPipe() {
+			return Pipe.this;
+		}
+
+		/**
+		 * Wait until the pipe holds data or its write end is closed, without
+		 * reading anything.
+		 *
+		 * @param waiter the process on whose behalf to wait.
+		 * @return <tt>true</tt> if there is data to read, or <tt>false</tt>
+		 * at end of file or if <i>waiter</i> is exiting.
+		 */
+		public boolean waitForData(UserProcess waiter) {
+			lock.acquire();
+			while (count == 0 && writerOpen && !waiter.isExiting())
+				notEmpty.sleep();
+			boolean ready = (count > 0);
+			lock.release();
+
+			return ready;
+		}
+
+		/**
+		 * Read only what is already buffered, without waiting. Lets a reader
+		 * that has already received some data return it instead of waiting
+		 * for more.
+		 *
+		 * @return the number of bytes read, possibly 0.
+		 */
+		public int readAvailable(byte[] buf, int offset, int length) {
+			lock.acquire();
+			int amount = dequeue(buf, offset, length);
+			lock.release();
+
+			return amount;
+		}
+
+		public int write(byte[] buf, int offset, int length) {
+			return -1;
+		}
+
+		public void close() {
+			lock.acquire();
+			readerOpen = false;
+			notFull.wakeAll();
+			lock.release();
+		}
+	}
+
+	/**
+	 * The write end of a pipe.
+	 */
+	public class WriteEnd extends OpenFile {
+		private WriteEnd() {
+			super(null, "Pipe");
+		}
+
+		public int read(byte[] buf, int offset, int length) {
+			return -1;
+		}
+
+		public int write(byte[] buf, int offset, int length) {
+			int written = 0;
+
+			lock.acquire();
+			while (written < length && readerOpen) {
+				int amount = enqueue(buf, offset + written, length - written);
+				written += amount;
+				if (amount == 0)
+					notFull.sleep();
+			}
+			lock.release();
+
+			return written;
+		}
+
+		private Pipe getPipe() {
+			return Pipe.this;
+		}
+
+		/**
+		 * Wait until the pipe has room for at least one byte or its read end
+		 * is closed, without writing anything.
+		 *
+		 * @param waiter the process on whose behalf to wait.
+		 * @return <tt>true</tt> if there is room to write, or <tt>false</tt>
+		 * if nobody will read or <i>waiter</i> is exiting.
+		 */
+		public boolean waitForSpace(UserProcess waiter) {
+			lock.acquire();
+			while (count == buffer.length && readerOpen && !waiter.isExiting())
+				notFull.sleep();
+			boolean ready = readerOpen && count < buffer.length;
+			lock.release();
+
+			return ready;
+		}
+
+		/**
+		 * Write only as much as fits in the ring now, without waiting.
+		 *
+		 * @return the number of bytes written, possibly 0.
+		 */
+		public int writeAvailable(byte[] buf, int offset, int length) {
+			lock.acquire();
+			int amount = readerOpen ? enqueue(buf, offset, length) : 0;
+			lock.release();
+
+			return amount;
+		}
+
+		public void close() {
+			lock.acquire();
+			writerOpen = false;
+			notEmpty.wakeAll();
+			lock.release();
+		}
+	}
+
+	private ReadEnd readEnd = new ReadEnd();
+
+	private WriteEnd writeEnd = new WriteEnd();
+
+	/** The ring buffer. */
+	private byte[] buffer;
+
+	/** The index of the oldest buffered byte. */
+	private int head = 0;
+
+	/** The number of buffered bytes. */
+	private int count = 0;
+
+	private boolean readerOpen = true, writerOpen = true;
+
+	private Lock lock;
+
+	private Condition2 notEmpty, notFull;
+}
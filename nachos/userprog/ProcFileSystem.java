@@ -0,0 +1,236 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.HashMap;
+
+/**
+ * A read-only pseudo-file system of live kernel statistics, in the style of
+ * <tt>/proc</tt>, layered in front of another file system. Names starting
+ * with <tt>proc/</tt> are pseudo-files; every other name is passed through.
+ *
+ * <p>
+ * There are two kinds of pseudo-file. A system-wide file, such as
+ * <tt>proc/stat</tt>, has a single name. A per-process file, such as
+ * <tt>status</tt>, appears once for each process in the process table, as
+ * <tt>proc/<i>pid</i>/status</tt>, and once more as
+ * <tt>proc/self/status</tt> for the process that opens it. The kernel
+ * registers a <tt>Generator</tt> for each file.
+ *
+ * <p>
+ * Opening a pseudo-file does no work. Its contents are generated the first
+ * time it is read, or its length is asked for, and are then kept until it is
+ * closed, so that a program reading it a piece at a time sees one consistent
+ * snapshot. Opening the file again gives a new snapshot.
+ */
+public class ProcFileSystem implements FileSystem {
+	/**
+	 * Allocate a new pseudo-file system, with no files registered.
+	 *
+	 * @param fileSystem the file system that holds every other name.
+	 */
+	public ProcFileSystem(FileSystem fileSystem) {
+		this.fileSystem = fileSystem;
+	}
+
+	/**
+	 * Add a system-wide pseudo-file.
+	 *
+	 * @param name the file's name, without the <tt>proc/</tt> prefix.
+	 * @param generator produces the file's contents; it is passed
+	 * <tt>null</tt>.
+	 */
+	public void register(String name, Generator generator) {
+		files.put(name, generator);
+	}
+
+	/**
+	 * Add a pseudo-file to the directory of every process.
+	 *
+	 * @param name the file's name within a process's directory.
+	 * @param generator produces the file's contents for the process it is
+	 * passed.
+	 */
+	public void registerProcessFile(String name, Generator generator) {
+		processFiles.put(name, generator);
+	}
+
+	/**
+	 * Open a pseudo-file, or pass the request on to the underlying file
+	 * system. Pseudo-files cannot be created.
+	 *
+	 * @return the open file, or <tt>null</tt> if there is no such file.
+	 */
+	public OpenFile open(String name, boolean create) {
+		if (!name.startsWith(prefix))
+			return fileSystem.open(name, create);
+
+		String path = name.substring(prefix.length());
+		Generator generator = files.get(path);
+		if (generator != null)
+			return new ProcFile(name, generator, null);
+
+		int slash = path.indexOf('/');
+		if (slash == -1)
+			return null;
+		generator = processFiles.get(path.substring(slash + 1));
+		UserProcess process = findProcess(path.substring(0, slash));
+		if (generator == null || process == null)
+			return null;
+
+		return new ProcFile(name, generator, process);
+	}
+
+	/**
+	 * Remove a file from the underlying file system. Pseudo-files cannot be
+	 * removed.
+	 *
+	 * @return <tt>true</tt> if the file was removed.
+	 */
+	public boolean remove(String name) {
+		if (name.startsWith(prefix))
+			return false;
+
+		return fileSystem.remove(name);
+	}
+
+	/**
+	 * Return the process named by a directory under <tt>proc/</tt>: a pid,
+	 * or <tt>self</tt>.
+	 */
+	private UserProcess findProcess(String directory) {
+		if (directory.equals("self")) {
+			KThread thread = KThread.currentThread();
+			return (thread instanceof UThread) ? ((UThread) thread).process
+					: null;
+		}
+
+		int pid;
+		try {
+			pid = Integer.parseInt(directory);
+		}
+		catch (NumberFormatException e) {
+			return null;
+		}
+		return UserKernel.processTable.get(pid);
+	}
+
+	/**
+	 * Test if this module is working: contents are generated on first read
+	 * and kept until the file is closed, and other names pass through.
+	 */
+	public static void selfTest() {
+		ProcFileSystem fileSystem = new ProcFileSystem(
+				ThreadedKernel.fileSystem);
+		final int[] generated = new int[1];
+		fileSystem.register("count", new Generator() {
+			public String generate(UserProcess process) {
+				Lib.assertTrue(process == null);
+				return "count " + (++generated[0]) + "\n";
+			}
+		});
+		fileSystem.registerProcessFile("status", new Generator() {
+			public String generate(UserProcess process) {
+				return "";
+			}
+		});
+
+		OpenFile file = fileSystem.open("proc/count", false);
+		Lib.assertTrue(file != null && generated[0] == 0);
+
+		byte[] buf = new byte[16];
+		Lib.assertTrue(file.read(buf, 0, 3) == 3);
+		Lib.assertTrue(file.read(buf, 3, buf.length - 3) == 5);
+		Lib.assertTrue(file.length() == 8 && generated[0] == 1);
+		Lib.assertTrue(new String(buf, 0, 8).equals("count 1\n"));
+		Lib.assertTrue(file.write(buf, 0, 1) == -1);
+		file.close();
+
+		file = fileSystem.open("proc/count", false);
+		Lib.assertTrue(file.read(0, buf, 0, buf.length) == 8);
+		Lib.assertTrue(new String(buf, 0, 8).equals("count 2\n"));
+		file.close();
+
+		// a kernel thread has no proc/self, and pseudo-files stay put
+		Lib.assertTrue(fileSystem.open("proc/self/status", false) == null);
+		Lib.assertTrue(fileSystem.open("proc/nosuch", false) == null);
+		Lib.assertTrue(fileSystem.open("proc/x/status", false) == null);
+		Lib.assertTrue(fileSystem.open("proc/new", true) == null);
+		Lib.assertTrue(!fileSystem.remove("proc/count"));
+
+		file = fileSystem.open("halt.coff", false);
+		Lib.assertTrue(file != null);
+		file.close();
+	}
+
+	/**
+	 * Produces the contents of a pseudo-file.
+	 */
+	public interface Generator {
+		/**
+		 * Return the current contents of the file.
+		 *
+		 * @param process the process a per-process file describes, or
+		 * <tt>null</tt> for a system-wide file.
+		 * @return the file's contents.
+		 */
+		public String generate(UserProcess process);
+	}
+
+	/**
+	 * An open pseudo-file, holding the snapshot of its contents once it has
+	 * been generated.
+	 */
+	private class ProcFile extends OpenFileWithPosition {
+		ProcFile(String name, Generator generator, UserProcess process) {
+			super(ProcFileSystem.this, name);
+			this.generator = generator;
+			this.process = process;
+		}
+
+		public int length() {
+			return getContents().length;
+		}
+
+		public int read(int position, byte[] buf, int offset, int length) {
+			byte[] contents = getContents();
+			if (position < 0 || length < 0)
+				return -1;
+			if (position >= contents.length)
+				return 0;
+
+			length = Math.min(length, contents.length - position);
+			System.arraycopy(contents, position, buf, offset, length);
+			return length;
+		}
+
+		public int write(int position, byte[] buf, int offset, int length) {
+			return -1;
+		}
+
+		public void close() {
+			contents = null;
+		}
+
+		private byte[] getContents() {
+			if (contents == null)
+				contents = generator.generate(process).getBytes();
+			return contents;
+		}
+
+		private Generator generator;
+
+		private UserProcess process;
+
+		private byte[] contents = null;
+	}
+
+	private static final String prefix = "proc/";
+
+	private FileSystem fileSystem;
+
+	private HashMap<String, Generator> files = new HashMap<String, Generator>();
+
+	private HashMap<String, Generator> processFiles = new HashMap<String, Generator>();
+}
@@ -0,0 +1,153 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.ArrayList;
+
+/**
+ * The kernel-wide table of user processes, indexed by process ID. Looking up
+ * a process by its ID takes constant time.
+ *
+ * <p>
+ * A process ID is allocated when a process is created and stays in use until
+ * the process has exited and been reaped by its parent (or, for a process
+ * with no parent, until it exits). Released IDs are reused before new ones are
+ * handed out, so the table only grows to the largest number of processes that
+ * existed at once.
+ *
+ * <p>
+ * The table also counts the processes that are running, so the kernel can
+ * terminate when the last one exits.
+ */
+public class ProcessTable {
+	/**
+	 * Allocate a new, empty process table.
+	 */
+	public ProcessTable() {
+		processes = new UserProcess[initialSize];
+		freePids = new int[initialSize];
+		lock = new Lock();
+	}
+
+	/**
+	 * Add a process to the table.
+	 *
+	 * @param process the new process.
+	 * @return the process ID assigned to <i>process</i>.
+	 */
+	public int add(UserProcess process) {
+		lock.acquire();
+
+		int pid;
+		if (numFree > 0) {
+			pid = freePids[--numFree];
+		}
+		else {
+			pid = nextPid++;
+			if (pid == processes.length) {
+				UserProcess[] newProcesses = new UserProcess[processes.length * 2];
+				System.arraycopy(processes, 0, newProcesses, 0, processes.length);
+				processes = newProcesses;
+			}
+		}
+		processes[pid] = process;
+
+		lock.release();
+
+		return pid;
+	}
+
+	/**
+	 * Return the process with the specified ID.
+	 *
+	 * @param pid the process ID.
+	 * @return the process, or <tt>null</tt> if no process has that ID.
+	 */
+	public UserProcess get(int pid) {
+		lock.acquire();
+		UserProcess process = (pid > 0 && pid < nextPid) ? processes[pid] : null;
+		lock.release();
+
+		return process;
+	}
+
+	/**
+	 * Remove a process from the table, making its ID available for reuse.
+	 *
+	 * @param pid the ID of the process to remove.
+	 */
+	public void remove(int pid) {
+		lock.acquire();
+
+		Lib.assertTrue(pid > 0 && pid < nextPid && processes[pid] != null);
+		processes[pid] = null;
+
+		if (numFree == freePids.length) {
+			int[] newFreePids = new int[freePids.length * 2];
+			System.arraycopy(freePids, 0, newFreePids, 0, numFree);
+			freePids = newFreePids;
+		}
+		freePids[numFree++] = pid;
+
+		lock.release();
+	}
+
+	/**
+	 * Return every process in the table, in order of process ID.
+	 *
+	 * @return the processes, including those that have exited but have not
+	 * been reaped.
+	 */
+	public UserProcess[] getProcesses() {
+		lock.acquire();
+		ArrayList<UserProcess> result = new ArrayList<UserProcess>();
+		for (int pid = 1; pid < nextPid; pid++) {
+			if (processes[pid] != null)
+				result.add(processes[pid]);
+		}
+		lock.release();
+
+		return result.toArray(new UserProcess[result.size()]);
+	}
+
+	/**
+	 * Record that a process has started running.
+	 */
+	public void processStarted() {
+		lock.acquire();
+		numRunning++;
+		lock.release();
+	}
+
+	/**
+	 * Record that a running process has exited.
+	 *
+	 * @return <tt>true</tt> if no processes are left running.
+	 */
+	public boolean processExited() {
+		lock.acquire();
+		Lib.assertTrue(numRunning > 0);
+		boolean last = (--numRunning == 0);
+		lock.release();
+
+		return last;
+	}
+
+	private static final int initialSize = 16;
+
+	/** Processes indexed by ID. ID 0 is never used. */
+	private UserProcess[] processes;
+
+	/** The smallest ID that has never been handed out. */
+	private int nextPid = 1;
+
+	/** Released IDs, most recently released on top. */
+	private int[] freePids;
+
+	private int numFree = 0;
+
+	private int numRunning = 0;
+
+	private Lock lock;
+}
@@ -0,0 +1,223 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * The shared memory segments of the system, which processes create or look
+ * up with <tt>shmget()</tt> and map into their address spaces with
+ * <tt>shmat()</tt>. Every process attached to a segment maps the same
+ * physical frames, so data stored by one process is seen by the others
+ * without being copied.
+ *
+ * <p>
+ * A segment is given a frame for a page the first time any process uses the
+ * page, and keeps a reference to the frame, separate from the references of
+ * the processes mapping it, so that the page survives while no process maps
+ * it. Under virtual memory a page may also be evicted to a swap page, which
+ * the segment records. Segments are reference counted by attachment, and a
+ * segment is destroyed, and its frames freed, when the last process detaches
+ * from it.
+ *
+ * <p>
+ * The pages of a segment are guarded by <tt>UserKernel.pageLock</tt>, like
+ * page tables; the table of segments is guarded by a lock of its own.
+ */
+public class SharedMemory {
+	/**
+	 * Allocate a new, empty table of segments.
+	 */
+	public SharedMemory() {
+		lock = new Lock();
+	}
+
+	/**
+	 * Return the ID of the segment with the specified key, creating a new
+	 * segment of <i>size</i> bytes if there is none. Key 0 always creates a
+	 * new segment.
+	 *
+	 * @param key the key identifying the segment.
+	 * @param size the size of the segment in bytes, which must be no larger
+	 * than an existing segment.
+	 * @return the segment's ID, or -1 if <i>size</i> is not valid.
+	 */
+	public int get(int key, int size) {
+		if (size <= 0)
+			return -1;
+		int numPages = (size + pageSize - 1) / pageSize;
+
+		lock.acquire();
+		Segment segment = (key != 0) ? byKey.get(key) : null;
+		if (segment != null && numPages > segment.frames.length) {
+			lock.release();
+			Lib.debug(dbgProcess, "SharedMemory: segment " + key
+					+ " is smaller than " + size + " bytes");
+			return -1;
+		}
+		if (segment == null) {
+			segment = new Segment(nextID++, key, numPages);
+			byID.put(segment.id, segment);
+			if (key != 0)
+				byKey.put(key, segment);
+		}
+		lock.release();
+
+		return segment.id;
+	}
+
+	/**
+	 * Add a reference to a segment, for a process attaching to it.
+	 *
+	 * @param id the segment's ID.
+	 * @return the segment, or <tt>null</tt> if there is no such segment.
+	 */
+	public Segment attach(int id) {
+		lock.acquire();
+		Segment segment = byID.get(id);
+		if (segment != null)
+			segment.attachments++;
+		lock.release();
+
+		return segment;
+	}
+
+	/**
+	 * Drop a reference to a segment, for a process detaching from it. When
+	 * the last reference is dropped the segment is destroyed: it leaves the
+	 * table, and its frames are released. Must be called with
+	 * <tt>UserKernel.pageLock</tt> held, after the process has unmapped the
+	 * segment.
+	 *
+	 * @param segment the segment.
+	 * @return <tt>true</tt> if the segment was destroyed. The caller must then
+	 * free any swap pages the segment records.
+	 */
+	public boolean detach(Segment segment) {
+		lock.acquire();
+		boolean destroyed = (--segment.attachments == 0);
+		if (destroyed) {
+			byID.remove(segment.id);
+			if (segment.key != 0 && byKey.get(segment.key) == segment)
+				byKey.remove(segment.key);
+		}
+		lock.release();
+
+		if (destroyed) {
+			for (int i = 0; i < segment.frames.length; i++) {
+				if (segment.frames[i] != -1)
+					UserKernel.frameAllocator.release(segment.frames[i], null);
+			}
+		}
+
+		return destroyed;
+	}
+
+	/**
+	 * Test if this module is working: keys find their segment, and a segment
+	 * lives until its last attachment is dropped.
+	 */
+	public static void selfTest() {
+		SharedMemory table = new SharedMemory();
+
+		int id = table.get(5, 3 * pageSize);
+		Lib.assertTrue(id > 0 && table.get(5, pageSize) == id);
+		Lib.assertTrue(table.get(5, 4 * pageSize) == -1);
+		Lib.assertTrue(table.get(0, pageSize) != id);
+		Lib.assertTrue(table.get(6, 0) == -1);
+
+		Segment first = table.attach(id), second = table.attach(id);
+		Lib.assertTrue(first == second && first.getNumPages() == 3);
+
+		UserKernel.pageLock.acquire();
+		Lib.assertTrue(!table.detach(first));
+		Lib.assertTrue(table.detach(second));
+		UserKernel.pageLock.release();
+
+		// the key is free again once its segment is destroyed
+		Lib.assertTrue(table.attach(id) == null);
+		Lib.assertTrue(table.get(5, 4 * pageSize) != id);
+	}
+
+	/**
+	 * A shared memory segment.
+	 */
+	public static class Segment {
+		private Segment(int id, int key, int numPages) {
+			this.id = id;
+			this.key = key;
+			frames = new int[numPages];
+			swapPages = new int[numPages];
+			Arrays.fill(frames, -1);
+			Arrays.fill(swapPages, -1);
+		}
+
+		/**
+		 * Return the segment's ID, as returned by <tt>shmget()</tt>.
+		 */
+		public int getID() {
+			return id;
+		}
+
+		/**
+		 * Return the number of pages in the segment.
+		 */
+		public int getNumPages() {
+			return frames.length;
+		}
+
+		/**
+		 * Return the frame holding page <i>page</i> of the segment, or -1 if
+		 * the page is not resident.
+		 */
+		public int getFrame(int page) {
+			return frames[page];
+		}
+
+		/**
+		 * Record the frame holding page <i>page</i>, or -1 once the page has
+		 * been evicted. The segment takes over the reference the caller holds
+		 * on a new frame.
+		 */
+		public void setFrame(int page, int ppn) {
+			frames[page] = ppn;
+		}
+
+		/**
+		 * Return the swap page holding page <i>page</i> of the segment, or -1.
+		 */
+		public int getSwapPage(int page) {
+			return swapPages[page];
+		}
+
+		/**
+		 * Record the swap page holding page <i>page</i>, or -1 if none does.
+		 */
+		public void setSwapPage(int page, int spn) {
+			swapPages[page] = spn;
+		}
+
+		private int id, key;
+
+		/** The number of attachments to the segment, across all processes. */
+		private int attachments = 0;
+
+		private int[] frames;
+
+		private int[] swapPages;
+	}
+
+	private HashMap<Integer, Segment> byID = new HashMap<Integer, Segment>();
+
+	private HashMap<Integer, Segment> byKey = new HashMap<Integer, Segment>();
+
+	private int nextID = 1;
+
+	private Lock lock;
+
+	private static final int pageSize = Processor.pageSize;
+
+	private static final char dbgProcess = 'a';
+}
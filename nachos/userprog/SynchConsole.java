@@ -7,6 +7,27 @@ import nachos.userprog.*;
 /**
  * Provides a simple, synchronized interface to the machine's console. The
  * interface can also be accessed through <tt>OpenFile</tt> objects.
+ *
+ * <p>
+ * Output is buffered in a ring and sent by the console's send interrupt
+ * handler, one byte per interrupt, so writers only wait when the ring is
+ * full. Buffered output starts draining when a newline is written, when the
+ * ring fills, or <tt>SynchConsole.flushDelay</tt> ticks after the first byte
+ * was buffered, and keeps draining until the ring is empty.
+ *
+ * <p>
+ * Input is moved out of the device by the receive interrupt handler as soon
+ * as it arrives, into a second ring, so the device can take the next key
+ * without waiting for a reader. Readers sleep until the handler adds input,
+ * and a file read takes everything buffered at once. When the input ring is
+ * full, keys are left in the device, which stops receiving until a reader
+ * makes room.
+ *
+ * <p>
+ * This batches reads; it does not make input event-driven. The device still
+ * checks the host for a key every <tt>Stats.ConsoleTime</tt> ticks, whether
+ * or not anyone is reading, and raises the receive interrupt when it finds
+ * one.
  */
 public class SynchConsole {
 	/**
@@ -28,6 +49,17 @@ public class SynchConsole {
 			}
 		};
 		console.setInterruptHandlers(receiveHandler, sendHandler);
+
+		outBuffer = new byte[Config.getInteger("SynchConsole.bufferSize", 4096)];
+		flushDelay = Config.getInteger("SynchConsole.flushDelay", 2000);
+		inBuffer = new byte[Config.getInteger("SynchConsole.inputBufferSize",
+				256)];
+
+		new KThread(new Runnable() {
+			public void run() {
+				runFlusher();
+			}
+		}).setName("console flusher").fork();
 	}
 
 	/**
@@ -41,26 +73,66 @@ public class SynchConsole {
 	 * and no byte was available.
 	 */
 	public int readByte(boolean block) {
-		int value;
-		boolean intStatus = Machine.interrupt().disable();
 		readLock.acquire();
+		boolean intStatus = Machine.interrupt().disable();
 
-		if (block || charAvailable) {
-			charAvailable = false;
+		while (block && inCount == 0) {
+			waitingForInput = true;
 			readWait.P();
-
-			value = console.readByte();
-			Lib.assertTrue(value != -1);
 		}
-		else {
-			value = -1;
+
+		int value = -1;
+		if (inCount > 0) {
+			byte[] buf = new byte[1];
+			readBuffered(buf, 0, 1);
+			value = buf[0] & 0xFF;
 		}
 
-		readLock.release();
 		Machine.interrupt().restore(intStatus);
+		readLock.release();
 		return value;
 	}
 
+	/**
+	 * Read every byte that has arrived, up to <i>length</i> bytes, without
+	 * waiting.
+	 * 
+	 * @param buf the buffer to store the bytes in.
+	 * @param offset the offset in the buffer of the first byte.
+	 * @param length the maximum number of bytes to read.
+	 * @return the number of bytes read, possibly 0.
+	 */
+	public int readBytes(byte[] buf, int offset, int length) {
+		readLock.acquire();
+		boolean intStatus = Machine.interrupt().disable();
+
+		int amount = readBuffered(buf, offset, length);
+
+		Machine.interrupt().restore(intStatus);
+		readLock.release();
+		return amount;
+	}
+
+	/**
+	 * Move bytes out of the input ring, then refill it from the device if a
+	 * key was left there. Interrupts must be disabled.
+	 */
+	private int readBuffered(byte[] buf, int offset, int length) {
+		int amount = Math.min(length, inCount);
+		int first = Math.min(amount, inBuffer.length - inHead);
+		System.arraycopy(inBuffer, inHead, buf, offset, first);
+		System.arraycopy(inBuffer, 0, buf, offset + first, amount - first);
+		inHead = (inHead + amount) % inBuffer.length;
+		inCount -= amount;
+
+		if (amount > 0 && keyWaiting) {
+			keyWaiting = false;
+			receiveKey();
+		}
+
+		return amount;
+	}
+
 	/**
 	 * Return an <tt>OpenFile</tt> that can be used to read this as a file.
 	 * 
@@ -71,22 +143,98 @@ public class SynchConsole {
 	}
 
 	private void receiveInterrupt() {
-		charAvailable = true;
-		readWait.V();
+		if (inCount == inBuffer.length)
+			keyWaiting = true;
+		else
+			receiveKey();
 	}
 
 	/**
-	 * Send a byte. Blocks until the send is complete.
+	 * Move the key the device is holding into the input ring, which frees the
+	 * device to receive the next one.
+	 */
+	private void receiveKey() {
+		int value = console.readByte();
+		Lib.assertTrue(value != -1);
+
+		inBuffer[(inHead + inCount) % inBuffer.length] = (byte) value;
+		inCount++;
+
+		if (waitingForInput) {
+			waitingForInput = false;
+			readWait.V();
+		}
+	}
+
+	/**
+	 * Send a byte. Blocks only until there is room to buffer it.
 	 * 
 	 * @param value the byte to be sent (the upper 24 bits are ignored).
 	 */
 	public void writeByte(int value) {
+		writeBytes(new byte[] { (byte) value }, 0, 1);
+	}
+
+	/**
+	 * Send bytes from an array. Blocks only until they have all been buffered.
+	 * 
+	 * @param buf the buffer holding the bytes to send.
+	 * @param offset the offset in the buffer of the first byte.
+	 * @param length the number of bytes to send.
+	 */
+	public void writeBytes(byte[] buf, int offset, int length) {
 		writeLock.acquire();
-		console.writeByte(value);
-		writeWait.P();
+		boolean intStatus = Machine.interrupt().disable();
+
+		while (length > 0) {
+			if (outCount == outBuffer.length) {
+				startSending();
+				waitingForSpace = true;
+				spaceWait.P();
+				continue;
+			}
+
+			int amount = Math.min(length, outBuffer.length - outCount);
+			int tail = (outHead + outCount) % outBuffer.length;
+			int first = Math.min(amount, outBuffer.length - tail);
+			System.arraycopy(buf, offset, outBuffer, tail, first);
+			System.arraycopy(buf, offset + first, outBuffer, 0, amount - first);
+			outCount += amount;
+
+			boolean newline = false;
+			for (int i = offset; i < offset + amount && !newline; i++)
+				newline = (buf[i] == '\n');
+
+			if (newline || outCount == outBuffer.length)
+				startSending();
+			else if (!sending && !flushPending) {
+				flushPending = true;
+				flushRequest.V();
+			}
+
+			offset += amount;
+			length -= amount;
+		}
+
+		Machine.interrupt().restore(intStatus);
 		writeLock.release();
 	}
 
+	/**
+	 * Send everything buffered, and wait until it has been sent.
+	 */
+	public void flush() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		startSending();
+		while (sending) {
+			waitingForDrain = true;
+			drainWait.P();
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
 	/**
 	 * Return an <tt>OpenFile</tt> that can be used to write this as a file.
 	 * 
@@ -96,11 +244,210 @@ public class SynchConsole {
 		return new File(false, true);
 	}
 
+	/**
+	 * Start draining the ring, if it is not already draining. Interrupts must
+	 * be disabled.
+	 */
+	private void startSending() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		if (!sending && outCount > 0) {
+			sending = true;
+			sendNext();
+		}
+	}
+
+	private void sendNext() {
+		console.writeByte(outBuffer[outHead]);
+		outHead = (outHead + 1) % outBuffer.length;
+		outCount--;
+
+		if (waitingForSpace) {
+			waitingForSpace = false;
+			spaceWait.V();
+		}
+	}
+
 	private void sendInterrupt() {
-		writeWait.V();
+		if (outCount > 0) {
+			sendNext();
+		}
+		else {
+			sending = false;
+			if (waitingForDrain) {
+				waitingForDrain = false;
+				drainWait.V();
+			}
+		}
+	}
+
+	/**
+	 * Start draining output that has sat in the ring for
+	 * <tt>flushDelay</tt> ticks without a newline.
+	 */
+	private void runFlusher() {
+		while (true) {
+			flushRequest.P();
+			ThreadedKernel.alarm.waitUntil(flushDelay);
+
+			boolean intStatus = Machine.interrupt().disable();
+			flushPending = false;
+			startSending();
+			Machine.interrupt().restore(intStatus);
+		}
 	}
 
-	private boolean charAvailable = false;
+	/**
+	 * Test if this module is working, against a device simulated by a kernel
+	 * thread.
+	 */
+	public static void selfTest() {
+		TestConsole device = new TestConsole();
+		SynchConsole console = new SynchConsole(device);
+		KThread deviceThread = new KThread(device).setName("test console");
+		deviceThread.fork();
+
+		outputTest(console, device);
+		inputTest(console, device);
+
+		device.stopped = true;
+		deviceThread.join();
+	}
+
+	/**
+	 * Check that output is buffered until a newline, a flush or the flush
+	 * delay, and that a write larger than the ring arrives in order.
+	 */
+	private static void outputTest(SynchConsole console, TestConsole device) {
+		console.writeBytes("abc".getBytes(), 0, 3);
+		Lib.assertTrue(device.output.length() == 0);
+
+		console.writeBytes("de\n".getBytes(), 0, 3);
+		console.flush();
+		Lib.assertTrue(device.output.toString().equals("abcde\n"));
+
+		byte[] big = new byte[console.outBuffer.length + 1000];
+		for (int i = 0; i < big.length; i++)
+			big[i] = (byte) ('a' + i % 26);
+		device.output.setLength(0);
+		console.writeBytes(big, 0, big.length);
+		console.flush();
+		Lib.assertTrue(device.output.toString().equals(new String(big)));
+
+		// output without a newline goes out on its own after the delay
+		device.output.setLength(0);
+		console.writeByte('>');
+		ThreadedKernel.alarm.waitUntil(2 * console.flushDelay);
+		Lib.assertTrue(device.output.toString().equals(">"));
+	}
+
+	/**
+	 * Check that keys are moved out of the device before anyone reads, that
+	 * one read takes everything buffered, and that keys wait in the device
+	 * while the input ring is full.
+	 */
+	private static void inputTest(SynchConsole console, TestConsole device) {
+		device.type("hello");
+		Lib.assertTrue(console.readByte(true) == 'h');
+		while (device.keys.length() > 0)
+			KThread.yield();
+
+		byte[] buf = new byte[console.inBuffer.length + 100];
+		Lib.assertTrue(console.readBytes(buf, 0, buf.length) == 4);
+		Lib.assertTrue(new String(buf, 0, 4).equals("ello"));
+		Lib.assertTrue(console.readByte(false) == -1);
+
+		// fill the ring, leaving a key in the device and more on the host
+		StringBuffer keys = new StringBuffer();
+		for (int i = 0; i < console.inBuffer.length + 10; i++)
+			keys.append((char) ('a' + i % 26));
+		device.type(keys.toString());
+		while (device.keys.length() > 9)
+			KThread.yield();
+		Lib.assertTrue(console.keyWaiting);
+
+		int total = 0;
+		while (total < keys.length()) {
+			total += console.readBytes(buf, total, buf.length - total);
+			KThread.yield();
+		}
+		Lib.assertTrue(new String(buf, 0, total).equals(keys.toString()));
+	}
+
+	/**
+	 * A console device for <tt>selfTest()</tt>. Running as a kernel thread,
+	 * it raises the send interrupt for each byte written, and the receive
+	 * interrupt for each typed key once the previous key has been read.
+	 */
+	private static class TestConsole implements SerialConsole, Runnable {
+		public void setInterruptHandlers(Runnable receiveInterruptHandler,
+				Runnable sendInterruptHandler) {
+			this.receiveInterruptHandler = receiveInterruptHandler;
+			this.sendInterruptHandler = sendInterruptHandler;
+		}
+
+		public int readByte() {
+			int value = key;
+			key = -1;
+			return value;
+		}
+
+		/**
+		 * Queue keys to arrive, one at a time, as if typed on the host.
+		 */
+		void type(String typed) {
+			keys.append(typed);
+		}
+
+		public void writeByte(int value) {
+			Lib.assertTrue(!sendPending);
+
+			output.append((char) (value & 0xFF));
+			sendPending = true;
+		}
+
+		public void run() {
+			while (!stopped) {
+				boolean intStatus = Machine.interrupt().disable();
+				if (sendPending) {
+					sendPending = false;
+					sendInterruptHandler.run();
+				}
+				if (key == -1 && keys.length() > 0) {
+					key = keys.charAt(0);
+					keys.deleteCharAt(0);
+					receiveInterruptHandler.run();
+				}
+				Machine.interrupt().restore(intStatus);
+
+				KThread.yield();
+			}
+		}
+
+		private Runnable receiveInterruptHandler, sendInterruptHandler;
+
+		private boolean sendPending = false;
+
+		/** The key the device is holding, or -1. */
+		private int key = -1;
+
+		/** Keys typed but not yet received by the device. */
+		private StringBuffer keys = new StringBuffer();
+
+		private StringBuffer output = new StringBuffer();
+
+		private boolean stopped = false;
+	}
+
+	/** Input that has arrived but not yet been read. */
+	private byte[] inBuffer;
+
+	private int inHead = 0, inCount = 0;
+
+	/** True if the device is holding a key because the input ring was full. */
+	private boolean keyWaiting = false;
+
+	private boolean waitingForInput = false;
 
 	private SerialConsole console;
 
@@ -110,7 +457,26 @@ public class SynchConsole {
 
 	private Semaphore readWait = new Semaphore(0);
 
-	private Semaphore writeWait = new Semaphore(0);
+	/** Output waiting to be sent. */
+	private byte[] outBuffer;
+
+	private int outHead = 0, outCount = 0;
+
+	/** True while the send interrupt handler is draining the ring. */
+	private boolean sending = false;
+
+	private boolean waitingForSpace = false, waitingForDrain = false;
+
+	private Semaphore spaceWait = new Semaphore(0);
+
+	private Semaphore drainWait = new Semaphore(0);
+
+	/** True if the flusher has been asked to start a timed flush. */
+	private boolean flushPending = false;
+
+	private Semaphore flushRequest = new Semaphore(0);
+
+	private int flushDelay;
 
 	private class File extends OpenFile {
 		File(boolean canRead, boolean canWrite) {
@@ -128,24 +494,14 @@ public class SynchConsole {
 			if (!canRead)
 				return 0;
 
-			int i;
-			for (i = 0; i < length; i++) {
-				int value = SynchConsole.this.readByte(false);
-				if (value == -1)
-					break;
-
-				buf[offset + i] = (byte) value;
-			}
-
-			return i;
+			return SynchConsole.this.readBytes(buf, offset, length);
 		}
 
 		public int write(byte[] buf, int offset, int length) {
 			if (!canWrite)
 				return 0;
 
-			for (int i = 0; i < length; i++)
-				SynchConsole.this.writeByte(buf[offset + i]);
+			SynchConsole.this.writeBytes(buf, offset, length);
 
 			return length;
 		}
@@ -0,0 +1,409 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Records, for every process and every syscall it makes, the number of
+ * calls, the number that failed, the bytes transferred by read and write
+ * calls, and how long the calls took, both in clock ticks and in host
+ * nanoseconds. Latencies are kept in histograms with one bucket per power of
+ * two.
+ *
+ * <p>
+ * Profiling is off unless <tt>Process.syscallProfile = true</tt> is set in
+ * <tt>nachos.conf</tt>. The report is printed by
+ * <tt>UserKernel.terminate()</tt>, as text, or as CSV or JSON if
+ * <tt>Process.syscallProfileFormat</tt> is <tt>csv</tt> or <tt>json</tt>.
+ *
+ * <p>
+ * Setting <tt>Process.syscallTrace = true</tt> also prints a line for each
+ * syscall as it returns, in the style of <tt>strace</tt>. Trace lines are
+ * collected in a buffer and written to the host's standard output in blocks,
+ * so tracing takes no simulated time and does not go through the simulated
+ * console. Syscalls that never return, <tt>exit()</tt>,
+ * <tt>thread_exit()</tt> and a successful <tt>halt()</tt>, are traced when
+ * they are made and are not profiled.
+ */
+public class SyscallProfiler {
+	/**
+	 * Prevent instantiation.
+	 */
+	private SyscallProfiler() {
+	}
+
+	/**
+	 * Test whether syscalls should be recorded.
+	 *
+	 * @return <tt>true</tt> if profiling or tracing is enabled.
+	 */
+	public static boolean enabled() {
+		return profile || trace;
+	}
+
+	/**
+	 * Record that a process is about to make a syscall.
+	 *
+	 * @param process the calling process.
+	 * @param syscall the syscall number.
+	 * @param args the syscall's four arguments.
+	 * @return the record to pass to <tt>end()</tt> when the syscall returns.
+	 */
+	public static Call begin(UserProcess process, int syscall, int[] args) {
+		// exit() and thread_exit() are never profiled, and need no entry
+		if (profile && process.syscallStats == null && syscall != syscallExit
+				&& syscall != syscallThreadExit) {
+			boolean intStatus = Machine.interrupt().disable();
+			process.syscallStats = new ProcessStats(process.pid,
+					process.executableName);
+			processes.add(process.syscallStats);
+			Machine.interrupt().restore(intStatus);
+		}
+
+		Call call = new Call(process, syscall, args);
+
+		if (trace && !returns(syscall)) {
+			boolean intStatus = Machine.interrupt().disable();
+			traceLine(call, "?");
+			Machine.interrupt().restore(intStatus);
+		}
+
+		return call;
+	}
+
+	/**
+	 * Record that a syscall has returned.
+	 *
+	 * @param call the record returned by <tt>begin()</tt>.
+	 * @param result the value returned to the process.
+	 */
+	public static void end(Call call, int result) {
+		long ticks = Machine.timer().getTime() - call.startTicks;
+		long nanos = System.nanoTime() - call.startNanos;
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		if (profile) {
+			ProcessStats process = call.stats;
+			Lib.assertTrue(process != null);
+
+			SyscallStats stats = process.syscalls.get(call.syscall);
+			if (stats == null) {
+				stats = new SyscallStats();
+				process.syscalls.put(call.syscall, stats);
+			}
+
+			stats.count++;
+			if (result == -1)
+				stats.errors++;
+			else if (transfersBytes(call.syscall))
+				stats.bytes += result;
+			stats.ticks.add(ticks);
+			stats.nanos.add(nanos);
+		}
+
+		if (trace)
+			traceLine(call, result + " <" + ticks + " ticks>");
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Print the trace lines still buffered, then the profile of every process
+	 * that made a syscall.
+	 */
+	public static void print() {
+		if (trace)
+			flushTrace();
+
+		if (!profile)
+			return;
+
+		String format = Config.getString("Process.syscallProfileFormat",
+				"text");
+		if (format.equals("csv"))
+			printCSV();
+		else if (format.equals("json"))
+			printJSON();
+		else
+			printText();
+	}
+
+	private static void printText() {
+		System.out.println("Syscall profile:");
+		for (ProcessStats process : processes) {
+			System.out.println("  process " + process.pid + " ("
+					+ process.name + ")");
+
+			for (Map.Entry<Integer, SyscallStats> entry : process.syscalls
+					.entrySet()) {
+				SyscallStats stats = entry.getValue();
+				System.out.println("    " + syscallName(entry.getKey())
+						+ ": calls " + stats.count + ", errors "
+						+ stats.errors + ", bytes " + stats.bytes
+						+ ", ticks " + stats.ticks.total + " (max "
+						+ stats.ticks.max + "), nanoseconds "
+						+ stats.nanos.total + " (max " + stats.nanos.max + ")");
+				System.out.println("      ticks " + stats.ticks.buckets(" ")
+						+ "; nanoseconds " + stats.nanos.buckets(" "));
+			}
+		}
+	}
+
+	private static void printCSV() {
+		System.out.println("pid,program,syscall,name,calls,errors,bytes,"
+				+ "ticks_total,ticks_max,ticks_histogram,"
+				+ "nanos_total,nanos_max,nanos_histogram");
+		for (ProcessStats process : processes) {
+			for (Map.Entry<Integer, SyscallStats> entry : process.syscalls
+					.entrySet()) {
+				SyscallStats stats = entry.getValue();
+				System.out.println(process.pid + "," + process.name + ","
+						+ entry.getKey() + "," + syscallName(entry.getKey())
+						+ "," + stats.count + "," + stats.errors + ","
+						+ stats.bytes + "," + stats.ticks.total + ","
+						+ stats.ticks.max + "," + stats.ticks.buckets(";")
+						+ "," + stats.nanos.total + "," + stats.nanos.max
+						+ "," + stats.nanos.buckets(";"));
+			}
+		}
+	}
+
+	private static void printJSON() {
+		StringBuilder out = new StringBuilder("[");
+		String processSeparator = "";
+		for (ProcessStats process : processes) {
+			out.append(processSeparator).append("\n  {\"pid\": ")
+					.append(process.pid).append(", \"program\": \"")
+					.append(process.name).append("\", \"syscalls\": [");
+			processSeparator = ",";
+
+			String syscallSeparator = "";
+			for (Map.Entry<Integer, SyscallStats> entry : process.syscalls
+					.entrySet()) {
+				SyscallStats stats = entry.getValue();
+				out.append(syscallSeparator).append("\n    {\"syscall\": ")
+						.append(entry.getKey()).append(", \"name\": \"")
+						.append(syscallName(entry.getKey()))
+						.append("\", \"calls\": ").append(stats.count)
+						.append(", \"errors\": ").append(stats.errors)
+						.append(", \"bytes\": ").append(stats.bytes)
+						.append(", \"ticks\": ").append(stats.ticks.toJSON())
+						.append(", \"nanos\": ").append(stats.nanos.toJSON())
+						.append("}");
+				syscallSeparator = ",";
+			}
+			out.append("\n  ]}");
+		}
+		out.append("\n]");
+		System.out.println(out);
+	}
+
+	/**
+	 * Test if this module is working: calls are counted per syscall with
+	 * their errors and bytes, and latencies land in the right buckets.
+	 */
+	public static void selfTest() {
+		boolean wasProfiling = profile, wasTracing = trace;
+		profile = true;
+		trace = false;
+
+		ProcessStats process = new ProcessStats(0, "selfTest");
+		int[] args = new int[4];
+		end(new Call(process, 0, syscallRead, args), 100);
+		end(new Call(process, 0, syscallRead, args), -1);
+		end(new Call(process, 0, syscallWrite, args), 5);
+
+		profile = wasProfiling;
+		trace = wasTracing;
+
+		SyscallStats read = process.syscalls.get(syscallRead);
+		SyscallStats write = process.syscalls.get(syscallWrite);
+		Lib.assertTrue(read.count == 2 && read.errors == 1 && read.bytes == 100);
+		Lib.assertTrue(write.count == 1 && write.errors == 0 && write.bytes == 5);
+		Lib.assertTrue(process.syscalls.size() == 2);
+
+		Histogram histogram = new Histogram();
+		long[] values = { 0, 1, 2, 3, 4, 1000 };
+		for (long value : values)
+			histogram.add(value);
+		Lib.assertTrue(histogram.buckets(" ").equals(
+				"<1:1 <2:1 <4:2 <8:1 <1024:1"));
+		Lib.assertTrue(histogram.total == 1010 && histogram.max == 1000);
+	}
+
+	private static void traceLine(Call call, String result) {
+		traceBuffer.append('[').append(call.pid).append("] ")
+				.append(syscallName(call.syscall)).append('(');
+		for (int i = 0; i < call.args.length; i++) {
+			if (i > 0)
+				traceBuffer.append(", ");
+			traceBuffer.append(call.args[i]);
+		}
+		traceBuffer.append(") = ").append(result).append('\n');
+
+		if (traceBuffer.length() >= traceBufferSize)
+			flushTrace();
+	}
+
+	private static void flushTrace() {
+		System.out.print(traceBuffer);
+		System.out.flush();
+		traceBuffer.setLength(0);
+	}
+
+	private static boolean returns(int syscall) {
+		return syscall != syscallHalt && syscall != syscallExit
+				&& syscall != syscallThreadExit;
+	}
+
+	private static boolean transfersBytes(int syscall) {
+		return syscall == syscallRead || syscall == syscallWrite
+				|| syscall == syscallReadv || syscall == syscallWritev;
+	}
+
+	private static String syscallName(int syscall) {
+		if (syscall >= 0 && syscall < syscallNames.length)
+			return syscallNames[syscall];
+		else
+			return "syscall" + syscall;
+	}
+
+	/**
+	 * A syscall in progress.
+	 */
+	public static class Call {
+		private Call(UserProcess process, int syscall, int[] args) {
+			this(process.syscallStats, process.pid, syscall, args);
+		}
+
+		private Call(ProcessStats stats, int pid, int syscall, int[] args) {
+			this.stats = stats;
+			this.pid = pid;
+			this.syscall = syscall;
+			this.args = args;
+
+			startTicks = Machine.timer().getTime();
+			startNanos = System.nanoTime();
+		}
+
+		/** Where to record the call; not the process, which may exit. */
+		private ProcessStats stats;
+
+		private int pid, syscall;
+
+		private int[] args;
+
+		private long startTicks, startNanos;
+	}
+
+	/**
+	 * The statistics of one process. Kept by the process while it runs, and
+	 * here until the report is printed.
+	 */
+	static class ProcessStats {
+		ProcessStats(int pid, String name) {
+			this.pid = pid;
+			this.name = name;
+		}
+
+		int pid;
+
+		String name;
+
+		/** Statistics for each syscall number, in order of first use. */
+		LinkedHashMap<Integer, SyscallStats> syscalls = new LinkedHashMap<Integer, SyscallStats>();
+	}
+
+	private static class SyscallStats {
+		int count = 0;
+
+		int errors = 0;
+
+		long bytes = 0;
+
+		Histogram ticks = new Histogram();
+
+		Histogram nanos = new Histogram();
+	}
+
+	/**
+	 * A histogram of non-negative values. Bucket 0 counts zeros, and bucket
+	 * <i>i</i> counts values from 2<sup><i>i</i>-1</sup> up to
+	 * 2<sup><i>i</i></sup>-1.
+	 */
+	private static class Histogram {
+		void add(long value) {
+			value = Math.max(0, value);
+			counts[64 - Long.numberOfLeadingZeros(value)]++;
+			total += value;
+			max = Math.max(max, value);
+		}
+
+		/**
+		 * Return the non-empty buckets, each as the bucket's upper bound and
+		 * count separated by a colon.
+		 */
+		String buckets(String separator) {
+			StringBuilder out = new StringBuilder();
+			for (int i = 0; i < counts.length; i++) {
+				if (counts[i] == 0)
+					continue;
+				if (out.length() > 0)
+					out.append(separator);
+				out.append("<").append(1L << i).append(":").append(counts[i]);
+			}
+			return out.toString();
+		}
+
+		String toJSON() {
+			StringBuilder out = new StringBuilder("{\"total\": ").append(total)
+					.append(", \"max\": ").append(max)
+					.append(", \"buckets\": {");
+			String separator = "";
+			for (int i = 0; i < counts.length; i++) {
+				if (counts[i] == 0)
+					continue;
+				out.append(separator).append("\"").append(1L << i)
+						.append("\": ").append(counts[i]);
+				separator = ", ";
+			}
+			return out.append("}}").toString();
+		}
+
+		int[] counts = new int[65];
+
+		long total = 0;
+
+		long max = 0;
+	}
+
+	/** Syscall names, indexed by the numbers in <tt>syscall.h</tt>. */
+	private static final String[] syscallNames = { "halt", "exit", "exec",
+			"join", "creat", "open", "read", "write", "close", "unlink",
+			"mmap", "connect", "accept", "readv", "writev", "munmap", "dup",
+			"dup2", "waitpid", "fork", "pipe", "ring_setup", "ring_enter",
+			"sbrk", "thread_create", "thread_join", "thread_exit",
+			"futex", "shmget", "shmat", "shmdt", "nice", "setpriority",
+			"settickets", "getrusage" };
+
+	private static final int syscallHalt = 0, syscallExit = 1,
+			syscallRead = 6, syscallWrite = 7, syscallReadv = 13,
+			syscallWritev = 14, syscallThreadExit = 26;
+
+	private static final int traceBufferSize = 4096;
+
+	private static boolean profile = Config.getBoolean(
+			"Process.syscallProfile", false);
+
+	private static boolean trace = Config.getBoolean("Process.syscallTrace",
+			false);
+
+	/** Statistics for each process, in order of its first syscall. */
+	private static ArrayList<ProcessStats> processes = new ArrayList<ProcessStats>();
+
+	private static StringBuilder traceBuffer = new StringBuilder();
+}
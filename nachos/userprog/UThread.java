@@ -24,8 +24,28 @@ public class UThread extends KThread {
 		this.process = process;
 	}
 
+	/**
+	 * Allocate a new UThread that starts running user code with the specified
+	 * registers, rather than at the start of the program.
+	 * 
+	 * @param process the process the thread belongs to.
+	 * @param registers the initial values of the user registers.
+	 */
+	public UThread(UserProcess process, int[] registers) {
+		this(process);
+
+		startRegisters = registers;
+	}
+
 	private void runProgram() {
-		process.initRegisters();
+		if (startRegisters == null) {
+			process.initRegisters();
+		}
+		else {
+			for (int i = 0; i < Processor.numUserRegisters; i++)
+				Machine.processor().writeRegister(i, startRegisters[i]);
+			startRegisters = null;
+		}
 		process.restoreState();
 
 		Machine.processor().run();
@@ -37,6 +57,7 @@ public class UThread extends KThread {
 	 * Save state before giving up the processor to another thread.
 	 */
 	protected void saveState() {
+		chargeTicks();
 		process.saveState();
 
 		for (int i = 0; i < Processor.numUserRegisters; i++)
@@ -55,6 +76,34 @@ public class UThread extends KThread {
 			Machine.processor().writeRegister(i, userRegisters[i]);
 
 		process.restoreState();
+		chargedUntil = Machine.timer().getTime();
+	}
+
+	/**
+	 * Note that this thread has entered the kernel to handle a syscall or
+	 * exception. Called by <tt>UserKernel.exceptionHandler()</tt>.
+	 */
+	public void enterKernel() {
+		chargeTicks();
+		inKernel = true;
+	}
+
+	/**
+	 * Note that this thread is about to return to user code.
+	 */
+	public void leaveKernel() {
+		chargeTicks();
+		inKernel = false;
+	}
+
+	/**
+	 * Charge the ticks this thread has run since it was last charged to its
+	 * process, as user or kernel time.
+	 */
+	private void chargeTicks() {
+		long now = Machine.timer().getTime();
+		process.chargeTicks(now - chargedUntil, inKernel);
+		chargedUntil = now;
 	}
 
 	/**
@@ -72,4 +121,19 @@ public class UThread extends KThread {
 	 * The process to which this thread belongs.
 	 */
 	public UserProcess process;
+
+	/**
+	 * The thread's ID within its process. The thread that starts the program
+	 * is thread 0.
+	 */
+	public int tid = 0;
+
+	/** The time up to which this thread's ticks have been charged. */
+	private long chargedUntil;
+
+	/** Set while this thread is handling a syscall or exception. */
+	private boolean inKernel = false;
+
+	/** The registers to start with, or <tt>null</tt> to start the program. */
+	private int[] startRegisters = null;
 }
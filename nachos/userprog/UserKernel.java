@@ -31,20 +31,78 @@ public class UserKernel extends ThreadedKernel {
 			}
 		});
 		
-		//initialize freePages
 		pageLock = new Lock();
-		int physPages = Machine.processor().getNumPhysPages();
-		for(int i = 0; i < physPages; i++) {
-			freePages.add(new Integer(i));
+		frameAllocator = new FrameAllocator(Machine.processor().getNumPhysPages());
+		pageCache = new PageCache(frameAllocator);
+		openFileTable = new OpenFileTable();
+		processTable = new ProcessTable();
+		executableCache = new ExecutableCache();
+		ioWorkers = new KThreadPool("io", 0, Config.getInteger(
+				"Kernel.ioWorkers", 8), 10000);
+		futexTable = new FutexTable();
+		sharedMemory = new SharedMemory();
+		
+		if (ThreadedKernel.fileSystem != null
+				&& Config.getBoolean("Kernel.procfs", true)) {
+			procFileSystem = new ProcFileSystem(ThreadedKernel.fileSystem);
+			ThreadedKernel.fileSystem = procFileSystem;
+			registerProcFiles();
 		}
 	}
 
 	/**
-	 * Test the console device.
+	 * Add the pseudo-files describing processes, memory and scheduling to
+	 * <tt>procFileSystem</tt>.
+	 */
+	private void registerProcFiles() {
+		procFileSystem.register("stat", new ProcFileSystem.Generator() {
+			public String generate(UserProcess process) {
+				return "ticks " + Machine.timer().getTime() + "\nuser_ticks "
+						+ UserProcess.getTotalTicks(false) + "\nsystem_ticks "
+						+ UserProcess.getTotalTicks(true) + "\nprocesses "
+						+ processTable.getProcesses().length + "\nframes "
+						+ frameAllocator.getNumFrames() + "\nfree_frames "
+						+ frameAllocator.getNumFree() + "\n";
+			}
+		});
+		procFileSystem.register("sched", new ProcFileSystem.Generator() {
+			public String generate(UserProcess process) {
+				return "scheduler " + scheduler.getClass().getName()
+						+ "\nready_threads " + KThread.getNumReady() + "\n";
+			}
+		});
+		procFileSystem.register("processes", new ProcFileSystem.Generator() {
+			public String generate(UserProcess process) {
+				StringBuilder out = new StringBuilder();
+				for (UserProcess each : processTable.getProcesses())
+					out.append(each.pid).append('\t')
+							.append(each.executableName).append('\n');
+				return out.toString();
+			}
+		});
+		procFileSystem.registerProcessFile("status",
+				new ProcFileSystem.Generator() {
+					public String generate(UserProcess process) {
+						return process.getStatus();
+					}
+				});
+	}
+
+	/**
+	 * Test the user-program support classes and the console device.
 	 */
 	public void selfTest() {
 		super.selfTest();
 
+		FileDescriptorTable.selfTest();
+		OpenFileTable.selfTest();
+		ExecutableCache.selfTest();
+		Pipe.selfTest();
+		SynchConsole.selfTest();
+		SyscallProfiler.selfTest();
+		SharedMemory.selfTest();
+		ProcFileSystem.selfTest();
+
 		System.out.println("Testing the console device. Typed characters");
 		System.out.println("will be echoed until q is typed.");
 
@@ -86,9 +144,16 @@ public class UserKernel extends ThreadedKernel {
 	public void exceptionHandler() {
 		Lib.assertTrue(KThread.currentThread() instanceof UThread);
 
-		UserProcess process = ((UThread) KThread.currentThread()).process;
+		UThread thread = (UThread) KThread.currentThread();
+		UserProcess process = thread.process;
 		int cause = Machine.processor().readRegister(Processor.regCause);
-		process.handleException(cause);
+		thread.enterKernel();
+		// the other threads of an exiting process stop at their next exception
+		process.stopIfExiting();
+		if (!process.handleThreadReturn(cause))
+			process.handleException(cause);
+		process.stopIfExiting();
+		thread.leaveKernel();
 	}
 
 	/**
@@ -115,6 +180,9 @@ public class UserKernel extends ThreadedKernel {
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		//don't lose output still waiting in the console's buffer
+		console.flush();
+		SyscallProfiler.print();
 		super.terminate();
 	}
 	
@@ -125,8 +193,36 @@ public class UserKernel extends ThreadedKernel {
 	/** Globally accessible reference to the synchronized console. */
 	public static SynchConsole console;
 
-	//maintain free pages
-	public static LinkedList<Integer> freePages = new LinkedList<Integer>();
+	/** Globally accessible reference to the physical frame allocator. */
+	public static FrameAllocator frameAllocator;
+
+	/** Globally accessible reference to the shared text page cache. */
+	public static PageCache pageCache;
+
+	/** Globally accessible reference to the system-wide open file table. */
+	public static OpenFileTable openFileTable;
+
+	/** Globally accessible reference to the process table. */
+	public static ProcessTable processTable;
+
+	/** Globally accessible reference to the parsed executable cache. */
+	public static ExecutableCache executableCache;
+
+	/** Worker threads that carry out asynchronous I/O requests. */
+	public static KThreadPool ioWorkers;
+
+	/** Globally accessible reference to the futex wait queues. */
+	public static FutexTable futexTable;
+
+	/** Globally accessible reference to the shared memory segments. */
+	public static SharedMemory sharedMemory;
+
+	/**
+	 * The <tt>proc/</tt> pseudo-file system in front of
+	 * <tt>ThreadedKernel.fileSystem</tt>, or <tt>null</tt> if
+	 * <tt>Kernel.procfs</tt> is <tt>false</tt>.
+	 */
+	public static ProcFileSystem procFileSystem;
 	
 	// dummy variables to make javac smarter
 	private static Coff dummy1 = null;
@@ -4,7 +4,6 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 
-import java.io.EOFException;
 import java.util.*;
 
 /**
@@ -25,19 +24,20 @@ public class UserProcess {
 	 */
 	public UserProcess() {
 		//initialize filetables
-		OpenFiles = new OpenFile[16];
-		OpenFiles[0] = UserKernel.console.openForReading();
-		OpenFiles[1] = UserKernel.console.openForWriting();
+		fdTable = new FileDescriptorTable(maxFileDescriptors);
+		fdTable.add(UserKernel.openFileTable.add(UserKernel.console.openForReading(), null));
+		fdTable.add(UserKernel.openFileTable.add(UserKernel.console.openForWriting(), null));
 		
 //		pageTable = new TranslationEntry[numPhysPages];
 //		for (int i = 0; i < numPhysPages; i++)
 //			pageTable[i] = new TranslationEntry(i, i, true, false, false, false);
 		
 		//assign pid
-		pid = ++pidCounter;
+		pid = UserKernel.processTable.add(this);
 		
-		sleepLock = new Lock();
-		sleepCondition = new Condition(sleepLock);
+		childExited = new Condition(familyLock);
+		threadLock = new Lock();
+		threadExited = new Condition(threadLock);
 	}
 
 	/**
@@ -63,13 +63,26 @@ public class UserProcess {
 		if (!load(name, args))
 			return false;
 
+		start(name);
+
+		return true;
+	}
+
+	/**
+	 * Fork a user thread to run this process, whose address space has already
+	 * been set up.
+	 * 
+	 * @param name the name to give the thread.
+	 */
+	protected void start(String name) {
 		//new UThread(this).setName(name).fork();
 		//modify in order to use thread.join
 		thread = new UThread(this);
+		threads.put(thread.tid, new UserThread(-1, thread));
+		liveThreads = 1;
+		UserKernel.processTable.processStarted();
+		applyPriority(thread);
 		thread.setName(name).fork();
-		runningProcess++;
-
-		return true;
 	}
 
 	/**
@@ -84,7 +97,8 @@ public class UserProcess {
 	 * <tt>UThread.restoreState()</tt>.
 	 */
 	public void restoreState() {
-		Machine.processor().setPageTable(pageTable);
+		//a thread left running by exit() faults on its next instruction
+		Machine.processor().setPageTable(exiting ? new TranslationEntry[0] : pageTable);
 	}
 
 	/**
@@ -155,7 +169,7 @@ public class UserProcess {
 		int amount = 0;
 		while(amount < length && offset < data.length) {
 			int vpn = Processor.pageFromAddress(vaddr);
-			if(vpn < 0 || vpn >= pageTable.length) {
+			if(vpn < 0 || vpn >= pageTable.length || !pageTable[vpn].valid) {
 				Lib.debug(dbgProcess, "readVirtualMemory: invalid vaddr(vpn out of range)");
 				break;
 			}
@@ -220,7 +234,7 @@ public class UserProcess {
 		while(amount < length && offset < data.length) {
 			int vpn = Processor.pageFromAddress(vaddr);
 			
-			if(vpn < 0 || vpn >= pageTable.length) {
+			if(vpn < 0 || vpn >= pageTable.length || !pageTable[vpn].valid) {
 				Lib.debug(dbgProcess, "readVirtualMemory: invalid vaddr(vpn out of range)");
 				break;
 			}
@@ -247,6 +261,41 @@ public class UserProcess {
 
 	}
 
+	/**
+	 * Translate a virtual address to a physical address in main memory, and
+	 * keep the page at that physical address until <tt>unpinVirtualPage()</tt>
+	 * is called, so that the kernel can transfer data directly between a file
+	 * and the page. At most <tt>pageSize - offset</tt> bytes starting at the
+	 * returned address belong to the page.
+	 * 
+	 * @param vaddr the virtual address to translate.
+	 * @param isWrite <tt>true</tt> if the kernel will write to the page, in
+	 * which case read-only pages are rejected and the page is marked dirty.
+	 * @return the physical address, or -1 if the address is invalid.
+	 */
+	protected int pinVirtualPage(int vaddr, boolean isWrite) {
+		int vpn = Processor.pageFromAddress(vaddr);
+		if (vaddr < 0 || vpn >= pageTable.length || !pageTable[vpn].valid)
+			return -1;
+		if (isWrite && pageTable[vpn].readOnly)
+			return -1;
+
+		pageTable[vpn].used = true;
+		if (isWrite)
+			pageTable[vpn].dirty = true;
+
+		return pageTable[vpn].ppn * pageSize + Processor.offsetFromAddress(vaddr);
+	}
+
+	/**
+	 * Release a page pinned by <tt>pinVirtualPage()</tt>. Physical pages never
+	 * move in a <tt>UserProcess</tt>, so there is nothing to do here.
+	 * 
+	 * @param paddr the physical address returned by <tt>pinVirtualPage()</tt>.
+	 */
+	protected void unpinVirtualPage(int paddr) {
+	}
+
 	/**
 	 * Load the executable with the specified name into this process, and
 	 * prepare to pass it the specified arguments. Opens the executable, reads
@@ -260,20 +309,12 @@ public class UserProcess {
 	private boolean load(String name, String[] args) {
 		Lib.debug(dbgProcess, "UserProcess.load(\"" + name + "\")");
 
-		OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
-		if (executable == null) {
-			Lib.debug(dbgProcess, "\topen failed");
-			return false;
-		}
-
-		try {
-			coff = new Coff(executable);
-		}
-		catch (EOFException e) {
-			executable.close();
+		coff = UserKernel.executableCache.open(name);
+		if (coff == null) {
 			Lib.debug(dbgProcess, "\tcoff load failed");
 			return false;
 		}
+		executableName = name;
 
 		// make sure the sections are contiguous and start at page 0
 		numPages = 0;
@@ -305,8 +346,7 @@ public class UserProcess {
 		initialPC = coff.getEntryPoint();
 
 		// next comes the stack; stack pointer initially points to top of it
-		numPages += stackPages;
-		initialSP = numPages * pageSize;
+		initialSP = reserveStack();
 
 		// and finally reserve 1 page for arguments
 		numPages++;
@@ -334,6 +374,17 @@ public class UserProcess {
 		return true;
 	}
 
+	/**
+	 * Reserve the stack, right after the program image, by adding it to
+	 * <tt>numPages</tt>.
+	 * 
+	 * @return the initial stack pointer.
+	 */
+	protected int reserveStack() {
+		numPages += stackPages;
+		return numPages * pageSize;
+	}
+
 	/**
 	 * Allocates memory for this process, and loads the COFF sections into
 	 * memory. If this returns successfully, the process will definitely be run
@@ -342,36 +393,47 @@ public class UserProcess {
 	 * @return <tt>true</tt> if the sections were successfully loaded.
 	 */
 	protected boolean loadSections() {
-//		if (numPages > Machine.processor().getNumPhysPages()) {
-//			coff.close();
-//			Lib.debug(dbgProcess, "\tinsufficient physical memory");
-//			return false;
-//		}
-		
-//		if(numPages > UserKernel.freePages.size()) {//should check each time!!!
-//			coff.close();
-//			Lib.debug(dbgProcess, "\tinsufficient physical memory");
-//			return false;
-//		}
-		//allocate physical pages to current process
 		pageTable = new TranslationEntry[numPages];
-		for (int i = 0; i < numPages; i++) {
-			int ppn;
-			UserKernel.pageLock.acquire();
-			if(UserKernel.freePages.isEmpty()) {
-				coff.close();
-				Lib.debug(dbgProcess, "\tloadSections: insufficient physical memory");
-				return false;
+		for (int i = 0; i < numPages; i++)
+			pageTable[i] = new TranslationEntry(i, -1, true, false, false, false);
+
+		// share read-only pages another process has already loaded
+		int numMissing = numPages;
+		for (int s = 0; s < coff.getNumSections(); s++) {
+			CoffSection section = coff.getSection(s);
+			if (!section.isReadOnly())
+				continue;
+
+			for (int i = 0; i < section.getLength(); i++) {
+				int vpn = section.getFirstVPN() + i;
+				pageTable[vpn].readOnly = true;
+				pageTable[vpn].ppn = UserKernel.pageCache.share(coff, s, i, this);
+				if (pageTable[vpn].ppn != -1)
+					numMissing--;
 			}
-			else {
-				ppn = UserKernel.freePages.removeFirst();
+		}
+
+		//allocate physical pages for the rest, all or nothing
+		int[] frames = new int[numMissing];
+		if (!UserKernel.frameAllocator.allocate(frames)) {
+			for (int i = 0; i < numPages; i++) {
+				if (pageTable[i].ppn != -1)
+					UserKernel.pageCache.release(pageTable[i].ppn, this);
 			}
-			UserKernel.pageLock.release();
-				
-			pageTable[i] = new TranslationEntry(i, ppn, true, false, false, false);
-			
+			coff.close();
+			Lib.debug(dbgProcess, "\tloadSections: insufficient physical memory");
+			return false;
+		}
+
+		boolean[] shared = new boolean[numPages];
+		for (int i = 0, f = 0; i < numPages; i++) {
+			if (pageTable[i].ppn != -1) {
+				shared[i] = true;
+				continue;
+			}
+			pageTable[i].ppn = frames[f++];
+			UserKernel.frameAllocator.setOwner(pageTable[i].ppn, this, i);
 		}
-			
 
 		// load sections
 		for (int s = 0; s < coff.getNumSections(); s++) {
@@ -382,18 +444,15 @@ public class UserProcess {
 
 			for (int i = 0; i < section.getLength(); i++) {
 				int vpn = section.getFirstVPN() + i;
-				//check if read only
-				if(section.isReadOnly()) {
-					pageTable[vpn].readOnly = true;
-				}
-				
-				// for now, just assume virtual addresses=physical addresses
-				//section.loadPage(i, vpn);
+				if (shared[vpn])
+					continue;
 				
 				//find ppn
 				int ppn = pageTable[vpn].ppn;
 				section.loadPage(i, ppn);
 				
+				if (section.isReadOnly())
+					UserKernel.pageCache.add(coff, s, i, ppn);
 			}
 		}
 
@@ -404,11 +463,119 @@ public class UserProcess {
 	 * Release any resources allocated by <tt>loadSections()</tt>.
 	 */
 	protected void unloadSections() {
+		//shared text pages are only freed by the last process using them
+		for(int i = 0; i < pageTable.length; i++) {
+			if(pageTable[i].valid) {
+				UserKernel.pageCache.release(pageTable[i].ppn, this);
+			}
+		}
+	}
+
+	/**
+	 * Allocate a stack for a thread created by <tt>thread_create()</tt>, by
+	 * reusing the stack of a thread that has finished or by adding
+	 * <tt>stackPages</tt> pages to the end of the page table. Called with
+	 * <tt>threadLock</tt> held, by a thread of this process.
+	 * 
+	 * @return the address of the top of the stack, or -1 if there is not
+	 * enough physical memory.
+	 */
+	protected int allocateThreadStack() {
+		if (!freeThreadStacks.isEmpty())
+			return freeThreadStacks.removeFirst();
+
+		int[] frames = new int[stackPages];
+		if (!UserKernel.frameAllocator.allocate(frames))
+			return -1;
+
+		// shmat() may be growing the page table too
 		UserKernel.pageLock.acquire();
-		for(int i = 0; i < numPages; i++) {
-			UserKernel.freePages.add(new Integer(pageTable[i].ppn));
+		byte[] memory = Machine.processor().getMemory();
+		TranslationEntry[] newTable = Arrays.copyOf(pageTable,
+				pageTable.length + stackPages);
+		for (int i = 0; i < stackPages; i++) {
+			int vpn = pageTable.length + i;
+			newTable[vpn] = new TranslationEntry(vpn, frames[i], true, false,
+					false, false);
+			UserKernel.frameAllocator.setOwner(frames[i], this, vpn);
+			Arrays.fill(memory, frames[i] * pageSize, (frames[i] + 1)
+					* pageSize, (byte) 0);
 		}
+		pageTable = newTable;
+		Machine.processor().setPageTable(pageTable);
 		UserKernel.pageLock.release();
+
+		return newTable.length * pageSize;
+	}
+
+	/**
+	 * Release the stack of a thread that has finished, keeping it for the
+	 * next thread. Called with <tt>threadLock</tt> held.
+	 * 
+	 * @param stackTop the address returned by <tt>allocateThreadStack()</tt>.
+	 */
+	protected void freeThreadStack(int stackTop) {
+		freeThreadStacks.add(stackTop);
+	}
+
+	/**
+	 * Map a shared memory segment into this process's address space, by
+	 * adding its pages to the end of the page table. Pages no process has
+	 * used yet are given zero-filled frames first. Called with
+	 * <tt>UserKernel.pageLock</tt> held.
+	 * 
+	 * @param segment the segment to map.
+	 * @return the first virtual page of the mapping, or -1 if there is not
+	 * enough physical memory.
+	 */
+	protected int mapSegment(SharedMemory.Segment segment) {
+		int numMissing = 0;
+		for (int i = 0; i < segment.getNumPages(); i++) {
+			if (segment.getFrame(i) == -1)
+				numMissing++;
+		}
+		int[] frames = new int[numMissing];
+		if (!UserKernel.frameAllocator.allocate(frames))
+			return -1;
+
+		byte[] memory = Machine.processor().getMemory();
+		for (int i = 0, f = 0; i < segment.getNumPages(); i++) {
+			if (segment.getFrame(i) != -1)
+				continue;
+			Arrays.fill(memory, frames[f] * pageSize, (frames[f] + 1)
+					* pageSize, (byte) 0);
+			segment.setFrame(i, frames[f++]);
+		}
+
+		int firstVPN = pageTable.length;
+		TranslationEntry[] newTable = Arrays.copyOf(pageTable, firstVPN
+				+ segment.getNumPages());
+		for (int i = 0; i < segment.getNumPages(); i++) {
+			int vpn = firstVPN + i;
+			int ppn = segment.getFrame(i);
+			newTable[vpn] = new TranslationEntry(vpn, ppn, true, false, false,
+					false);
+			UserKernel.frameAllocator.share(ppn, this, vpn);
+		}
+		pageTable = newTable;
+		Machine.processor().setPageTable(pageTable);
+
+		return firstVPN;
+	}
+
+	/**
+	 * Remove a shared memory segment from this process's address space. Its
+	 * pages are left invalid. Called with <tt>UserKernel.pageLock</tt> held.
+	 * 
+	 * @param segment the segment to unmap.
+	 * @param firstVPN the first virtual page of the mapping.
+	 */
+	protected void unmapSegment(SharedMemory.Segment segment, int firstVPN) {
+		for (int vpn = firstVPN; vpn < firstVPN + segment.getNumPages(); vpn++) {
+			UserKernel.frameAllocator.release(pageTable[vpn].ppn, this);
+			pageTable[vpn] = new TranslationEntry(vpn, -1, false, false, false,
+					false);
+		}
 	}
 
 	/**
@@ -439,194 +606,845 @@ public class UserProcess {
 	 */
 	private int handleHalt() {
 
-		Machine.halt();
+		Kernel.kernel.terminate();
 
 		Lib.assertNotReached("Machine.halt() did not halt machine!");
 		return 0;
 	}
 	
 	private void handleExit(int status) {
+		//the first exit() sets the status; the other threads stop at their next exception
+		threadLock.acquire();
+		if(!exiting) {
+			exiting = true;
+			exitingStatus = status;
+		}
+		threadLock.release();
+		//threads blocked in the kernel would otherwise never see the exit;
+		//thread_join() waiters are woken when this thread finishes
+		UserKernel.futexTable.wakeAll(this);
+		interruptPipes();
+		if(asyncRing != null) {
+			asyncRing.interrupt();
+		}
+		familyLock.acquire();
+		childExited.wakeAll();
+		familyLock.release();
+		
+		finishThread(status);
+	}
+	
+	/**
+	 * End the calling thread, recording <i>status</i> for
+	 * <tt>thread_join()</tt>. The last thread of the process to finish
+	 * releases the process's resources, with the status passed to
+	 * <tt>exit()</tt> if it was called, or else <i>status</i>.
+	 */
+	private void finishThread(int status) {
+		UThread current = (UThread) KThread.currentThread();
+		
+		threadLock.acquire();
+		UserThread self = threads.get(current.tid);
+		self.exited = true;
+		self.status = status;
+		if(self.stackTop != -1 && !exiting) {
+			freeThreadStack(self.stackTop);
+		}
+		threadExited.wakeAll();
+		boolean last = (--liveThreads == 0);
+		int processStatus = exiting ? exitingStatus : status;
+		threadLock.release();
+		
+		if(last) {
+			exitProcess(processStatus);
+		}
+		KThread.finish();
+	}
+	
+	/**
+	 * End the calling thread if another thread of this process has called
+	 * <tt>exit()</tt>. Called by <tt>UserKernel.exceptionHandler()</tt>
+	 * before and after each exception, which is where threads running user
+	 * code or returning from a syscall find out about the exit.
+	 */
+	void stopIfExiting() {
+		if(exiting) {
+			finishThread(exitingStatus);
+		}
+	}
+	
+	/**
+	 * Test whether this process is exiting, because a thread called
+	 * <tt>exit()</tt> or the last thread is releasing the process.
+	 */
+	boolean isExiting() {
+		return exiting;
+	}
+	
+	/**
+	 * Handle a thread created by <tt>thread_create()</tt> returning from its
+	 * function, to <tt>threadReturnAddress</tt>, as a call to
+	 * <tt>thread_exit()</tt> with the function's return value.
+	 * 
+	 * @param cause the user exception that occurred.
+	 * @return <tt>false</tt> if the exception is not a thread returning.
+	 */
+	boolean handleThreadReturn(int cause) {
+		Processor processor = Machine.processor();
+		if((cause != Processor.exceptionPageFault && cause != Processor.exceptionTLBMiss)
+				|| processor.readRegister(Processor.regPC) != threadReturnAddress) {
+			return false;
+		}
+		
+		finishThread(processor.readRegister(Processor.regV0));
+		Lib.assertNotReached();
+		return true;
+	}
+	
+	/**
+	 * Release the resources of a process whose last thread is finishing, and
+	 * tell its parent.
+	 */
+	private void exitProcess(int status) {
 		System.out.println("handleexit:"+status);
-		for(int i = 0; i < OpenFiles.length; i++) {
-			if(OpenFiles[i] != null) {
-				OpenFiles[i].close();
-			}
+		//requests in flight still use our descriptors and memory; wake any
+		//that wait on a pipe, which may never be ready, so that they give up
+		if(asyncRing != null) {
+			threadLock.acquire();
+			exiting = true;
+			threadLock.release();
+			interruptPipes();
+			asyncRing.shutdown();
 		}
+		closeFileDescriptors();
 		//delete all memory
+		UserKernel.pageLock.acquire();
+		while(!attachments.isEmpty()) {
+			detachSegment(attachments.getFirst());
+		}
+		UserKernel.pageLock.release();
 		unloadSections();
 		coff.close();
+		
+		familyLock.acquire();
+		//orphan the children, reaping any that have already exited
+		for(UserProcess child : children) {
+			child.parent = null;
+			if(child.exited) {
+				UserKernel.processTable.remove(child.pid);
+			}
+		}
+		children.clear();
+		exitedChildren.clear();
+		
+		exitStatus = new Integer(status);
+		exited = true;
 		if(parent != null) {
-			parent.childrenStatus.put(pid, new Integer(status));
-			parent.sleepLock.acquire();
-			parent.sleepCondition.wake();
-			parent.sleepLock.release();
+			//stay in the process table until the parent reaps us
+			parent.exitedChildren.add(this);
+			parent.childExited.wakeAll();
 		}
-		if(--runningProcess == 0) {
-			UserKernel.kernel.terminate();
+		else {
+			UserKernel.processTable.remove(pid);
 		}
-		KThread.finish();
+		familyLock.release();
 		
-		return;
+		if(UserKernel.processTable.processExited()) {
+			UserKernel.kernel.terminate();
+		}
 	}
 	
-	private int handleExec(int nameVaddr, int argc, int argv) {
-		if(nameVaddr < 0 || argc < 0 || argv < 0) {
-			Lib.debug(dbgProcess, "handleExec: Invalid input");
-			return -1;
+	/**
+	 * Start a new thread in this process, running <tt>func(arg)</tt> on a
+	 * stack of its own. It shares everything else with the other threads:
+	 * the address space, the file descriptors, and the registers that are not
+	 * specific to a call, such as the global pointer.
+	 * 
+	 * @return the new thread's ID, or -1 on error.
+	 */
+	private int handleThreadCreate(int func, int arg) {
+		Processor processor = Machine.processor();
+		int[] registers = new int[Processor.numUserRegisters];
+		for(int i = 0; i < registers.length; i++) {
+			registers[i] = processor.readRegister(i);
 		}
-		String fileName = readVirtualMemoryString(nameVaddr, 256);
-		if(fileName == null) {
-			Lib.debug(dbgProcess, "handleExec: fail to read filename");
+		
+		threadLock.acquire();
+		int stackTop = allocateThreadStack();
+		if(stackTop == -1) {
+			threadLock.release();
+			Lib.debug(dbgProcess, "handleThreadCreate: no room for another stack");
 			return -1;
 		}
-		if(!fileName.substring(fileName.length() - 5, fileName.length()).equals(".coff")) {
-			Lib.debug(dbgProcess, "handleExec: file type should be .coff");
+		registers[Processor.regPC] = func;
+		registers[Processor.regA0] = arg;
+		//leave room for func to save its argument registers in its caller's frame
+		registers[Processor.regSP] = stackTop - 16;
+		registers[Processor.regRA] = threadReturnAddress;
+		registers[Processor.regV0] = 0;
+		
+		UThread created = new UThread(this, registers);
+		created.tid = nextThreadID++;
+		threads.put(created.tid, new UserThread(stackTop, created));
+		liveThreads++;
+		threadLock.release();
+		
+		applyPriority(created);
+		created.setName(executableName + " thread " + created.tid).fork();
+		return created.tid;
+	}
+	
+	/**
+	 * Return the ID of the shared memory segment with the specified key,
+	 * creating it with <i>size</i> bytes if there is none.
+	 * 
+	 * @return the segment's ID, or -1 on error.
+	 */
+	private int handleShmget(int key, int size) {
+		return UserKernel.sharedMemory.get(key, size);
+	}
+	
+	/**
+	 * Map shared memory segment <i>id</i> into this process's address space,
+	 * at an address the kernel chooses.
+	 * 
+	 * @return the address of the segment, or -1 on error.
+	 */
+	private int handleShmat(int id) {
+		SharedMemory.Segment segment = UserKernel.sharedMemory.attach(id);
+		if(segment == null) {
+			Lib.debug(dbgProcess, "handleShmat: no segment " + id);
 			return -1;
 		}
 		
-		String[] args = new String[argc];
-		for(int i = 0; i < argc; i++) {
-			byte[] argBuffer = new byte[4];//sizeof(int)
-			int bytesRead = readVirtualMemory(argv + i * 4, argBuffer);
-			if(bytesRead != 4) {
-				Lib.debug(dbgProcess, "handleExec: fail to read current arg pointer");
-				return -1;
-			}
-			int argVaddr = Lib.bytesToInt(argBuffer, 0);
-			String arg = readVirtualMemoryString(argVaddr, 256);
-			if(arg == null) {
-				Lib.debug(dbgProcess, "handleExec: fail to read current arg");
+		UserKernel.pageLock.acquire();
+		for(Attachment attachment : attachments) {
+			if(attachment.segment == segment) {
+				UserKernel.sharedMemory.detach(segment);
+				UserKernel.pageLock.release();
+				Lib.debug(dbgProcess, "handleShmat: segment " + id + " is already attached");
 				return -1;
 			}
-			args[i] = arg;
 		}
-		
-		UserProcess child = newUserProcess();
-		if(!child.execute(fileName, args)) {
-			Lib.debug(dbgProcess, "handleExec: fail to execute child process");
+		int firstVPN = mapSegment(segment);
+		if(firstVPN == -1) {
+			if(UserKernel.sharedMemory.detach(segment)) {
+				segmentDestroyed(segment);
+			}
+			UserKernel.pageLock.release();
+			Lib.debug(dbgProcess, "handleShmat: no room for segment " + id);
 			return -1;
 		}
-		child.parent = this;
-		childrenList.add(child);
-		
+		attachments.add(new Attachment(segment, firstVPN));
+		UserKernel.pageLock.release();
 		
-		return child.pid;
+		return firstVPN * pageSize;
 	}
 	
-	private int handleJoin(int pid, int statusVaddr) {
-		//find the child with specific pid
-		UserProcess child = null;
-		for(UserProcess u : childrenList) {
-			if(u.pid == pid) {
-				child = u;
-				break;
+	/**
+	 * Unmap the shared memory segment attached at <i>address</i>.
+	 * 
+	 * @return 0 on success, or -1 if no segment is attached there.
+	 */
+	private int handleShmdt(int address) {
+		UserKernel.pageLock.acquire();
+		for(Attachment attachment : attachments) {
+			if(attachment.firstVPN * pageSize == address) {
+				detachSegment(attachment);
+				UserKernel.pageLock.release();
+				return 0;
 			}
 		}
-		if(child == null) {
-			Lib.debug(dbgProcess, "handleJoin: no child with this pid");
-			return -1;
-		}
-		
-		//condition variable
-		//if child process exit abnormally, nachos exit then everything break down?
-		sleepLock.acquire();
-		while(!childrenStatus.containsKey(pid)) {
-			sleepCondition.sleep();
-		}
-		
-		Integer status = childrenStatus.get(pid);
+		UserKernel.pageLock.release();
 		
-		if(status == null) {
-			Lib.debug(dbgProcess, "handleJoin: the child exited as a result of an unhandled exception");
-			return 0;
-		}
-		byte[] buffer = new byte[4];
-		buffer = Lib.bytesFromInt(status);
-		if(writeVirtualMemory(statusVaddr, buffer) != 4) {
-			Lib.debug(dbgProcess, "handleJoin: fail to write child status to virtual memory");
-			return -1;
-		}
-		sleepLock.release();
-		return 1;
+		Lib.debug(dbgProcess, "handleShmdt: no segment at " + address);
+		return -1;
 	}
 	
-	private int handleCreate(int nameVaddr) {
-		//check if there is room
-		int newRoom = -1;
-		for(int i = 0; i < 16; i++) {
-			if(OpenFiles[i] == null) {
-				newRoom = i;
-				break;
-			}
+	/**
+	 * Unmap an attached segment and drop this process's reference to it.
+	 * Must be called with <tt>UserKernel.pageLock</tt> held.
+	 */
+	private void detachSegment(Attachment attachment) {
+		unmapSegment(attachment.segment, attachment.firstVPN);
+		attachments.remove(attachment);
+		if(UserKernel.sharedMemory.detach(attachment.segment)) {
+			segmentDestroyed(attachment.segment);
 		}
-		if(newRoom == -1) {
-			Lib.debug(dbgProcess, "handleCreate: no room for this file");
+	}
+	
+	/**
+	 * Release what a destroyed segment holds beyond its frames, which
+	 * <tt>SharedMemory</tt> releases itself. Called with
+	 * <tt>UserKernel.pageLock</tt> held.
+	 * 
+	 * @param segment the destroyed segment.
+	 */
+	protected void segmentDestroyed(SharedMemory.Segment segment) {
+	}
+	
+	/**
+	 * Add <i>increment</i> to this process's niceness, that is, lower its
+	 * scheduling priority by <i>increment</i>. The result is kept within the
+	 * range allowed to user processes.
+	 * 
+	 * @return the new priority, or -1 if the scheduler has no priorities.
+	 */
+	private int handleNice(int increment) {
+		if(!schedulerHasPriorities()) {
+			Lib.debug(dbgProcess, "handleNice: the scheduler does not use priorities");
 			return -1;
 		}
+		long newPriority = (long) priority - increment;
+		newPriority = Math.max(PriorityScheduler.priorityMinimum,
+				Math.min(maxUserPriority, newPriority));
+		setPriority((int) newPriority);
 		
-		//check if nameVaddr is valid
-//		if(nameVaddr < 0) {
-//			Lib.debug(dbgProcess, "handleCreate: invalid virtual address");
-//			return -1;
-//		}
-		String fileName = readVirtualMemoryString(nameVaddr, 256);
-		if(fileName == null) {
-			Lib.debug(dbgProcess, "handleCreate: fail to read filename");
+		return priority;
+	}
+	
+	/**
+	 * Set the scheduling priority of every thread of this process.
+	 * 
+	 * @return 0 on success, or -1 if the scheduler has no priorities or
+	 * <i>newPriority</i> is outside the range allowed to user processes.
+	 */
+	private int handleSetPriority(int newPriority) {
+		if(!schedulerHasPriorities()) {
+			Lib.debug(dbgProcess, "handleSetPriority: the scheduler does not use priorities");
 			return -1;
 		}
-		//different from open
-		OpenFile file = ThreadedKernel.fileSystem.open(fileName, true);
-		if(file == null) {
-			Lib.debug(dbgProcess, "handleCreate: fail to open file");
+		if(newPriority < PriorityScheduler.priorityMinimum || newPriority > maxUserPriority) {
+			Lib.debug(dbgProcess, "handleSetPriority: priority " + newPriority + " is not allowed");
 			return -1;
 		}
-		OpenFiles[newRoom] = file;
-		return newRoom;
+		setPriority(newPriority);
+		
+		return 0;
 	}
 	
-	private int handleOpen(int nameVaddr) {
-		//check if there is room
-		int newRoom = -1;
-		for(int i = 0; i < 16; i++) {
-			if(OpenFiles[i] == null) {
-				newRoom = i;
-				break;
-			}
+	/**
+	 * Set the number of lottery tickets held by every thread of this process.
+	 * A lottery scheduler keeps a thread's tickets as its priority.
+	 * 
+	 * @return 0 on success, or -1 if the scheduler is not a lottery scheduler
+	 * or <i>tickets</i> is outside the range allowed to user processes.
+	 */
+	private int handleSetTickets(int tickets) {
+		if(!(ThreadedKernel.scheduler instanceof LotteryScheduler)) {
+			Lib.debug(dbgProcess, "handleSetTickets: the scheduler does not use tickets");
+			return -1;
 		}
-		if(newRoom == -1) {
-			Lib.debug(dbgProcess, "handleOpen: no room for this file");
+		if(tickets < 1 || tickets > maxUserTickets) {
+			Lib.debug(dbgProcess, "handleSetTickets: " + tickets + " tickets are not allowed");
 			return -1;
 		}
+		setPriority(tickets);
 		
-		//check if nameVaddr is valid, (but readVirtualMemory will do the checking)
-//		if(nameVaddr < 0) {
-//			Lib.debug(dbgProcess, "handleOpen: invalid virtual address");
-//			return -1;
-//		}
+		return 0;
+	}
+	
+	/**
+	 * Test whether the configured scheduler chooses threads by priority. The
+	 * round-robin scheduler keeps no priorities, so the priority syscalls
+	 * fail under it rather than report a change that has no effect.
+	 */
+	private static boolean schedulerHasPriorities() {
+		return ThreadedKernel.scheduler instanceof PriorityScheduler;
+	}
+	
+	/**
+	 * Record this process's new priority and pass it on to the scheduler for
+	 * each of its threads. Threads created later, and child processes, start
+	 * with it too.
+	 */
+	private void setPriority(int newPriority) {
+		threadLock.acquire();
+		priority = newPriority;
+		for(UserThread userThread : threads.values()) {
+			if(!userThread.exited) {
+				applyPriority(userThread.thread);
+			}
+		}
+		threadLock.release();
+	}
+	
+	/**
+	 * Give <i>thread</i> this process's priority in the configured scheduler.
+	 * Schedulers without priorities ignore it.
+	 */
+	private void applyPriority(KThread thread) {
+		boolean intStatus = Machine.interrupt().disable();
+		ThreadedKernel.scheduler.setPriority(thread, priority);
+		Machine.interrupt().restore(intStatus);
+	}
+	
+	/**
+	 * Charge <i>ticks</i> of CPU time to this process. Called by
+	 * <tt>UThread</tt> as its threads run.
+	 * 
+	 * @param ticks the number of ticks.
+	 * @param inKernel <tt>true</tt> if the ticks were spent in the kernel, on
+	 * behalf of a syscall or exception.
+	 */
+	void chargeTicks(long ticks, boolean inKernel) {
+		if(inKernel) {
+			systemTicks += ticks;
+			totalSystemTicks += ticks;
+		}
+		else {
+			userTicks += ticks;
+			totalUserTicks += ticks;
+		}
+	}
+	
+	/**
+	 * Return the CPU ticks charged to all processes so far.
+	 * 
+	 * @param inKernel <tt>true</tt> for the ticks spent in the kernel,
+	 * <tt>false</tt> for those spent running user code.
+	 */
+	static long getTotalTicks(boolean inKernel) {
+		return inKernel ? totalSystemTicks : totalUserTicks;
+	}
+	
+	/**
+	 * Describe this process for <tt>proc/<i>pid</i>/status</tt>, one
+	 * <tt>Name:&nbsp;value</tt> line per statistic.
+	 * 
+	 * @return the description.
+	 */
+	public String getStatus() {
+		StringBuilder out = new StringBuilder();
+		familyLock.acquire();
+		out.append("Name:\t").append(executableName).append('\n');
+		out.append("Pid:\t").append(pid).append('\n');
+		out.append("PPid:\t").append((parent != null) ? parent.pid : 0).append('\n');
+		out.append("State:\t").append(exited ? "exited" : exiting ? "exiting" : "running").append('\n');
+		familyLock.release();
+		
+		threadLock.acquire();
+		out.append("Threads:\t").append(liveThreads).append('\n');
+		out.append("Priority:\t").append(priority).append('\n');
+		threadLock.release();
+		
+		int resident = 0;
+		UserKernel.pageLock.acquire();
+		int pages = (pageTable != null) ? pageTable.length : 0;
+		for(int vpn = 0; vpn < pages; vpn++) {
+			if(pageTable[vpn].valid) {
+				resident++;
+			}
+		}
+		UserKernel.pageLock.release();
+		out.append("Pages:\t").append(pages).append('\n');
+		out.append("Resident:\t").append(resident).append('\n');
+		
+		int openFiles = 0;
+		for(int fd = 0; fd < fdTable.size(); fd++) {
+			if(fdTable.get(fd) != null) {
+				openFiles++;
+			}
+		}
+		out.append("FDs:\t").append(openFiles).append('\n');
+		out.append("UserTicks:\t").append(userTicks).append('\n');
+		out.append("SystemTicks:\t").append(systemTicks).append('\n');
+		
+		return out.toString();
+	}
+	
+	/**
+	 * Write the CPU time used by this process, or by its children that have
+	 * exited and been joined, to the <tt>struct rusage</tt> at
+	 * <i>usageVaddr</i>.
+	 * 
+	 * @return 0 on success, or -1 on error.
+	 */
+	private int handleGetrusage(int who, int usageVaddr) {
+		long user, system;
+		if(who == rusageSelf) {
+			user = userTicks;
+			system = systemTicks;
+		}
+		else if(who == rusageChildren) {
+			familyLock.acquire();
+			user = childUserTicks;
+			system = childSystemTicks;
+			familyLock.release();
+		}
+		else {
+			Lib.debug(dbgProcess, "handleGetrusage: unknown target " + who);
+			return -1;
+		}
+		
+		byte[] usage = new byte[8];
+		Lib.bytesFromInt(usage, 0, (int) Math.min(user, Integer.MAX_VALUE));
+		Lib.bytesFromInt(usage, 4, (int) Math.min(system, Integer.MAX_VALUE));
+		if(writeVirtualMemory(usageVaddr, usage) != usage.length) {
+			Lib.debug(dbgProcess, "handleGetrusage: fail to write usage");
+			return -1;
+		}
+		
+		return 0;
+	}
+	
+	/**
+	 * Wait on, wake the threads waiting on, or atomically update the word at
+	 * <i>vaddr</i>. See <tt>FutexTable</tt>. <tt>FUTEX_CMPXCHG</tt> takes the
+	 * new value in place of <i>timeout</i>.
+	 * 
+	 * @return for <tt>FUTEX_WAIT</tt>, 0 once woken; for
+	 * <tt>FUTEX_WAKE</tt>, the number of threads woken; for
+	 * <tt>FUTEX_CMPXCHG</tt>, the old value of the word; or -1 on error.
+	 */
+	private int handleFutex(int vaddr, int op, int value, int timeout) {
+		switch(op) {
+		case futexWait:
+			return UserKernel.futexTable.wait(this, vaddr, value, timeout);
+		case futexWake:
+			return UserKernel.futexTable.wake(this, vaddr, value);
+		case futexCmpxchg:
+			return UserKernel.futexTable.compareAndSwap(this, vaddr, value, timeout);
+		default:
+			Lib.debug(dbgProcess, "handleFutex: unknown operation " + op);
+			return -1;
+		}
+	}
+	
+	/**
+	 * Wait for thread <i>tid</i> of this process to finish, and store the
+	 * status it passed to <tt>thread_exit()</tt> at <i>statusVaddr</i>, unless
+	 * that is 0. Each thread can be joined once.
+	 * 
+	 * @return 0 on success, or -1 on error.
+	 */
+	private int handleThreadJoin(int tid, int statusVaddr) {
+		UThread current = (UThread) KThread.currentThread();
+		
+		threadLock.acquire();
+		UserThread target = threads.get(tid);
+		if(target == null || target.joining || tid == current.tid) {
+			threadLock.release();
+			Lib.debug(dbgProcess, "handleThreadJoin: cannot join thread " + tid);
+			return -1;
+		}
+		target.joining = true;
+		while(!target.exited && !exiting) {
+			threadExited.sleep();
+		}
+		if(!target.exited) {
+			threadLock.release();
+			return -1;
+		}
+		threads.remove(tid);
+		int status = target.status;
+		threadLock.release();
+		
+		if(statusVaddr != 0
+				&& writeVirtualMemory(statusVaddr, Lib.bytesFromInt(status)) != 4) {
+			return -1;
+		}
+		return 0;
+	}
+	
+	private int handleExec(int nameVaddr, int argc, int argv) {
+		if(nameVaddr < 0 || argc < 0 || argv < 0) {
+			Lib.debug(dbgProcess, "handleExec: Invalid input");
+			return -1;
+		}
+		String fileName = readVirtualMemoryString(nameVaddr, 256);
+		if(fileName == null) {
+			Lib.debug(dbgProcess, "handleExec: fail to read filename");
+			return -1;
+		}
+		if(!fileName.substring(fileName.length() - 5, fileName.length()).equals(".coff")) {
+			Lib.debug(dbgProcess, "handleExec: file type should be .coff");
+			return -1;
+		}
+		
+		String[] args = new String[argc];
+		for(int i = 0; i < argc; i++) {
+			byte[] argBuffer = new byte[4];//sizeof(int)
+			int bytesRead = readVirtualMemory(argv + i * 4, argBuffer);
+			if(bytesRead != 4) {
+				Lib.debug(dbgProcess, "handleExec: fail to read current arg pointer");
+				return -1;
+			}
+			int argVaddr = Lib.bytesToInt(argBuffer, 0);
+			String arg = readVirtualMemoryString(argVaddr, 256);
+			if(arg == null) {
+				Lib.debug(dbgProcess, "handleExec: fail to read current arg");
+				return -1;
+			}
+			args[i] = arg;
+		}
+		
+		UserProcess child = newUserProcess();
+		//the child's stdin and stdout are ours, which may have been redirected to pipes
+		child.inheritStandardDescriptors(this);
+		//adopt the child before it can run, so that it cannot exit unparented
+		adoptChild(child);
+		
+		if(!child.execute(fileName, args)) {
+			Lib.debug(dbgProcess, "handleExec: fail to execute child process");
+			abandonChild(child);
+			return -1;
+		}
+		
+		return child.pid;
+	}
+	
+	private int handleJoin(int pid, int statusVaddr) {
+		familyLock.acquire();
+		UserProcess child = UserKernel.processTable.get(pid);
+		if(child == null || child.parent != this) {
+			familyLock.release();
+			Lib.debug(dbgProcess, "handleJoin: no child with this pid");
+			return -1;
+		}
+		while(!child.exited && !exiting) {
+			childExited.sleep();
+		}
+		if(!child.exited) {
+			familyLock.release();
+			return -1;
+		}
+		Integer status = reap(child);
+		familyLock.release();
+		
+		if(status == null) {
+			Lib.debug(dbgProcess, "handleJoin: the child exited as a result of an unhandled exception");
+			return 0;
+		}
+		if(writeVirtualMemory(statusVaddr, Lib.bytesFromInt(status)) != 4) {
+			Lib.debug(dbgProcess, "handleJoin: fail to write child status to virtual memory");
+			return -1;
+		}
+		return 1;
+	}
+	
+	/**
+	 * Wait for a child to exit, like <tt>join()</tt>, but optionally for any
+	 * child and optionally without blocking.
+	 * 
+	 * @param pid the child to wait for, or -1 to wait for any child.
+	 * @param statusVaddr where to store the child's exit status, or 0.
+	 * @param options <tt>waitNoHang</tt> to return immediately if no child
+	 * has exited.
+	 * @return the pid of the child reaped, 0 if <tt>waitNoHang</tt> was given
+	 * and no child has exited yet, or -1 if there is no such child.
+	 */
+	private int handleWaitpid(int pid, int statusVaddr, int options) {
+		boolean noHang = (options & waitNoHang) != 0;
+		
+		familyLock.acquire();
+		UserProcess child;
+		if(pid == -1) {
+			if(children.isEmpty()) {
+				familyLock.release();
+				Lib.debug(dbgProcess, "handleWaitpid: no children");
+				return -1;
+			}
+			while(exitedChildren.isEmpty() && !noHang && !exiting) {
+				childExited.sleep();
+			}
+			child = exitedChildren.isEmpty() ? null : exitedChildren.iterator().next();
+		}
+		else {
+			child = UserKernel.processTable.get(pid);
+			if(child == null || child.parent != this) {
+				familyLock.release();
+				Lib.debug(dbgProcess, "handleWaitpid: no child with this pid");
+				return -1;
+			}
+			while(!child.exited && !noHang && !exiting) {
+				childExited.sleep();
+			}
+			if(!child.exited) {
+				child = null;
+			}
+		}
+		if(child == null) {
+			familyLock.release();
+			return exiting ? -1 : 0;
+		}
+		int childPid = child.pid;
+		Integer status = reap(child);
+		familyLock.release();
+		
+		if(statusVaddr != 0 && status != null
+				&& writeVirtualMemory(statusVaddr, Lib.bytesFromInt(status)) != 4) {
+			Lib.debug(dbgProcess, "handleWaitpid: fail to write child status to virtual memory");
+			return -1;
+		}
+		return childPid;
+	}
+	
+	/**
+	 * Make <i>child</i>, a newly created process that has not started yet, a
+	 * child of this process.
+	 * 
+	 * @param child the new process.
+	 */
+	protected void adoptChild(UserProcess child) {
+		//like nice values on Unix, scheduling priority is inherited
+		child.priority = priority;
+		
+		familyLock.acquire();
+		child.parent = this;
+		children.add(child);
+		familyLock.release();
+	}
+	
+	/**
+	 * Undo <tt>adoptChild()</tt> for a child that could not be started, and
+	 * release its process ID.
+	 * 
+	 * @param child the child that never ran.
+	 */
+	protected void abandonChild(UserProcess child) {
+		familyLock.acquire();
+		children.remove(child);
+		child.parent = null;
+		familyLock.release();
+		UserKernel.processTable.remove(child.pid);
+		child.closeFileDescriptors();
+	}
+	
+	/**
+	 * Wake everything waiting on a pipe this process holds an end of, so
+	 * that its own threads and ring requests see it exiting and give up.
+	 */
+	private void interruptPipes() {
+		for(int i = 0; i < fdTable.size(); i++) {
+			OpenFile file = fdTable.getFile(i);
+			if(file != null) {
+				Pipe.interrupt(file);
+			}
+		}
+	}
+	
+	/**
+	 * Close every open file descriptor.
+	 */
+	private void closeFileDescriptors() {
+		for(int i = 0; i < fdTable.size(); i++) {
+			OpenFileTable.Entry entry = fdTable.remove(i);
+			if(entry != null) {
+				UserKernel.openFileTable.release(entry);
+			}
+		}
+	}
+	
+	/**
+	 * Replace this process's file descriptors with copies of
+	 * <i>other</i>'s. Each copy shares its open file, and file position, with
+	 * the original, as after <tt>dup()</tt>.
+	 * 
+	 * @param other the process whose descriptors to copy.
+	 */
+	protected void copyFileDescriptors(UserProcess other) {
+		closeFileDescriptors();
+		for(int i = 0; i < other.fdTable.size(); i++) {
+			OpenFileTable.Entry entry = other.fdTable.get(i);
+			if(entry != null) {
+				UserKernel.openFileTable.retain(entry);
+				fdTable.install(i, entry);
+			}
+		}
+	}
+	
+	/**
+	 * Replace this process's standard input and output (descriptors 0 and 1)
+	 * with copies of <i>other</i>'s.
+	 * 
+	 * @param other the process whose standard descriptors to copy.
+	 */
+	private void inheritStandardDescriptors(UserProcess other) {
+		for(int fd = 0; fd <= 1; fd++) {
+			OpenFileTable.Entry entry = fdTable.remove(fd);
+			if(entry != null) {
+				UserKernel.openFileTable.release(entry);
+			}
+			entry = other.fdTable.get(fd);
+			if(entry != null) {
+				UserKernel.openFileTable.retain(entry);
+				fdTable.install(fd, entry);
+			}
+		}
+	}
+	
+	/**
+	 * Release everything left of an exited child. Must be called with
+	 * <tt>familyLock</tt> held.
+	 * 
+	 * @return the child's exit status, or <tt>null</tt> if it exited
+	 * abnormally.
+	 */
+	private Integer reap(UserProcess child) {
+		Lib.assertTrue(familyLock.isHeldByCurrentThread() && child.exited);
+		
+		children.remove(child);
+		exitedChildren.remove(child);
+		child.parent = null;
+		UserKernel.processTable.remove(child.pid);
+		childUserTicks += child.userTicks + child.childUserTicks;
+		childSystemTicks += child.systemTicks + child.childSystemTicks;
+		
+		return child.exitStatus;
+	}
+	
+	private int handleCreate(int nameVaddr) {
+		String fileName = readVirtualMemoryString(nameVaddr, 256);
+		if(fileName == null) {
+			Lib.debug(dbgProcess, "handleCreate: fail to read filename");
+			return -1;
+		}
+		//different from open
+		UserKernel.executableCache.invalidate(fileName);
+		return openFile(fileName, true);
+	}
+	
+	private int handleOpen(int nameVaddr) {
 		String fileName = readVirtualMemoryString(nameVaddr, 256);
 		if(fileName == null) {
 			Lib.debug(dbgProcess, "handleOpen: fail to read filename");
 			return -1;
 		}
-		OpenFile file = ThreadedKernel.fileSystem.open(fileName, false);
+		return openFile(fileName, false);
+	}
+	
+	/**
+	 * Open a disk file and install it at the lowest free file descriptor.
+	 * 
+	 * @return the new file descriptor, or -1 on error.
+	 */
+	private int openFile(String fileName, boolean create) {
+		//an unlinked file stays reachable only through descriptors already open
+		if(UserKernel.openFileTable.isUnlinked(fileName)) {
+			Lib.debug(dbgProcess, "openFile: " + fileName + " is being removed");
+			return -1;
+		}
+		OpenFile file = ThreadedKernel.fileSystem.open(fileName, create);
 		if(file == null) {
-			Lib.debug(dbgProcess, "handleOpen: fail to open file");
+			Lib.debug(dbgProcess, "openFile: fail to open file");
 			return -1;
 		}
-		OpenFiles[newRoom] = file;
-		return newRoom;
+		OpenFileTable.Entry entry = UserKernel.openFileTable.add(file, fileName);
+		int fd = fdTable.add(entry);
+		if(fd == -1) {
+			Lib.debug(dbgProcess, "openFile: too many open files");
+			UserKernel.openFileTable.release(entry);
+		}
+		return fd;
 	}
 	
 	private int handleRead(int fileDescriptor, int bufferVaddr, int count) {
-		if(fileDescriptor < 0 || fileDescriptor > 15) {
-			Lib.debug(dbgProcess, "handleRead: fileDescriptor should be within [0, 15]");
-			return -1;
-		}
-		if(OpenFiles[fileDescriptor] == null) {
-			Lib.debug(dbgProcess, "handleRead: file doesn't exist");
+		OpenFile readFile = fdTable.getFile(fileDescriptor);
+		if(readFile == null) {
+			Lib.debug(dbgProcess, "handleRead: invalid file descriptor");
 			return -1;
 		}
-		OpenFile readFile = OpenFiles[fileDescriptor];
 //		if(bufferVaddr < 0) { writevirtualmemory will check vaddr
 //			Lib.debug(dbgProcess, "handleRead: invalid buffer virtual address");
 //			return -1;
@@ -635,21 +1453,59 @@ public class UserProcess {
 			Lib.debug(dbgProcess, "handleRead: requested number of bytes can't be nagetive");
 			return -1;
 		}
+		return readFromFile(readFile, -1, bufferVaddr, count);
+	}
+	
+	/**
+	 * Read up to <i>count</i> bytes from <i>readFile</i> into user memory at
+	 * <i>bufferVaddr</i>, one page at a time, straight into the physical
+	 * frames backing the buffer.
+	 * 
+	 * @param position the file offset to read from, or -1 to read at, and
+	 * advance, the file's current position.
+	 * @return the number of bytes read, which is smaller than <i>count</i> at
+	 * end of file, or -1 if nothing could be read.
+	 */
+	private int readFromFile(OpenFile readFile, int position, int bufferVaddr, int count) {
+		//transfer straight between the file and the user's physical pages
+		byte[] memory = Machine.processor().getMemory();
 		int bytesTransfer = 0;
-		byte[] dummyBuffer = new byte[pageSize];
+		//a pipe may sleep, so wait for its data before pinning a frame
+		boolean pipe = readFile instanceof Pipe.ReadEnd;
 		//break the loop if finish transferring all bytes requested or reach to the end of readfile
 		while(count > 0) {
-			int tryRead = Math.min(pageSize, count);
-			int actualRead = readFile.read(dummyBuffer, 0, tryRead);
+			if(pipe && bytesTransfer == 0 && !((Pipe.ReadEnd) readFile).waitForData(this)) {
+				if(exiting) {
+					Lib.debug(dbgProcess, "readFromFile: process is exiting");
+					return -1;
+				}
+				break;
+			}
+			int paddr = pinVirtualPage(bufferVaddr, true);
+			if(paddr == -1) {
+				Lib.debug(dbgProcess, "readFromFile: invalid or read-only buffer");
+				return (bytesTransfer > 0) ? bytesTransfer : -1;
+			}
+			int tryRead = Math.min(pageSize - Processor.offsetFromAddress(bufferVaddr), count);
+			int actualRead;
+			if(pipe) {
+				//take only what is buffered, having got some data don't wait for more
+				actualRead = ((Pipe.ReadEnd) readFile).readAvailable(memory, paddr, tryRead);
+			}
+			else if(position < 0) {
+				actualRead = readFile.read(memory, paddr, tryRead);
+			}
+			else {
+				actualRead = readFile.read(position + bytesTransfer, memory, paddr, tryRead);
+			}
+			unpinVirtualPage(paddr);
 			if(actualRead == -1) {
-				Lib.debug(dbgProcess, "handleRead: fail to read from file ");
+				Lib.debug(dbgProcess, "readFromFile: fail to read from file ");
 				return -1;
 			}
-			int bytesWritten = writeVirtualMemory(bufferVaddr, dummyBuffer, 0, actualRead);
-			if(bytesWritten != actualRead) {
-				Lib.debug(dbgProcess, "handleRead: fail to write all data to buffer virtual memory ");
-				bytesTransfer += bytesWritten;
-				return bytesTransfer;
+			if(pipe && actualRead == 0 && bytesTransfer == 0) {
+				//another reader drained the pipe first, wait again
+				continue;
 			}
 			count -= actualRead;
 			bytesTransfer += actualRead;
@@ -663,54 +1519,182 @@ public class UserProcess {
 	}
 	
 	private int handleWrite(int fileDescriptor, int bufferVaddr, int count) {
-		if(fileDescriptor < 0 || fileDescriptor > 15) {
-			Lib.debug(dbgProcess, "handleWrite: fileDescriptor should be within [0, 15]");
+		OpenFile writeFile = fdTable.getFile(fileDescriptor);
+		if(writeFile == null) {
+			Lib.debug(dbgProcess, "handleWrite: invalid file descriptor");
 			return -1;
 		}
-		if(OpenFiles[fileDescriptor] == null) {
-			Lib.debug(dbgProcess, "handleWrite: file doesn't exist");
-			return -1;
-		}
-		OpenFile writeFile = OpenFiles[fileDescriptor];
+		invalidateExecutable(fileDescriptor);
 		if(count < 0) {
 			Lib.debug(dbgProcess, "handleWrite: requested number of bytes can't be nagetive");
 			return -1;
 		}
+		return writeToFile(writeFile, -1, bufferVaddr, count);
+	}
+	
+	/**
+	 * Write <i>count</i> bytes from user memory at <i>bufferVaddr</i> to
+	 * <i>writeFile</i>, one page at a time, straight from the physical frames
+	 * backing the buffer.
+	 * 
+	 * @param position the file offset to write at, or -1 to write at, and
+	 * advance, the file's current position.
+	 * @return <i>count</i>, or -1 if the buffer is invalid or the file took
+	 * fewer bytes than requested.
+	 */
+	private int writeToFile(OpenFile writeFile, int position, int bufferVaddr, int count) {
+		int bytesTransfer = writePartialToFile(writeFile, position, bufferVaddr, count);
+		return (bytesTransfer < count) ? -1 : bytesTransfer;
+	}
+	
+	/**
+	 * Like <tt>writeToFile()</tt>, but on error return the number of bytes
+	 * that reached the file before it, rather than -1.
+	 * 
+	 * @return the number of bytes written, which is smaller than
+	 * <i>count</i> only on error.
+	 */
+	private int writePartialToFile(OpenFile writeFile, int position, int bufferVaddr, int count) {
+		//transfer straight between the user's physical pages and the file
+		byte[] memory = Machine.processor().getMemory();
 		int bytesTransfer = 0;
-		byte[] dummyBuffer = new byte[pageSize];
+		//a pipe may sleep, so wait for room in it before pinning a frame
+		boolean pipe = writeFile instanceof Pipe.WriteEnd;
 		while(count > 0) {
-			int tryWrite = Math.min(pageSize, count);
-			int bytesRead = readVirtualMemory(bufferVaddr, dummyBuffer, 0, tryWrite);
-			if(bytesRead < tryWrite) {
-				Lib.debug(dbgProcess, "handleWrite: fail to read from virtual memory");
-				return -1;
+			if(pipe && !((Pipe.WriteEnd) writeFile).waitForSpace(this)) {
+				Lib.debug(dbgProcess, "writeToFile: read end of pipe closed or process exiting");
+				break;
 			}
-			int actualWrite = writeFile.write(dummyBuffer, 0, tryWrite);
-			if(actualWrite < tryWrite) {
-				Lib.debug(dbgProcess, "handleWrite: fail to write to file");
-				return -1;
+			int paddr = pinVirtualPage(bufferVaddr, false);
+			if(paddr == -1) {
+				Lib.debug(dbgProcess, "writeToFile: invalid buffer");
+				break;
+			}
+			int tryWrite = Math.min(pageSize - Processor.offsetFromAddress(bufferVaddr), count);
+			int actualWrite;
+			if(pipe) {
+				actualWrite = ((Pipe.WriteEnd) writeFile).writeAvailable(memory, paddr, tryWrite);
+			}
+			else if(position < 0) {
+				actualWrite = writeFile.write(memory, paddr, tryWrite);
+			}
+			else {
+				actualWrite = writeFile.write(position + bytesTransfer, memory, paddr, tryWrite);
+			}
+			unpinVirtualPage(paddr);
+			if(actualWrite < tryWrite && !pipe) {
+				Lib.debug(dbgProcess, "writeToFile: fail to write to file");
+				bytesTransfer += Math.max(actualWrite, 0);
+				break;
 			}
 			
-			count -= tryWrite;
-			bytesTransfer += tryWrite;
-			bufferVaddr += tryWrite;
+			count -= actualWrite;
+			bytesTransfer += actualWrite;
+			bufferVaddr += actualWrite;
 		}
 		
 		return bytesTransfer;
 	}
 	
-	private int handleClose(int fileDescriptor) {
-		if(fileDescriptor < 0 || fileDescriptor > 15) {
-			Lib.debug(dbgProcess, "handleClose: fileDescriptor should be within [0, 15]");
+	/**
+	 * Read the iovec array at <i>iovVaddr</i> from user memory. Each entry is
+	 * a <tt>struct iovec</tt>: a buffer address followed by a length.
+	 * 
+	 * @return an array of <tt>2 * iovcnt</tt> words holding the address and
+	 * length of each entry, or <tt>null</tt> if the array is invalid.
+	 */
+	private int[] readIovecs(int iovVaddr, int iovcnt) {
+		if(iovcnt < 0 || iovcnt > maxIovecs) {
+			Lib.debug(dbgProcess, "readIovecs: iovcnt should be within [0, " + maxIovecs + "]");
+			return null;
+		}
+		byte[] buffer = new byte[iovcnt * iovecSize];
+		if(readVirtualMemory(iovVaddr, buffer) != buffer.length) {
+			Lib.debug(dbgProcess, "readIovecs: invalid iovec array");
+			return null;
+		}
+		int[] iovecs = new int[iovcnt * 2];
+		int total = 0;
+		for(int i = 0; i < iovecs.length; i++) {
+			iovecs[i] = Lib.bytesToInt(buffer, i * 4);
+			if(i % 2 == 1) {
+				//lengths must be non-negative and must not overflow the total
+				if(iovecs[i] < 0 || total + iovecs[i] < 0) {
+					Lib.debug(dbgProcess, "readIovecs: invalid iovec length");
+					return null;
+				}
+				total += iovecs[i];
+			}
+		}
+		return iovecs;
+	}
+	
+	private int handleReadv(int fileDescriptor, int iovVaddr, int iovcnt) {
+		OpenFile readFile = fdTable.getFile(fileDescriptor);
+		if(readFile == null) {
+			Lib.debug(dbgProcess, "handleReadv: invalid file descriptor");
+			return -1;
+		}
+		int[] iovecs = readIovecs(iovVaddr, iovcnt);
+		if(iovecs == null) {
+			return -1;
+		}
+		//scatter into each buffer in turn, stopping early like read() does
+		int bytesTransfer = 0;
+		for(int i = 0; i < iovecs.length; i += 2) {
+			int actualRead = readFromFile(readFile, -1, iovecs[i], iovecs[i + 1]);
+			if(actualRead == -1) {
+				return (bytesTransfer > 0) ? bytesTransfer : -1;
+			}
+			bytesTransfer += actualRead;
+			if(actualRead < iovecs[i + 1]) {
+				break;
+			}
+		}
+		return bytesTransfer;
+	}
+	
+	private int handleWritev(int fileDescriptor, int iovVaddr, int iovcnt) {
+		OpenFile writeFile = fdTable.getFile(fileDescriptor);
+		if(writeFile == null) {
+			Lib.debug(dbgProcess, "handleWritev: invalid file descriptor");
 			return -1;
 		}
-		OpenFile closeFile = OpenFiles[fileDescriptor];
-		if(closeFile == null) {
-			Lib.debug(dbgProcess, "handleClose: no such file exists");
+		invalidateExecutable(fileDescriptor);
+		int[] iovecs = readIovecs(iovVaddr, iovcnt);
+		if(iovecs == null) {
 			return -1;
 		}
-		closeFile.close();
-		OpenFiles[fileDescriptor] = null;
+		//gather from each buffer in turn, stopping at the first error like readv
+		int bytesTransfer = 0;
+		for(int i = 0; i < iovecs.length; i += 2) {
+			int actualWrite = writePartialToFile(writeFile, -1, iovecs[i], iovecs[i + 1]);
+			bytesTransfer += actualWrite;
+			if(actualWrite < iovecs[i + 1]) {
+				return (bytesTransfer > 0) ? bytesTransfer : -1;
+			}
+		}
+		return bytesTransfer;
+	}
+	
+	/**
+	 * Drop the file a descriptor refers to from the executable cache, because
+	 * it is about to be written.
+	 */
+	private void invalidateExecutable(int fileDescriptor) {
+		String fileName = fdTable.get(fileDescriptor).getName();
+		if(fileName != null) {
+			UserKernel.executableCache.invalidate(fileName);
+		}
+	}
+	
+	private int handleClose(int fileDescriptor) {
+		OpenFileTable.Entry entry = fdTable.remove(fileDescriptor);
+		if(entry == null) {
+			Lib.debug(dbgProcess, "handleClose: invalid file descriptor");
+			return -1;
+		}
+		UserKernel.openFileTable.release(entry);
 		return 0;
 	}
 	
@@ -720,23 +1704,208 @@ public class UserProcess {
 			Lib.debug(dbgProcess, "handleUnlink: fail to read filename");
 			return -1;
 		}
-		//check if the file is closed already
-		for(int i = 0; i < 16; i++) {
-			if(OpenFiles[i] != null && OpenFiles[i].getName().equals(fileName)) {
-				Lib.debug(dbgProcess, "handleUnlink: close the file before unlink");
-				return -1;
+		//removal is deferred until the last open descriptor is closed
+		if(!UserKernel.openFileTable.unlink(fileName)) {
+			Lib.debug(dbgProcess, "handleUnlink: fail to remove file");
+			return -1;
+		}
+		UserKernel.executableCache.invalidate(fileName);
+		return 0;
+	}
+	
+	/**
+	 * Create a pipe, and store a descriptor for its read end in
+	 * <tt>fds[0]</tt> and one for its write end in <tt>fds[1]</tt>.
+	 * 
+	 * @return 0, or -1 on error.
+	 */
+	private int handlePipe(int fdsVaddr) {
+		Pipe pipe = new Pipe(pipeSize);
+		OpenFileTable.Entry readEntry = UserKernel.openFileTable.add(pipe.getReadEnd(), null);
+		OpenFileTable.Entry writeEntry = UserKernel.openFileTable.add(pipe.getWriteEnd(), null);
+		int readFd = fdTable.add(readEntry);
+		int writeFd = (readFd == -1) ? -1 : fdTable.add(writeEntry);
+		
+		byte[] fds = new byte[8];
+		Lib.bytesFromInt(fds, 0, readFd);
+		Lib.bytesFromInt(fds, 4, writeFd);
+		if(writeFd == -1 || writeVirtualMemory(fdsVaddr, fds) != fds.length) {
+			Lib.debug(dbgProcess, "handlePipe: too many open files or invalid fds array");
+			if(readFd != -1) {
+				fdTable.remove(readFd);
 			}
+			if(writeFd != -1) {
+				fdTable.remove(writeFd);
+			}
+			UserKernel.openFileTable.release(readEntry);
+			UserKernel.openFileTable.release(writeEntry);
+			return -1;
 		}
-		if(!ThreadedKernel.fileSystem.remove(fileName)) {
-			Lib.debug(dbgProcess, "handleUnlink: fail to remove file");
+		return 0;
+	}
+	
+	/**
+	 * Register the process's asynchronous I/O ring. A process has at most one
+	 * ring, for its whole lifetime.
+	 * 
+	 * @return 0, or -1 on error.
+	 */
+	private int handleRingSetup(int ringVaddr, int sqVaddr, int cqVaddr, int entries) {
+		if(asyncRing != null) {
+			Lib.debug(dbgProcess, "handleRingSetup: ring already set up");
+			return -1;
+		}
+		if(entries <= 0 || entries > maxRingEntries || (entries & (entries - 1)) != 0) {
+			Lib.debug(dbgProcess, "handleRingSetup: invalid number of entries");
+			return -1;
+		}
+		AsyncRing ring = new AsyncRing(this, ringVaddr, sqVaddr, cqVaddr, entries);
+		if(!ring.initialize()) {
+			Lib.debug(dbgProcess, "handleRingSetup: invalid ring address");
 			return -1;
 		}
+		asyncRing = ring;
 		return 0;
 	}
+	
+	private int handleRingEnter(int toSubmit, int minComplete) {
+		if(asyncRing == null) {
+			Lib.debug(dbgProcess, "handleRingEnter: no ring set up");
+			return -1;
+		}
+		return asyncRing.enter(toSubmit, minComplete);
+	}
+	
+	/**
+	 * Carry out one request from the asynchronous I/O ring. Called by a kernel
+	 * worker thread, concurrently with the process itself.
+	 * 
+	 * @return the request's result, as the equivalent syscall would return it.
+	 */
+	int handleAsyncRequest(int opcode, int fileDescriptor, int bufferVaddr, int count, int offset) {
+		switch(opcode) {
+		case AsyncRing.opNop:
+			return 0;
+		case AsyncRing.opRead:
+			OpenFile readFile = fdTable.getFile(fileDescriptor);
+			if(readFile == null || count < 0) {
+				Lib.debug(dbgProcess, "handleAsyncRequest: invalid read");
+				return -1;
+			}
+			return readFromFile(readFile, offset, bufferVaddr, count);
+		case AsyncRing.opWrite:
+			OpenFile writeFile = fdTable.getFile(fileDescriptor);
+			if(writeFile == null || count < 0) {
+				Lib.debug(dbgProcess, "handleAsyncRequest: invalid write");
+				return -1;
+			}
+			invalidateExecutable(fileDescriptor);
+			return writeToFile(writeFile, offset, bufferVaddr, count);
+		case AsyncRing.opOpen:
+			return handleOpen(bufferVaddr);
+		case AsyncRing.opClose:
+			return handleClose(fileDescriptor);
+		default:
+			Lib.debug(dbgProcess, "handleAsyncRequest: unknown opcode " + opcode);
+			return -1;
+		}
+	}
+	
+	private int handleDup(int fileDescriptor) {
+		OpenFileTable.Entry entry = fdTable.get(fileDescriptor);
+		if(entry == null) {
+			Lib.debug(dbgProcess, "handleDup: invalid file descriptor");
+			return -1;
+		}
+		int newDescriptor = fdTable.add(entry);
+		if(newDescriptor == -1) {
+			Lib.debug(dbgProcess, "handleDup: too many open files");
+			return -1;
+		}
+		UserKernel.openFileTable.retain(entry);
+		return newDescriptor;
+	}
+	
+	private int handleDup2(int fileDescriptor, int newDescriptor) {
+		OpenFileTable.Entry entry = fdTable.get(fileDescriptor);
+		if(entry == null) {
+			Lib.debug(dbgProcess, "handleDup2: invalid file descriptor");
+			return -1;
+		}
+		if(newDescriptor < 0 || newDescriptor >= maxFileDescriptors) {
+			Lib.debug(dbgProcess, "handleDup2: new descriptor out of range");
+			return -1;
+		}
+		if(newDescriptor == fileDescriptor) {
+			return newDescriptor;
+		}
+		//silently close whatever newDescriptor referred to
+		OpenFileTable.Entry old = fdTable.remove(newDescriptor);
+		if(old != null) {
+			UserKernel.openFileTable.release(old);
+		}
+		fdTable.install(newDescriptor, entry);
+		UserKernel.openFileTable.retain(entry);
+		return newDescriptor;
+	}
+	
 	private static final int syscallHalt = 0, syscallExit = 1, syscallExec = 2,
 			syscallJoin = 3, syscallCreate = 4, syscallOpen = 5,
 			syscallRead = 6, syscallWrite = 7, syscallClose = 8,
-			syscallUnlink = 9;
+			syscallUnlink = 9, syscallReadv = 13, syscallWritev = 14,
+			syscallDup = 16, syscallDup2 = 17, syscallWaitpid = 18,
+			syscallPipe = 20, syscallRingSetup = 21, syscallRingEnter = 22,
+			syscallThreadCreate = 24, syscallThreadJoin = 25,
+			syscallThreadExit = 26, syscallFutex = 27, syscallShmget = 28,
+			syscallShmat = 29, syscallShmdt = 30, syscallNice = 31,
+			syscallSetPriority = 32, syscallSetTickets = 33,
+			syscallGetrusage = 34;
+
+	/** The targets of <tt>getrusage()</tt>. */
+	private static final int rusageSelf = 0, rusageChildren = -1;
+
+	/** The <tt>futex()</tt> operations. */
+	private static final int futexWait = 0, futexWake = 1, futexCmpxchg = 2;
+
+	/**
+	 * The address a thread created by <tt>thread_create()</tt> returns to
+	 * from its function. No page is ever mapped there, so returning faults,
+	 * and the kernel ends the thread.
+	 */
+	private static final int threadReturnAddress = 0xFFFFFFF0;
+
+	/** The <tt>waitpid()</tt> option to return rather than wait. */
+	private static final int waitNoHang = 1;
+
+	/** The most file descriptors a process may have open at once. */
+	private static final int maxFileDescriptors = Config.getInteger(
+			"Process.maxFileDescriptors", 256);
+
+	/** The most entries an asynchronous I/O ring may have. */
+	private static final int maxRingEntries = Config.getInteger(
+			"Process.maxRingEntries", 64);
+
+	/**
+	 * The highest scheduling priority a user process may ask for. Processes
+	 * start at the default priority, and may always lower it.
+	 */
+	private static final int maxUserPriority = Math.min(Config.getInteger(
+			"Process.maxPriority", PriorityScheduler.priorityDefault),
+			PriorityScheduler.priorityMaximum);
+
+	/** The most lottery tickets a user process may ask for. */
+	private static final int maxUserTickets = Config.getInteger(
+			"Process.maxTickets", PriorityScheduler.priorityMaximum);
+
+	/** The number of bytes a pipe can buffer. */
+	private static final int pipeSize = Config.getInteger("Kernel.pipeSize",
+			4096);
+
+	/** The most iovec entries a single readv() or writev() may pass. */
+	private static final int maxIovecs = 16;
+
+	/** The size of a <tt>struct iovec</tt> in user memory. */
+	private static final int iovecSize = 8;
 
 	/**
 	 * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -790,6 +1959,86 @@ public class UserProcess {
 	 * <td>9</td>
 	 * <td><tt>int  unlink(char *name);</tt></td>
 	 * </tr>
+	 * <tr>
+	 * <td>13</td>
+	 * <td><tt>int  readv(int fd, struct iovec *iov, int iovcnt);
+	 * 								</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>14</td>
+	 * <td><tt>int  writev(int fd, struct iovec *iov, int iovcnt);
+	 * 								</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>16</td>
+	 * <td><tt>int  dup(int fd);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>17</td>
+	 * <td><tt>int  dup2(int fd, int newfd);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>18</td>
+	 * <td><tt>int  waitpid(int pid, int *status, int options);
+	 * 								</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>20</td>
+	 * <td><tt>int  pipe(int fds[2]);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>21</td>
+	 * <td><tt>int  ring_setup(struct io_ring *ring, struct io_sqe *sq,
+	 * 								struct io_cqe *cq, int entries);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>22</td>
+	 * <td><tt>int  ring_enter(int toSubmit, int minComplete);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>24</td>
+	 * <td><tt>int  thread_create(void (*func)(void *), void *arg);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>25</td>
+	 * <td><tt>int  thread_join(int tid, int *status);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>26</td>
+	 * <td><tt>void thread_exit(int status);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>27</td>
+	 * <td><tt>int  futex(int *addr, int op, int val, int timeout);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>28</td>
+	 * <td><tt>int  shmget(int key, int size);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>29</td>
+	 * <td><tt>void *shmat(int id);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>30</td>
+	 * <td><tt>int  shmdt(void *address);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>31</td>
+	 * <td><tt>int  nice(int increment);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>32</td>
+	 * <td><tt>int  setpriority(int priority);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>33</td>
+	 * <td><tt>int  settickets(int tickets);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>34</td>
+	 * <td><tt>int  getrusage(int who, struct rusage *usage);</tt></td>
+	 * </tr>
 	 * </table>
 	 * 
 	 * @param syscall the syscall number.
@@ -823,6 +2072,46 @@ public class UserProcess {
 			return handleClose(a0);
 		case syscallUnlink:
 			return handleUnlink(a0);
+		case syscallReadv:
+			return handleReadv(a0, a1, a2);
+		case syscallWritev:
+			return handleWritev(a0, a1, a2);
+		case syscallDup:
+			return handleDup(a0);
+		case syscallDup2:
+			return handleDup2(a0, a1);
+		case syscallWaitpid:
+			return handleWaitpid(a0, a1, a2);
+		case syscallPipe:
+			return handlePipe(a0);
+		case syscallRingSetup:
+			return handleRingSetup(a0, a1, a2, a3);
+		case syscallRingEnter:
+			return handleRingEnter(a0, a1);
+		case syscallThreadCreate:
+			return handleThreadCreate(a0, a1);
+		case syscallThreadJoin:
+			return handleThreadJoin(a0, a1);
+		case syscallThreadExit:
+			finishThread(a0);
+			Lib.assertNotReached("fail to exit thread");
+			return 0;
+		case syscallFutex:
+			return handleFutex(a0, a1, a2, a3);
+		case syscallShmget:
+			return handleShmget(a0, a1);
+		case syscallShmat:
+			return handleShmat(a0);
+		case syscallShmdt:
+			return handleShmdt(a0);
+		case syscallNice:
+			return handleNice(a0);
+		case syscallSetPriority:
+			return handleSetPriority(a0);
+		case syscallSetTickets:
+			return handleSetTickets(a0);
+		case syscallGetrusage:
+			return handleGetrusage(a0, a1);
 		default:
 			Lib.debug(dbgProcess, "Unknown syscall " + syscall);
 			Lib.assertNotReached("Unknown system call!");
@@ -842,11 +2131,17 @@ public class UserProcess {
 		
 		switch (cause) {
 		case Processor.exceptionSyscall:
-			int result = handleSyscall(processor.readRegister(Processor.regV0),
-					processor.readRegister(Processor.regA0),
+			int syscall = processor.readRegister(Processor.regV0);
+			int[] args = { processor.readRegister(Processor.regA0),
 					processor.readRegister(Processor.regA1),
 					processor.readRegister(Processor.regA2),
-					processor.readRegister(Processor.regA3));
+					processor.readRegister(Processor.regA3) };
+			SyscallProfiler.Call call = null;
+			if (SyscallProfiler.enabled())
+				call = SyscallProfiler.begin(this, syscall, args);
+			int result = handleSyscall(syscall, args[0], args[1], args[2], args[3]);
+			if (call != null)
+				SyscallProfiler.end(call, result);
 			processor.writeRegister(Processor.regV0, result);
 			processor.advancePC();
 			break;
@@ -862,31 +2157,121 @@ public class UserProcess {
 	/** The program being run by this process. */
 	protected Coff coff;
 
+	/** The name of the file <tt>coff</tt> was loaded from. */
+	protected String executableName;
+
 	/** This process's page table. */
 	protected TranslationEntry[] pageTable;
 
 	/** The number of contiguous pages occupied by the program. */
 	protected int numPages;
 
-	/** The number of pages in the program's stack. */
+	/**
+	 * The number of pages in the program's stack, unless a subclass places the
+	 * stack itself.
+	 */
 	protected final int stackPages = 8;
 
-	protected OpenFile[] OpenFiles;
+	/** This process's open file descriptors. */
+	protected FileDescriptorTable fdTable;
+	
+	/** The shared memory segments attached to this process. */
+	protected LinkedList<Attachment> attachments = new LinkedList<Attachment>();
 	
-	protected static int pidCounter = 0;
+	/**
+	 * A shared memory segment attached to a process.
+	 */
+	protected static class Attachment {
+		public Attachment(SharedMemory.Segment segment, int firstVPN) {
+			this.segment = segment;
+			this.firstVPN = firstVPN;
+		}
+		
+		public SharedMemory.Segment segment;
+		
+		/** The first virtual page at which the segment is mapped. */
+		public int firstVPN;
+	}
 	
-	protected static int runningProcess = 0;
+	/** The asynchronous I/O ring, or <tt>null</tt> if none is set up. */
+	private AsyncRing asyncRing = null;
 	
 	protected int pid;
 	
+	/** The parent process, or <tt>null</tt> once it has exited. */
 	protected UserProcess parent = null;
 	
-	private LinkedList<UserProcess> childrenList = new LinkedList<UserProcess>();
+	/** Children that have not been reaped. */
+	private HashSet<UserProcess> children = new HashSet<UserProcess>();
+	
+	/** The scheduling priority of this process's threads. */
+	private int priority = PriorityScheduler.priorityDefault;
+	
+	/** CPU ticks spent running this process's code, and in the kernel for it. */
+	private long userTicks = 0, systemTicks = 0;
+	
+	/** This process's syscall profile, created at its first profiled syscall. */
+	SyscallProfiler.ProcessStats syscallStats = null;
+	
+	/** The CPU ticks charged to every process, including those that have exited. */
+	private static long totalUserTicks = 0, totalSystemTicks = 0;
+	
+	/** The CPU ticks of the children this process has reaped, and of theirs. */
+	private long childUserTicks = 0, childSystemTicks = 0;
+	
+	/** Children that have exited but not been reaped, oldest first. */
+	private LinkedHashSet<UserProcess> exitedChildren = new LinkedHashSet<UserProcess>();
 	
-	//store the exit status of child processes
-	private HashMap<Integer, Integer> childrenStatus = new HashMap<Integer, Integer>();
+	private boolean exited = false;
+	
+	/** The exit status, or <tt>null</tt> if the process exited abnormally. */
+	private Integer exitStatus = null;
 	
 	private UThread thread;
+	
+	/** The threads of this process that have not been joined, by ID. */
+	private HashMap<Integer, UserThread> threads = new HashMap<Integer, UserThread>();
+	
+	private int nextThreadID = 1;
+	
+	/** The number of threads that have not finished. */
+	private int liveThreads = 0;
+	
+	/** Set by the first <tt>exit()</tt>; the other threads then stop. */
+	private boolean exiting = false;
+	
+	private int exitingStatus;
+	
+	/** Stacks of finished threads, by their top address, ready for reuse. */
+	private LinkedList<Integer> freeThreadStacks = new LinkedList<Integer>();
+	
+	/** Protects the thread state of this process. */
+	private Lock threadLock;
+	
+	/** Signaled, on <tt>threadLock</tt>, when a thread of this process finishes. */
+	private Condition threadExited;
+	
+	/**
+	 * A thread of this process, as seen by <tt>thread_join()</tt>.
+	 */
+	private static class UserThread {
+		UserThread(int stackTop, UThread thread) {
+			this.stackTop = stackTop;
+			this.thread = thread;
+		}
+		
+		UThread thread;
+		
+		/** The top of the thread's stack, or -1 for the program's own stack. */
+		int stackTop;
+		
+		boolean exited = false;
+		
+		/** Set once a thread has started joining this one. */
+		boolean joining = false;
+		
+		int status;
+	}
 
 	private int initialPC, initialSP;
 
@@ -896,9 +2281,13 @@ public class UserProcess {
 
 	private static final char dbgProcess = 'a';
 	
-	private Lock sleepLock;
+	/**
+	 * Protects the parent and child links and exit state of every process.
+	 */
+	private static Lock familyLock = new Lock();
 	
-	private Condition sleepCondition;
+	/** Signaled, on <tt>familyLock</tt>, when a child of this process exits. */
+	private Condition childExited;
 	
 	
 }
@@ -29,6 +29,20 @@ public class VMKernel extends UserKernel {
 		freeSwapPages = new LinkedList<Integer>();
 		swapPageLock = new Lock();
 		//memoryLock = new Lock();
+		pinCount = new int[Machine.processor().getNumPhysPages()];
+		
+		if(procFileSystem != null) {
+			procFileSystem.register("vmstat", new ProcFileSystem.Generator() {
+				public String generate(UserProcess process) {
+					swapPageLock.acquire();
+					int freeSwap = freeSwapPages.size();
+					swapPageLock.release();
+					return "page_faults " + VMProcess.totalPageFaults + "\nswap_pages "
+							+ swapFileSize + "\nswap_free " + freeSwap + "\nswap_used "
+							+ (swapFileSize - freeSwap) + "\n";
+				}
+			});
+		}
 	}
 
 	/**
@@ -61,20 +75,58 @@ public class VMKernel extends UserKernel {
 	
 	public static OpenFile swapFile;
 	
-	public static HashSet<Integer> pinTable = new HashSet<Integer>();
+	/**
+	 * The number of pins held on each frame. A pinned frame is never chosen
+	 * by <tt>clock()</tt>. Several threads may pin one frame at once, for
+	 * example a copy-on-write or shared memory frame, so each pin must be
+	 * released separately. Guarded by <tt>pageLock</tt>.
+	 */
+	public static int[] pinCount;
+
+	/** The number of frames with at least one pin. */
+	public static int numPinned = 0;
+
+	/**
+	 * Add a pin to frame <i>ppn</i>. Must be called with <tt>pageLock</tt>
+	 * held.
+	 */
+	public static void pin(int ppn) {
+		if (pinCount[ppn]++ == 0)
+			numPinned++;
+	}
+
+	/**
+	 * Release one pin on frame <i>ppn</i>. Must be called with
+	 * <tt>pageLock</tt> held; the caller then wakes <tt>sleepNoPage</tt>.
+	 */
+	public static void unpin(int ppn) {
+		Lib.assertTrue(pinCount[ppn] > 0);
+		if (--pinCount[ppn] == 0)
+			numPinned--;
+	}
+
+	/**
+	 * Test whether frame <i>ppn</i> is pinned.
+	 */
+	public static boolean isPinned(int ppn) {
+		return pinCount[ppn] > 0;
+	}
 	
 	//public static Lock sleepNoPageLock;
 	
 	public static Condition sleepNoPage;
 	
-	//(ppn, (VMProcess, vpn))
-	public static HashMap<Integer, TreeMap<Integer, VMProcess>> InvertedPageTable = new HashMap<Integer, TreeMap<Integer, VMProcess>>();
-	
 	//maintain free swap pages
 	public static LinkedList<Integer> freeSwapPages;
 	
 	public static int swapFileSize = 0;
 	
+	/**
+	 * For swap pages shared after <tt>fork()</tt>, the number of references
+	 * beyond the first; pages not listed have a single owner.
+	 */
+	public static HashMap<Integer, Integer> swapShares = new HashMap<Integer, Integer>();
+	
 	protected static Lock swapPageLock;	
 	
 	//public static Lock memoryLock;
@@ -59,20 +59,36 @@ public class VMProcess extends UserProcess {
 //		}
 	}
 
+	/**
+	 * Place the stack at the top of the address space rather than after the
+	 * program image. It grows down from there, and the heap grows up from the
+	 * argument page, into the unused pages between them.
+	 * 
+	 * @return the initial stack pointer, which leaves room for
+	 * <tt>main()</tt> to save its argument registers in its caller's frame.
+	 */
+	protected int reserveStack() {
+		return maxVirtualPages * pageSize - 16;
+	}
+
 	/**
 	 * Initializes page tables for this process so that the executable can be
-	 * demand-paged.
+	 * demand-paged. The page table covers the whole address space, but no page
+	 * is given a frame until it is first used.
 	 * 
 	 * @return <tt>true</tt> if successful.
 	 */
 	protected boolean loadSections() {
 		//return super.loadSections();
 		VMKernel.pageLock.acquire();
-		pageTable = new TranslationEntry[numPages];
-		for (int i = 0; i < numPages; i++) {
+		pageTable = new TranslationEntry[maxVirtualPages];
+		for (int i = 0; i < pageTable.length; i++) {
 			pageTable[i] = new TranslationEntry(i, -1, false, false, false, false);
 			
 		}
+		copyOnWrite = new boolean[maxVirtualPages];
+		//the heap starts out empty, right after the argument page
+		brk = numPages * pageSize;
 		VMKernel.pageLock.release();
 		return true;
 	}
@@ -82,14 +98,22 @@ public class VMProcess extends UserProcess {
 	 */
 	protected void unloadSections() {
 		//super.unloadSections();
+		//write back and drop every mapping first, while its file is still open
+		while(!mappedFiles.isEmpty()) {
+			unmap(mappedFiles.getFirst());
+		}
 		VMKernel.pageLock.acquire();
 		for(int i = 0; i < pageTable.length; i++) {
 			if(pageTable[i].valid) {
 				pageTable[i].valid = false;
-				VMKernel.freePages.add(pageTable[i].ppn);
-				//System.out.println("add ppn:"+pageTable[i].ppn);
+				//frames shared after fork() or through the page cache stay with the other processes
+				VMKernel.pageCache.release(pageTable[i].ppn, this);
 			}
 		}
+		for(int spn : vpnInSwap.values()) {
+			deallocateSwap(spn);
+		}
+		vpnInSwap.clear();
 		VMKernel.pageLock.release();
 	}
 	
@@ -130,35 +154,66 @@ public class VMProcess extends UserProcess {
 	
 	public void handlePageFault(int vpn) {
 		byte[] memory = Machine.processor().getMemory();
+		numPageFaults++;
+		totalPageFaults++;
 		
-		//first swap out and get victim ppn
-		int ppn;
-		if(VMKernel.freePages.isEmpty()) {
-			ppn = clock();
+		Attachment attachment = findAttachment(vpn);
+		if(attachment != null) {
+			loadSegmentPage(attachment, vpn);
+			return;
 		}
-		else {
-			ppn = VMKernel.freePages.removeFirst();
-		}
-		
-		int paddr = ppn * pageSize;
-		
-		VMKernel.pinTable.add(ppn);
 		
-		//second find source 
+		//first find source 
 		//used to check if in coff, put here to avoid searching twice
 		CoffSection targetSection = null;
+		int sectionNumber = -1;
 		for(int i = 0; i < coff.getNumSections(); i++) {
 			CoffSection section = coff.getSection(i);
 			if(vpn >= section.getFirstVPN() && vpn < section.getFirstVPN() + section.getLength()) {
 				targetSection = section;
+				sectionNumber = i;
 				break;
 			}
 		}
 		
+		//read-only text may already be resident for another process
+		if(targetSection != null && targetSection.isReadOnly()) {
+			int sharedPpn = VMKernel.pageCache.share(coff, sectionNumber,
+					vpn - targetSection.getFirstVPN(), this);
+			if(sharedPpn != -1) {
+				pageTable[vpn] = new TranslationEntry(vpn, sharedPpn, true, true, false, false);
+				copyOnWrite[vpn] = false;
+				if(this == VMKernel.currentProcess()) {
+					addToTLB(vpn);
+				}
+				return;
+			}
+		}
+		
+		//second swap out and get victim ppn
+		int ppn = VMKernel.frameAllocator.allocate();
+		if(ppn == -1) {
+			ppn = clock();
+		}
+		
+		int paddr = ppn * pageSize;
+		
+		VMKernel.pin(ppn);
+		
 		pageTable[vpn].readOnly = false;
+		//whatever is loaded below is a private copy
+		if(vpn < copyOnWrite.length) {
+			copyOnWrite[vpn] = false;
+		}
+		
+		MappedFile map = findMapping(vpn);
 		
+		//mapped pages are paged straight from their file, never from swap
+		if(map != null) {
+			loadMappedPage(map, vpn, paddr);
+		}
 		//check if is in the swap file
-		if(vpnInSwap.containsKey(vpn)) {
+		else if(vpnInSwap.containsKey(vpn)) {
 			//System.out.println("swap:vpn:"+vpn);
 			byte[] buffer = new byte[pageSize];
 			int spn = vpnInSwap.get(vpn);
@@ -186,17 +241,18 @@ public class VMProcess extends UserProcess {
 				}
 				
 				targetSection.loadPage(spn, ppn);//load into memory
+				if(targetSection.isReadOnly()) {
+					VMKernel.pageCache.add(coff, sectionNumber, spn, ppn);
+				}
 			}
-			else {//stack
+			else {//stack or heap, zero-filled on first touch
 				byte[] buffer = new byte[pageSize];//default to initialize to 0
 				System.arraycopy(buffer, 0, memory, paddr, pageSize);//load into memory
 			}
 		}
 		
 		//update inverted page table
-		TreeMap<Integer, VMProcess> innerMap = new TreeMap<Integer, VMProcess>();
-		innerMap.put(vpn, this);
-		VMKernel.InvertedPageTable.put(ppn, innerMap);
+		VMKernel.frameAllocator.setOwner(ppn, this, vpn);
 				
 		//update page table
 		pageTable[vpn].ppn = ppn;
@@ -209,7 +265,7 @@ public class VMProcess extends UserProcess {
 			//syncTLB();
 		}
 						
-		VMKernel.pinTable.remove(pageTable[vpn].ppn);
+		VMKernel.unpin(pageTable[vpn].ppn);
 		//VMKernel.sleepNoPageLock.acquire();
 		VMKernel.sleepNoPage.wake();
 		//VMKernel.sleepNoPageLock.release();
@@ -218,7 +274,12 @@ public class VMProcess extends UserProcess {
 	
 	public void handleTLBMiss(int regBadVAddr) {
 		int vpn = Processor.pageFromAddress(regBadVAddr);
-		Lib.assertTrue(vpn >= 0 && vpn < pageTable.length, "vpn out of range:"+vpn+"  size:"+pageTable.length);
+		numTLBMisses++;
+		if(!isValidVPN(vpn)) {
+			Lib.debug(dbgVM, "handleTLBMiss: vaddr " + regBadVAddr + " is not mapped");
+			super.handleException(Processor.exceptionAddressError);
+			return;
+		}
 		//critical section: managing page table
 		VMKernel.pageLock.acquire();
 		if(pageTable[vpn].valid) {//page is in the memory
@@ -252,6 +313,11 @@ public class VMProcess extends UserProcess {
 		case Processor.exceptionTLBMiss:
 			handleTLBMiss(processor.readRegister(Processor.regBadVAddr));
 			break;
+		case Processor.exceptionReadOnly:
+			if(!handleReadOnly(processor.readRegister(Processor.regBadVAddr))) {
+				super.handleException(cause);
+			}
+			break;
 		default:
 			super.handleException(cause);
 			break;
@@ -274,7 +340,7 @@ public class VMProcess extends UserProcess {
 		}
 		
 		//but since this is within the critical section actually two processes can't access at the same time
-		while(VMKernel.pinTable.size() == Machine.processor().getNumPhysPages()) {//all pages are pinned
+		while(VMKernel.numPinned == Machine.processor().getNumPhysPages()) {//all pages are pinned
 			System.out.println("sleep");
 			VMKernel.sleepNoPage.sleep();
 		}
@@ -282,12 +348,12 @@ public class VMProcess extends UserProcess {
 		int ppn = VMKernel.ppnSelector;
 		while(!found) {
 			while(ppn < Machine.processor().getNumPhysPages()) {
-				ppn = ppn % Machine.processor().getNumPhysPages();
-				int vpn  = VMKernel.InvertedPageTable.get(ppn).firstKey();
-				VMProcess process = VMKernel.InvertedPageTable.get(ppn).firstEntry().getValue();
-				if(VMKernel.pinTable.contains(ppn)) {
+				VMProcess process = (VMProcess) VMKernel.frameAllocator.getOwner(ppn);
+				if(process == null || VMKernel.isPinned(ppn)) {
+					ppn++;
 					continue;
 				}
+				int vpn = VMKernel.frameAllocator.getVPN(ppn);
 				if(process.pageTable[vpn].used) {
 					process.pageTable[vpn].used = false;
 				}
@@ -296,27 +362,42 @@ public class VMProcess extends UserProcess {
 					victim = ppn;
 					VMKernel.ppnSelector = ppn + 1;
 					
-					if(process.pageTable[vpn].dirty) {//need to swap out
-						byte[] buffer = new byte[pageSize];
-
-						byte[] memory = Machine.processor().getMemory();
-						int paddr = ppn * pageSize;
-						System.arraycopy(memory, paddr, buffer, 0, pageSize);
-						//find spn
-						int spn = allocateSwap();
-						if(spn == -1) {//no internel spn
-							spn = VMKernel.swapFileSize++;
+					Attachment attachment = process.findAttachment(vpn);
+					if(attachment != null) {//shared memory is mapped at a different page in each process
+						evictSegmentPage(attachment.segment, vpn - attachment.firstVPN, ppn);
+						VMKernel.frameAllocator.setOwner(victim, null, -1);
+						break;
+					}
+					
+					UserProcess[] owners = VMKernel.frameAllocator.getOwners(ppn);
+					MappedFile map = process.findMapping(vpn);
+					if(map != null) {//mapped pages go back to their file
+						if(process.pageTable[vpn].dirty) {
+							writeBackMappedPage(map, vpn, ppn);
 						}
-						VMKernel.swapFile.write(spn * pageSize, buffer, 0, pageSize);
-						process.vpnInSwap.put(vpn, spn);
 					}
-					process.pageTable[vpn] = new TranslationEntry(vpn, -1, false, false, false, false);
-					if(process == VMKernel.currentProcess()) {
-						
-						syncTLB();
+					else if(process.pageTable[vpn].dirty) {//need to swap out
+						int spn = swapOut(ppn);
+						//every process sharing the frame now shares the swap page
+						for(UserProcess owner : owners) {
+							((VMProcess) owner).vpnInSwap.put(vpn, spn);
+						}
+						if(owners.length > 1) {
+							shareSwap(spn, owners.length - 1);
+						}
+					}
+					for(UserProcess owner : owners) {
+						VMProcess sharer = (VMProcess) owner;
+						sharer.pageTable[vpn] = new TranslationEntry(vpn, -1, false, false, false, false);
+						if(sharer == VMKernel.currentProcess()) {
+							
+							sharer.syncTLB();
+						}
 					}
 					
-					VMKernel.InvertedPageTable.remove(victim);
+					//the victim frame is handed straight to the faulting page
+					VMKernel.pageCache.forget(victim);
+					VMKernel.frameAllocator.setOwner(victim, null, -1);
 					break;
 				}
 				ppn++;
@@ -326,6 +407,204 @@ public class VMProcess extends UserProcess {
 		return victim;
 	}
 	
+	/**
+	 * Describe this process for <tt>proc/<i>pid</i>/status</tt>, adding its
+	 * paging statistics.
+	 */
+	public String getStatus() {
+		VMKernel.pageLock.acquire();
+		int swapped = vpnInSwap.size();
+		VMKernel.pageLock.release();
+		
+		return super.getStatus() + "PageFaults:\t" + numPageFaults
+				+ "\nTLBMisses:\t" + numTLBMisses + "\nSwapped:\t" + swapped
+				+ "\n";
+	}
+	
+	/**
+	 * Write frame <i>ppn</i> to a free swap page, growing the swap file if
+	 * there is none.
+	 * 
+	 * @return the swap page written.
+	 */
+	private int swapOut(int ppn) {
+		byte[] buffer = new byte[pageSize];
+
+		byte[] memory = Machine.processor().getMemory();
+		int paddr = ppn * pageSize;
+		System.arraycopy(memory, paddr, buffer, 0, pageSize);
+		//find spn
+		int spn = allocateSwap();
+		if(spn == -1) {//no internel spn
+			spn = VMKernel.swapFileSize++;
+		}
+		VMKernel.swapFile.write(spn * pageSize, buffer, 0, pageSize);
+		return spn;
+	}
+	
+	/**
+	 * Fault in page <i>vpn</i> of an attached shared memory segment. If the
+	 * page is resident for another process, its frame is mapped here too.
+	 * Otherwise the page is read back from swap, or zero-filled the first time
+	 * it is used, into a new frame that the segment keeps. Must be called with
+	 * <tt>VMKernel.pageLock</tt> held.
+	 */
+	private void loadSegmentPage(Attachment attachment, int vpn) {
+		SharedMemory.Segment segment = attachment.segment;
+		int page = vpn - attachment.firstVPN;
+		
+		int ppn = segment.getFrame(page);
+		if(ppn == -1) {
+			ppn = VMKernel.frameAllocator.allocate();
+			if(ppn == -1) {
+				ppn = clock();
+			}
+			VMKernel.pin(ppn);
+			
+			byte[] memory = Machine.processor().getMemory();
+			int paddr = ppn * pageSize;
+			int spn = segment.getSwapPage(page);
+			if(spn != -1) {
+				if(VMKernel.swapFile.read(spn * pageSize, memory, paddr, pageSize) < pageSize) {
+					Lib.debug(dbgVM, "handle page fault: fail to read from swap file");
+				}
+				deallocateSwap(spn);
+				segment.setSwapPage(page, -1);
+			}
+			else {
+				Arrays.fill(memory, paddr, paddr + pageSize, (byte) 0);
+			}
+			//the reference the new frame comes with is the segment's
+			segment.setFrame(page, ppn);
+			
+			VMKernel.unpin(ppn);
+			VMKernel.sleepNoPage.wake();
+		}
+		
+		VMKernel.frameAllocator.share(ppn, this, vpn);
+		pageTable[vpn] = new TranslationEntry(vpn, ppn, true, false, true, false);
+		if(this == VMKernel.currentProcess()) {
+			addToTLB(vpn);
+		}
+	}
+	
+	/**
+	 * Evict page <i>page</i> of a shared memory segment from frame
+	 * <i>ppn</i>. The page is written to swap for the segment, since there is
+	 * no telling whether any of the processes mapping it wrote to it, and it
+	 * is unmapped from every one of them. Must be called with
+	 * <tt>VMKernel.pageLock</tt> held.
+	 */
+	private void evictSegmentPage(SharedMemory.Segment segment, int page, int ppn) {
+		segment.setSwapPage(page, swapOut(ppn));
+		segment.setFrame(page, -1);
+		
+		for(FrameAllocator.Mapping mapping : VMKernel.frameAllocator.getMappings(ppn)) {
+			VMProcess sharer = (VMProcess) mapping.process;
+			sharer.pageTable[mapping.vpn] = new TranslationEntry(mapping.vpn, -1, false, false, false, false);
+			if(sharer == VMKernel.currentProcess()) {
+				sharer.syncTLB();
+			}
+		}
+	}
+	
+	/**
+	 * Place a shared memory segment in the highest free gap below the stacks,
+	 * leaving room for a few more thread stacks. No page is given a frame
+	 * here; each is mapped by <tt>handlePageFault()</tt> the first time it is
+	 * used. Called with <tt>VMKernel.pageLock</tt> held.
+	 * 
+	 * @return the first virtual page of the mapping, or -1 if the segment does
+	 * not fit.
+	 */
+	protected int mapSegment(SharedMemory.Segment segment) {
+		int numPages = segment.getNumPages();
+		int topVPN = stackFloorVPN - stackReservePages;
+		while(topVPN - numPages >= heapEndVPN()) {
+			int firstVPN = topVPN - numPages;
+			int blockedVPN = lowestOverlap(firstVPN, topVPN);
+			if(blockedVPN == -1) {
+				return firstVPN;
+			}
+			topVPN = blockedVPN;
+		}
+		Lib.debug(dbgVM, "mapSegment: no gap of " + numPages + " pages");
+		return -1;
+	}
+	
+	/**
+	 * Unmap a shared memory segment, leaving any resident pages with the
+	 * segment. Called with <tt>VMKernel.pageLock</tt> held.
+	 */
+	protected void unmapSegment(SharedMemory.Segment segment, int firstVPN) {
+		for(int vpn = firstVPN; vpn < firstVPN + segment.getNumPages(); vpn++) {
+			if(pageTable[vpn].valid) {
+				VMKernel.frameAllocator.release(pageTable[vpn].ppn, this);
+			}
+			pageTable[vpn] = new TranslationEntry(vpn, -1, false, false, false, false);
+		}
+		if(this == VMKernel.currentProcess()) {
+			syncTLB();
+		}
+	}
+	
+	/**
+	 * Free the swap pages of a destroyed segment.
+	 */
+	protected void segmentDestroyed(SharedMemory.Segment segment) {
+		for(int page = 0; page < segment.getNumPages(); page++) {
+			if(segment.getSwapPage(page) != -1) {
+				deallocateSwap(segment.getSwapPage(page));
+				segment.setSwapPage(page, -1);
+			}
+		}
+	}
+	
+	/**
+	 * Fault in the page containing <i>vaddr</i> if necessary, and pin its
+	 * frame so that it cannot be evicted while the kernel transfers data
+	 * directly to or from it.
+	 */
+	protected int pinVirtualPage(int vaddr, boolean isWrite) {
+		int vpn = Processor.pageFromAddress(vaddr);
+		if(vaddr < 0 || !isValidVPN(vpn)) {
+			return -1;
+		}
+
+		VMKernel.pageLock.acquire();
+		if(!pageTable[vpn].valid) {
+			handlePageFault(vpn);
+		}
+		if(isWrite && isCopyOnWrite(vpn)) {
+			breakCopyOnWrite(vpn);
+		}
+		if(isWrite && pageTable[vpn].readOnly) {
+			VMKernel.pageLock.release();
+			return -1;
+		}
+		VMKernel.pin(pageTable[vpn].ppn);
+		pageTable[vpn].used = true;
+		if(isWrite) {
+			pageTable[vpn].dirty = true;
+		}
+		int paddr = pageTable[vpn].ppn * pageSize + Processor.offsetFromAddress(vaddr);
+		VMKernel.pageLock.release();
+
+		return paddr;
+	}
+
+	/**
+	 * Unpin a frame pinned by <tt>pinVirtualPage()</tt>, and wake a thread
+	 * waiting for an evictable frame.
+	 */
+	protected void unpinVirtualPage(int paddr) {
+		//the page may have moved to a private copy since, but its old frame is the one pinned
+		VMKernel.pageLock.acquire();
+		VMKernel.unpin(paddr / pageSize);
+		VMKernel.sleepNoPage.wake();
+		VMKernel.pageLock.release();
+	}
+
 	public int readVirtualMemory(int vaddr, byte[] data, int offset, int length) {
 		Lib.assertTrue(offset >= 0 && length >= 0
 				&& offset + length <= data.length);
@@ -335,7 +614,7 @@ public class VMProcess extends UserProcess {
 		int amount = 0;
 		while(amount < length && offset < data.length) {
 			int vpn = Processor.pageFromAddress(vaddr);
-			if(vpn < 0 || vpn >= pageTable.length) {
+			if(vaddr < 0 || !isValidVPN(vpn)) {
 				Lib.debug(dbgProcess, "readVirtualMemory: invalid vaddr(vpn out of range)");
 				break;
 			}
@@ -345,7 +624,7 @@ public class VMProcess extends UserProcess {
 			if(!pageTable[vpn].valid) {
 				handlePageFault(vpn);//allocate ppn
 			}
-			VMKernel.pinTable.add(pageTable[vpn].ppn);//"I am using this ppn!"
+			VMKernel.pin(pageTable[vpn].ppn);//"I am using this ppn!"
 			pageTable[vpn].used = true;
 //			if(this == VMKernel.currentProcess()) {
 //				syncTLB();
@@ -358,7 +637,7 @@ public class VMProcess extends UserProcess {
 			
 			System.arraycopy(memory, paddr, data, offset, transferAmount);
 			
-			VMKernel.pinTable.remove(pageTable[vpn].ppn);
+			VMKernel.unpin(pageTable[vpn].ppn);
 			
 			VMKernel.sleepNoPage.wake();
 			//finished pinning a ppn which means other processes could evict one now
@@ -381,11 +660,11 @@ public class VMProcess extends UserProcess {
 		while(amount < length && offset < data.length) {
 			int vpn = Processor.pageFromAddress(vaddr);
 	
-			if(vpn < 0 || vpn >= pageTable.length) {
+			if(vaddr < 0 || !isValidVPN(vpn)) {
 				Lib.debug(dbgProcess, "readVirtualMemory: invalid vaddr(vpn out of range)");
 				break;
 			}
-			if(pageTable[vpn].readOnly) {
+			if(pageTable[vpn].readOnly && !isCopyOnWrite(vpn)) {
 				Lib.debug(dbgProcess, "readVirtualMemory: invalid vaddr(read only!)");
 				return amount;
 			}
@@ -395,7 +674,10 @@ public class VMProcess extends UserProcess {
 			if(!pageTable[vpn].valid) {
 				handlePageFault(vpn);//allocate ppn
 			}
-			VMKernel.pinTable.add(pageTable[vpn].ppn);//"I am using this ppn!"
+			if(isCopyOnWrite(vpn)) {
+				breakCopyOnWrite(vpn);
+			}
+			VMKernel.pin(pageTable[vpn].ppn);//"I am using this ppn!"
 			pageTable[vpn].used = true;
 			pageTable[vpn].dirty = true;
 			
@@ -410,7 +692,7 @@ public class VMProcess extends UserProcess {
 			int transferAmount = Math.min(Math.min(length, pageSize - addrOffset), data.length - offset);
 			System.arraycopy(data, offset, memory, paddr, transferAmount);
 			
-			VMKernel.pinTable.remove(pageTable[vpn].ppn);
+			VMKernel.unpin(pageTable[vpn].ppn);
 			
 			
 			VMKernel.sleepNoPage.wake();
@@ -423,7 +705,595 @@ public class VMProcess extends UserProcess {
 		return amount;
 
 	}
+	/**
+	 * Handle a syscall exception, adding <tt>mmap()</tt>, <tt>munmap()</tt>,
+	 * <tt>fork()</tt> and <tt>sbrk()</tt> to the syscalls handled by
+	 * <tt>UserProcess</tt>.
+	 */
+	public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
+		switch (syscall) {
+		case syscallMmap:
+			return handleMmap(a0, a1);
+		case syscallMunmap:
+			return handleMunmap(a0);
+		case syscallFork:
+			return handleFork();
+		case syscallSbrk:
+			return handleSbrk(a0);
+		default:
+			return super.handleSyscall(syscall, a0, a1, a2, a3);
+		}
+	}
+	
+	/**
+	 * Create a child process with a copy of this process's address space and
+	 * file descriptors, continuing from the same point: <tt>fork()</tt>
+	 * returns the child's pid in the parent and 0 in the child.
+	 * 
+	 * <p>
+	 * No page is copied here. Resident pages are shared, and writable ones are
+	 * made read-only in both processes and marked copy-on-write; the first
+	 * write to such a page by either process copies it. Pages in swap share
+	 * their swap page. Mappings made with <tt>mmap()</tt> are not inherited,
+	 * but shared memory segments stay attached, at the same addresses.
+	 * 
+	 * @return the child's pid, or -1 on error.
+	 */
+	private int handleFork() {
+		VMProcess child = (VMProcess) newUserProcess();
+		//executables from the cache are immutable, so the child shares ours
+		child.coff = coff;
+		child.executableName = executableName;
+		child.numPages = numPages;
+		child.brk = brk;
+		//the stacks of the other threads are copied, though no thread uses them
+		child.stackFloorVPN = stackFloorVPN;
+		child.threadStacks.addAll(threadStacks);
+		child.freeThreadStacks.addAll(freeThreadStacks);
+		child.pageTable = new TranslationEntry[pageTable.length];
+		child.copyOnWrite = new boolean[copyOnWrite.length];
+		child.copyFileDescriptors(this);
+		
+		Processor processor = Machine.processor();
+		
+		VMKernel.pageLock.acquire();
+		//pick up what only the TLB knows, then flush it so that the pages
+		//made read-only below take effect
+		for(int i = 0; i < processor.getTLBSize(); i++) {
+			TranslationEntry tlbEntry = processor.readTLBEntry(i);
+			if(tlbEntry.valid) {
+				pageTable[tlbEntry.vpn].used = pageTable[tlbEntry.vpn].used | tlbEntry.used;
+				pageTable[tlbEntry.vpn].dirty = pageTable[tlbEntry.vpn].dirty | tlbEntry.dirty;
+			}
+			processor.writeTLBEntry(i, new TranslationEntry());
+		}
+		for(int vpn = 0; vpn < pageTable.length; vpn++) {
+			TranslationEntry entry = pageTable[vpn];
+			if(findMapping(vpn) != null || findAttachment(vpn) != null) {
+				child.pageTable[vpn] = new TranslationEntry(vpn, -1, false, false, false, false);
+			}
+			else if(entry.valid) {
+				if(!entry.readOnly) {
+					entry.readOnly = true;
+					copyOnWrite[vpn] = true;
+				}
+				VMKernel.frameAllocator.share(entry.ppn, child);
+				child.pageTable[vpn] = new TranslationEntry(entry);
+				child.copyOnWrite[vpn] = copyOnWrite[vpn];
+			}
+			else {
+				child.pageTable[vpn] = new TranslationEntry(vpn, -1, false, false, false, false);
+				Integer spn = vpnInSwap.get(vpn);
+				if(spn != null) {
+					child.vpnInSwap.put(vpn, spn);
+					shareSwap(spn, 1);
+				}
+			}
+		}
+		for(Attachment attachment : attachments) {
+			VMKernel.sharedMemory.attach(attachment.segment.getID());
+			child.attachments.add(new Attachment(attachment.segment, attachment.firstVPN));
+		}
+		VMKernel.pageLock.release();
+		
+		//the child resumes after the syscall, with 0 as its result
+		int[] registers = new int[Processor.numUserRegisters];
+		for(int i = 0; i < registers.length; i++) {
+			registers[i] = processor.readRegister(i);
+		}
+		registers[Processor.regV0] = 0;
+		registers[Processor.regPC] = registers[Processor.regNextPC];
+		registers[Processor.regNextPC] += 4;
+		child.forkRegisters = registers;
+		
+		adoptChild(child);
+		child.start(executableName);
+		
+		return child.pid;
+	}
+	
+	/**
+	 * Start a forked child with the registers its parent had at
+	 * <tt>fork()</tt>, and any other process as <tt>UserProcess</tt> does.
+	 */
+	public void initRegisters() {
+		if(forkRegisters == null) {
+			super.initRegisters();
+			return;
+		}
+		
+		for(int i = 0; i < forkRegisters.length; i++) {
+			Machine.processor().writeRegister(i, forkRegisters[i]);
+		}
+		forkRegisters = null;
+	}
+	
+	/**
+	 * Handle a write to a read-only page. If the page is copy-on-write, give
+	 * this process a private, writable copy and let the write be retried.
+	 * 
+	 * @return <tt>false</tt> if the page really is read-only.
+	 */
+	private boolean handleReadOnly(int vaddr) {
+		int vpn = Processor.pageFromAddress(vaddr);
+		
+		VMKernel.pageLock.acquire();
+		boolean cow = isCopyOnWrite(vpn);
+		//an evicted page is made private when it is faulted back in
+		if(cow && pageTable[vpn].valid) {
+			breakCopyOnWrite(vpn);
+		}
+		VMKernel.pageLock.release();
+		
+		return cow;
+	}
+	
+	private boolean isCopyOnWrite(int vpn) {
+		return vpn >= 0 && vpn < copyOnWrite.length && copyOnWrite[vpn];
+	}
+	
+	/**
+	 * Make resident copy-on-write page <i>vpn</i> private and writable,
+	 * copying its frame unless no other process shares it any more. Must be
+	 * called with <tt>VMKernel.pageLock</tt> held.
+	 */
+	private void breakCopyOnWrite(int vpn) {
+		Lib.assertTrue(VMKernel.pageLock.isHeldByCurrentThread() && pageTable[vpn].valid);
+		
+		int sharedPpn = pageTable[vpn].ppn;
+		if(VMKernel.frameAllocator.getReferenceCount(sharedPpn) > 1) {
+			//keep the shared frame resident while finding a frame to copy it to
+			VMKernel.pin(sharedPpn);
+			int ppn = VMKernel.frameAllocator.allocate();
+			if(ppn == -1) {
+				ppn = clock();
+			}
+			VMKernel.unpin(sharedPpn);
+			VMKernel.sleepNoPage.wake();
+			
+			byte[] memory = Machine.processor().getMemory();
+			System.arraycopy(memory, sharedPpn * pageSize, memory, ppn * pageSize, pageSize);
+			VMKernel.frameAllocator.setOwner(ppn, this, vpn);
+			VMKernel.frameAllocator.release(sharedPpn, this);
+			pageTable[vpn].ppn = ppn;
+		}
+		
+		pageTable[vpn].readOnly = false;
+		//the copy is no longer backed by the executable
+		pageTable[vpn].dirty = true;
+		pageTable[vpn].used = true;
+		copyOnWrite[vpn] = false;
+		
+		if(this == VMKernel.currentProcess()) {
+			for(int i = 0; i < Machine.processor().getTLBSize(); i++) {
+				TranslationEntry tlbEntry = Machine.processor().readTLBEntry(i);
+				if(tlbEntry.valid && tlbEntry.vpn == vpn) {
+					Machine.processor().writeTLBEntry(i, pageTable[vpn]);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Map the whole file open at <i>fileDescriptor</i> into the address space
+	 * starting at <i>address</i>. No data is read here; each page is loaded
+	 * from the file by <tt>handlePageFault()</tt> the first time it is used.
+	 * 
+	 * @return the length of the file, or -1 on error.
+	 */
+	private int handleMmap(int fileDescriptor, int address) {
+		OpenFileTable.Entry entry = fdTable.get(fileDescriptor);
+		if(entry == null || entry.getName() == null) {
+			Lib.debug(dbgVM, "handleMmap: only open disk files can be mapped");
+			return -1;
+		}
+		if(address < 0 || Processor.offsetFromAddress(address) != 0) {
+			Lib.debug(dbgVM, "handleMmap: address must be page aligned");
+			return -1;
+		}
+		int length = entry.getFile().length();
+		
+		int firstVPN = Processor.pageFromAddress(address);
+		int mapPages = (length + pageSize - 1) / pageSize;
+		
+		//the mapping keeps its own handle, so it outlives close() on the descriptor
+		OpenFile file = ThreadedKernel.fileSystem.open(entry.getName(), false);
+		if(file == null) {
+			Lib.debug(dbgVM, "handleMmap: fail to reopen file");
+			return -1;
+		}
+		
+		//another thread may be moving the heap or adding a stack
+		VMKernel.pageLock.acquire();
+		if(firstVPN < heapEndVPN() || firstVPN + mapPages > stackFloorVPN
+				|| overlapsMapping(firstVPN, firstVPN + mapPages)) {
+			VMKernel.pageLock.release();
+			file.close();
+			Lib.debug(dbgVM, "handleMmap: mapping would overlap the program, the heap, a stack or another mapping");
+			return -1;
+		}
+		mappedFiles.add(new MappedFile(file, entry.getName(), firstVPN, mapPages, length));
+		VMKernel.pageLock.release();
+		
+		return length;
+	}
+	
+	/**
+	 * Remove the mapping that starts at <i>address</i>, writing its dirty
+	 * pages back to the file.
+	 * 
+	 * @return 0 on success, or -1 if no mapping starts at <i>address</i>.
+	 */
+	private int handleMunmap(int address) {
+		if(address < 0 || Processor.offsetFromAddress(address) != 0) {
+			Lib.debug(dbgVM, "handleMunmap: address must be page aligned");
+			return -1;
+		}
+		int firstVPN = Processor.pageFromAddress(address);
+		for(MappedFile map : mappedFiles) {
+			if(map.firstVPN == firstVPN) {
+				unmap(map);
+				return 0;
+			}
+		}
+		Lib.debug(dbgVM, "handleMunmap: no mapping at " + address);
+		return -1;
+	}
+	
+	private void unmap(MappedFile map) {
+		VMKernel.pageLock.acquire();
+		
+		//pick up dirty bits that only the TLB knows about yet
+		if(this == VMKernel.currentProcess()) {
+			for(int i = 0; i < Machine.processor().getTLBSize(); i++) {
+				TranslationEntry tlbEntry = Machine.processor().readTLBEntry(i);
+				if(tlbEntry.valid) {
+					pageTable[tlbEntry.vpn].dirty = pageTable[tlbEntry.vpn].dirty | tlbEntry.dirty;
+				}
+			}
+		}
+		
+		for(int vpn = map.firstVPN; vpn < map.firstVPN + map.numPages; vpn++) {
+			if(pageTable[vpn].valid) {
+				if(pageTable[vpn].dirty) {
+					writeBackMappedPage(map, vpn, pageTable[vpn].ppn);
+				}
+				VMKernel.frameAllocator.free(pageTable[vpn].ppn);
+			}
+			pageTable[vpn] = new TranslationEntry(vpn, -1, false, false, false, false);
+		}
+		mappedFiles.remove(map);
+		
+		if(this == VMKernel.currentProcess()) {
+			syncTLB();
+		}
+		VMKernel.pageLock.release();
+		
+		map.file.close();
+	}
+	
+	/**
+	 * Move the end of the heap by <i>increment</i> bytes. Pages added to the
+	 * heap are not given frames here; each is zero-filled by
+	 * <tt>handlePageFault()</tt> the first time it is used. Pages removed
+	 * from the heap are freed at once, along with their swap pages.
+	 * 
+	 * @return the previous end of the heap, or -1 on error.
+	 */
+	private int handleSbrk(int increment) {
+		VMKernel.pageLock.acquire();
+		int oldBreak = brk;
+		long newBreak = (long) brk + increment;
+		if(newBreak < numPages * pageSize || newBreak > (long) stackFloorVPN * pageSize) {
+			VMKernel.pageLock.release();
+			Lib.debug(dbgVM, "handleSbrk: heap would shrink past its start or grow into a stack");
+			return -1;
+		}
+		
+		int oldEndVPN = heapEndVPN();
+		int newEndVPN = (int) ((newBreak + pageSize - 1) / pageSize);
+		if(overlapsMapping(oldEndVPN, newEndVPN)) {
+			VMKernel.pageLock.release();
+			Lib.debug(dbgVM, "handleSbrk: heap would grow into a mapping");
+			return -1;
+		}
+		
+		discardPages(newEndVPN, oldEndVPN);
+		brk = (int) newBreak;
+		VMKernel.pageLock.release();
+		
+		return oldBreak;
+	}
+	
+	/**
+	 * Place the stack of a new thread below the stacks already in use, or
+	 * reuse the stack of a thread that has finished. Like the program's own
+	 * stack, it is zero-filled a page at a time as it is used, and it has a
+	 * guard page below it.
+	 * 
+	 * @return the address of the top of the stack, or -1 if the heap or a
+	 * mapping is in the way.
+	 */
+	protected int allocateThreadStack() {
+		VMKernel.pageLock.acquire();
+		int firstVPN;
+		if(!freeThreadStacks.isEmpty()) {
+			firstVPN = freeThreadStacks.removeFirst();
+		}
+		else {
+			firstVPN = stackFloorVPN - threadStackPages;
+			int floorVPN = firstVPN - guardPages;
+			if(floorVPN < heapEndVPN() || overlapsMapping(floorVPN, stackFloorVPN)) {
+				VMKernel.pageLock.release();
+				Lib.debug(dbgVM, "allocateThreadStack: the heap or a mapping is in the way");
+				return -1;
+			}
+			stackFloorVPN = floorVPN;
+		}
+		threadStacks.add(firstVPN);
+		VMKernel.pageLock.release();
+		
+		return (firstVPN + threadStackPages) * pageSize;
+	}
+	
+	/**
+	 * Free the pages of a finished thread's stack, and keep its place in the
+	 * address space for the next thread.
+	 */
+	protected void freeThreadStack(int stackTop) {
+		int firstVPN = stackTop / pageSize - threadStackPages;
+		
+		VMKernel.pageLock.acquire();
+		discardPages(firstVPN, firstVPN + threadStackPages);
+		threadStacks.remove(Integer.valueOf(firstVPN));
+		freeThreadStacks.add(firstVPN);
+		VMKernel.pageLock.release();
+	}
+	
+	/**
+	 * Free the frames and swap pages of virtual pages <i>from</i> up to
+	 * <i>to</i>, so that they read as zero if they are used again. Must be
+	 * called with <tt>VMKernel.pageLock</tt> held.
+	 */
+	private void discardPages(int from, int to) {
+		for(int vpn = from; vpn < to; vpn++) {
+			if(pageTable[vpn].valid) {
+				VMKernel.pageCache.release(pageTable[vpn].ppn, this);
+			}
+			Integer spn = vpnInSwap.remove(vpn);
+			if(spn != null) {
+				deallocateSwap(spn);
+			}
+			pageTable[vpn] = new TranslationEntry(vpn, -1, false, false, false, false);
+			copyOnWrite[vpn] = false;
+		}
+		if(from < to && this == VMKernel.currentProcess()) {
+			syncTLB();
+		}
+	}
+	
+	/**
+	 * Test whether any mapping or shared memory segment overlaps virtual
+	 * pages <i>from</i> up to <i>to</i>.
+	 */
+	private boolean overlapsMapping(int from, int to) {
+		return lowestOverlap(from, to) != -1;
+	}
+	
+	/**
+	 * Return the first page of the lowest mapping or shared memory segment
+	 * that overlaps virtual pages <i>from</i> up to <i>to</i>, or -1 if none
+	 * does.
+	 */
+	private int lowestOverlap(int from, int to) {
+		int lowest = -1;
+		for(MappedFile map : mappedFiles) {
+			if(map.firstVPN < to && from < map.firstVPN + map.numPages
+					&& (lowest == -1 || map.firstVPN < lowest)) {
+				lowest = map.firstVPN;
+			}
+		}
+		for(Attachment attachment : attachments) {
+			int firstVPN = attachment.firstVPN;
+			if(firstVPN < to && from < firstVPN + attachment.segment.getNumPages()
+					&& (lowest == -1 || firstVPN < lowest)) {
+				lowest = firstVPN;
+			}
+		}
+		return lowest;
+	}
+	
+	/**
+	 * Return the first page past the end of the heap.
+	 */
+	private int heapEndVPN() {
+		return (brk + pageSize - 1) / pageSize;
+	}
+	
+	/**
+	 * Return the mapping containing virtual page <i>vpn</i>, or <tt>null</tt>
+	 * if the page is not part of a mapped file.
+	 */
+	private MappedFile findMapping(int vpn) {
+		if(vpn < numPages) {
+			return null;
+		}
+		for(MappedFile map : mappedFiles) {
+			if(vpn >= map.firstVPN && vpn < map.firstVPN + map.numPages) {
+				return map;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Return the attachment containing virtual page <i>vpn</i>, or
+	 * <tt>null</tt> if the page is not part of a shared memory segment.
+	 */
+	private Attachment findAttachment(int vpn) {
+		if(vpn < numPages) {
+			return null;
+		}
+		for(Attachment attachment : attachments) {
+			if(vpn >= attachment.firstVPN && vpn < attachment.firstVPN + attachment.segment.getNumPages()) {
+				return attachment;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Test whether <i>vpn</i> is part of the program image, the heap, a
+	 * stack, a mapped file or a shared memory segment. The guard pages below
+	 * the stacks and the unused pages around them are not.
+	 */
+	private boolean isValidVPN(int vpn) {
+		if(vpn < 0 || vpn >= pageTable.length) {
+			return false;
+		}
+		if(vpn < heapEndVPN() || vpn >= stackLimitVPN || findMapping(vpn) != null
+				|| findAttachment(vpn) != null) {
+			return true;
+		}
+		for(int firstVPN : threadStacks) {
+			if(vpn >= firstVPN && vpn < firstVPN + threadStackPages) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private void loadMappedPage(MappedFile map, int vpn, int paddr) {
+		byte[] memory = Machine.processor().getMemory();
+		int filePos = (vpn - map.firstVPN) * pageSize;
+		
+		int byteRead = map.file.read(filePos, memory, paddr, Math.min(pageSize, map.length - filePos));
+		if(byteRead < 0) {
+			Lib.debug(dbgVM, "handle page fault: fail to read from mapped file");
+			byteRead = 0;
+		}
+		//the tail of the last page lies past the end of the file
+		Arrays.fill(memory, paddr + byteRead, paddr + pageSize, (byte) 0);
+	}
+	
+	private void writeBackMappedPage(MappedFile map, int vpn, int ppn) {
+		byte[] memory = Machine.processor().getMemory();
+		int filePos = (vpn - map.firstVPN) * pageSize;
+		int amount = Math.min(pageSize, map.length - filePos);
+		
+		UserKernel.executableCache.invalidate(map.name);
+		if(map.file.write(filePos, memory, ppn * pageSize, amount) < amount) {
+			Lib.debug(dbgVM, "fail to write back mapped page " + vpn);
+		}
+	}
+	
+	/**
+	 * A file mapped into the address space by <tt>mmap()</tt>. Pages are
+	 * shared with the file: dirty pages are written back when they are evicted
+	 * or unmapped.
+	 */
+	private static class MappedFile {
+		MappedFile(OpenFile file, String name, int firstVPN, int numPages, int length) {
+			this.file = file;
+			this.name = name;
+			this.firstVPN = firstVPN;
+			this.numPages = numPages;
+			this.length = length;
+		}
+		
+		OpenFile file;
+		
+		/** The name of the file, so a cached executable can be invalidated. */
+		String name;
+		
+		int firstVPN;
+		
+		int numPages;
+		
+		/** The length of the file when it was mapped; pages past it are zero. */
+		int length;
+	}
+	
+	private LinkedList<MappedFile> mappedFiles = new LinkedList<MappedFile>();
+	
+	private static final int syscallMmap = 10, syscallMunmap = 15,
+			syscallFork = 19, syscallSbrk = 23;
+	
+	/** The size of the address space. The stack grows down from its top. */
+	private static final int maxVirtualPages = 1024;
+	
+	/** The most pages the stack may grow to. */
+	private static final int maxStackPages = Config.getInteger("Process.maxStackPages", 64);
+	
+	/** The lowest page the stack may grow down to. */
+	private static final int stackLimitVPN = maxVirtualPages - maxStackPages;
+	
+	/**
+	 * The number of pages below the stack limit that are never mapped, so that
+	 * a stack overflow faults instead of running into the heap or a mapping.
+	 */
+	private static final int guardPages = 1;
+	
+	/** The most pages the stack of a thread made by <tt>thread_create()</tt> may grow to. */
+	private static final int threadStackPages = Config.getInteger("Process.threadStackPages", 16);
+	
+	/**
+	 * The pages left free below the stacks when placing a shared memory
+	 * segment, so that a few more threads can still be created.
+	 */
+	private static final int stackReservePages = 4 * (threadStackPages + guardPages);
+	
+	/** The end of the heap, as moved by <tt>sbrk()</tt>. */
+	private int brk;
+	
+	/**
+	 * The lowest page set aside for stacks and their guard pages. The heap and
+	 * mappings must stay below it.
+	 */
+	private int stackFloorVPN = stackLimitVPN - guardPages;
+	
+	/** The first pages of the stacks in use by threads made by <tt>thread_create()</tt>. */
+	private LinkedList<Integer> threadStacks = new LinkedList<Integer>();
+	
+	/** The first pages of stacks whose threads have finished. */
+	private LinkedList<Integer> freeThreadStacks = new LinkedList<Integer>();
+	
 	private HashMap<Integer, Integer> vpnInSwap;
+	
+	/**
+	 * Pages that are read-only only because they are shared copy-on-write
+	 * after <tt>fork()</tt>.
+	 */
+	private boolean[] copyOnWrite;
+	
+	/** The number of pages this process has faulted in, and of its TLB misses. */
+	private int numPageFaults = 0, numTLBMisses = 0;
+	
+	/** The number of pages faulted in by every process. */
+	static int totalPageFaults = 0;
+	
+	/** The registers a forked child starts with, until it first runs. */
+	private int[] forkRegisters = null;
 
 	private static final int pageSize = Processor.pageSize;
 
@@ -447,11 +1317,34 @@ public class VMProcess extends UserProcess {
 	
 	public void deallocateSwap(int spn) {
 		VMKernel.swapPageLock.acquire();
-		VMKernel.freeSwapPages.add(new Integer(spn));
+		Integer shares = VMKernel.swapShares.get(spn);
+		if(shares != null) {//another process still refers to it
+			if(shares == 1) {
+				VMKernel.swapShares.remove(spn);
+			}
+			else {
+				VMKernel.swapShares.put(spn, shares - 1);
+			}
+		}
+		else {
+			VMKernel.freeSwapPages.add(new Integer(spn));
+		}
 		VMKernel.swapPageLock.release();
 		return;
 	}
 	
+	/**
+	 * Record that <i>count</i> more processes refer to swap page <i>spn</i>.
+	 * It is only freed after each of them has called
+	 * <tt>deallocateSwap()</tt>.
+	 */
+	private void shareSwap(int spn, int count) {
+		VMKernel.swapPageLock.acquire();
+		Integer shares = VMKernel.swapShares.get(spn);
+		VMKernel.swapShares.put(spn, (shares == null) ? count : shares + count);
+		VMKernel.swapPageLock.release();
+	}
+	
 	public TranslationEntry[] debugTlb;
 
 }